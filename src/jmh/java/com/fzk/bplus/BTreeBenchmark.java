@@ -0,0 +1,175 @@
+package com.fzk.bplus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BTree点查询、更新、删除和构建的基准测试，与TreeMap、ConcurrentSkipListMap对比
+ * 同时报告吞吐量和延迟分位数(SampleTime)，加上-prof gc可得到每次操作的分配字节数
+ * <p>
+ * 运行：mvn -P jmh clean package && java -jar target/benchmarks.jar BTreeBenchmark -prof gc
+ * 只测某些实现：-p impl=BTree:64,TreeMap
+ * BTree延迟统计的开销：-p impl=BTree:64 -p latencyStats=true,false
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BTreeBenchmark {
+    static final int Size = 100_000;
+
+    public enum KeyOrder {
+        SEQUENTIAL, RANDOM
+    }
+
+    // BTree:M表示阶为M的BTree，BTreeMap:M同理
+    @Param({"BTree:4", "BTree:16", "BTree:64", "BTree:128", "BTree:512", "BTreeMap:16", "BTreeMap:64", "BTreeMap:256",
+            "TreeMap", "ConcurrentSkipListMap"})
+    public String impl;
+
+    // 装填和访问key的顺序
+    @Param({"SEQUENTIAL", "RANDOM"})
+    public KeyOrder order;
+
+    // BTree是否开启get/put/remove延迟统计，对其他实现无影响；默认关闭，与TreeMap等对比时才公平
+    @Param({"false"})
+    public boolean latencyStats;
+
+    private String[] keys;
+    private Ops map;
+    private int next;
+
+    // 统一BTree与Map的接口
+    interface Ops {
+        Object get(String key);
+
+        Object put(String key, Object value);
+
+        Object remove(String key);
+    }
+
+    @Setup
+    public void setup() {
+        keys = new String[Size];
+        for (int i = 0; i < Size; i++) keys[i] = String.format("user:%010d", i);
+        if (order == KeyOrder.RANDOM) {
+            Random random = new Random(42);
+            for (int i = Size - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                String tmp = keys[i];
+                keys[i] = keys[j];
+                keys[j] = tmp;
+            }
+        }
+        map = newOps(impl, latencyStats);
+        for (String key : keys) map.put(key, key);
+    }
+
+    static Ops newOps(String impl, boolean latencyStats) {
+        if (impl.startsWith("BTree:")) {
+            BTree b = new BTree(Integer.parseInt(impl.substring("BTree:".length())));
+            b.setLatencyStats(latencyStats);
+            return new Ops() {
+                public Object get(String key) {
+                    return b.get(key);
+                }
+
+                public Object put(String key, Object value) {
+                    return b.put(key, value);
+                }
+
+                public Object remove(String key) {
+                    return b.remove(key);
+                }
+            };
+        }
+        Map<String, Object> m;
+        if (impl.startsWith("BTreeMap:")) m = new BTreeMap<>(Integer.parseInt(impl.substring("BTreeMap:".length())));
+        else m = switch (impl) {
+            case "TreeMap" -> new TreeMap<>();
+            case "ConcurrentSkipListMap" -> new ConcurrentSkipListMap<>();
+            default -> throw new RuntimeException("未知的实现: " + impl);
+        };
+        return new Ops() {
+            public Object get(String key) {
+                return m.get(key);
+            }
+
+            public Object put(String key, Object value) {
+                return m.put(key, value);
+            }
+
+            public Object remove(String key) {
+                return m.remove(key);
+            }
+        };
+    }
+
+    // 按装填顺序依次取key：SEQUENTIAL为顺序访问，RANDOM为随机访问
+    private String nextKey() {
+        String key = keys[next];
+        if (++next == Size) next = 0;
+        return key;
+    }
+
+    @Benchmark
+    public Object get() {
+        return map.get(nextKey());
+    }
+
+    @Benchmark
+    public Object update() {
+        return map.put(nextKey(), Boolean.TRUE);
+    }
+
+    // 先删后插，树的大小保持不变，覆盖结点合并与分裂
+    @Benchmark
+    public Object removeAndPut() {
+        String key = nextKey();
+        map.remove(key);
+        return map.put(key, key);
+    }
+
+    // 从空树开始逐个插入所有key，吞吐量按单次插入计
+    @Benchmark
+    @OperationsPerInvocation(Size)
+    public Object fill() {
+        Ops m = newOps(impl, latencyStats);
+        for (String key : keys) m.put(key, key);
+        return m;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(BTreeBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,90 @@
+package com.fzk.bplus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * String key与byte[] key的get对比，key共享长前缀，结点内都有前缀压缩
+ * byte[]的每次get都要先构造一个String，加-prof gc可看到多出的分配
+ * 也用来比较BNode.compareSuffix的逐字符比较与先substring再compareTo，后者并不更快且每个结点多分配一个String
+ * <p>
+ * 运行：mvn -P jmh clean package && java -jar target/benchmarks.jar ByteKeyBenchmark -prof gc
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteKeyBenchmark {
+    static final int Probes = 1024;
+
+    // 1000个key时整棵树都在缓存里，主要是比较的开销；百万key时主要是缓存未命中
+    @Param({"1000", "1000000"})
+    public int size;
+
+    // 所有key共享的前缀，空串即无前缀压缩
+    @Param({"", "tenant-0042:region-cn-east:user:"})
+    public String prefix;
+
+    private BTree tree;
+    private String[] stringProbes;
+    private byte[][] byteProbes;
+
+    @Setup
+    public void setup() {
+        tree = new BTree(64);
+        for (int i = 0; i < size; i++) tree.put(prefix + String.format("%010d", i * 2), i);
+        Random random = new Random(42);
+        stringProbes = new String[Probes];
+        byteProbes = new byte[Probes][];
+        for (int i = 0; i < Probes; i++) {
+            stringProbes[i] = prefix + String.format("%010d", random.nextInt(size * 2));// 一半不存在
+            byteProbes[i] = stringProbes[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Probes)
+    public int getString() {
+        int hits = 0;
+        for (String key : stringProbes) if (tree.get(key) != null) hits++;
+        return hits;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Probes)
+    public int getBytes() {
+        int hits = 0;
+        for (byte[] key : byteProbes) if (tree.get(key) != null) hits++;
+        return hits;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ByteKeyBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
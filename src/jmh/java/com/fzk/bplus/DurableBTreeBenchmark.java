@@ -0,0 +1,89 @@
+package com.fzk.bplus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DurableBTree各刷盘模式的并发写入吞吐：16个线程同时put，不做检查点
+ * mode参数为"刷盘模式:组提交窗口毫秒"
+ * <p>
+ * 运行：mvn -P jmh clean package && java -jar target/benchmarks.jar DurableBTreeBenchmark
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Threads(16)
+@Fork(1)
+public class DurableBTreeBenchmark {
+    @Param({"PER_OP:0", "GROUP_COMMIT:0", "GROUP_COMMIT:1", "ASYNC:10"})
+    public String mode;
+
+    private Path dir;
+    private DurableBTree tree;
+    private final AtomicInteger threadIds = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String[] parts = mode.split(":");
+        dir = Files.createTempDirectory("durable_btree");
+        tree = new DurableBTree(dir, 64, BTreeWal.SyncMode.valueOf(parts[0]),
+                Long.parseLong(parts[1]), TimeUnit.MILLISECONDS, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tree.close();
+        try (var files = Files.list(dir)) {
+            for (Path p : files.toList()) Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+
+    // 每个线程写自己的key，互不覆盖
+    @State(Scope.Thread)
+    public static class KeyState {
+        int id = -1;
+        int next;
+    }
+
+    @Benchmark
+    public void put(KeyState keys) throws IOException {
+        if (keys.id < 0) keys.id = threadIds.getAndIncrement();
+        int i = keys.next++;
+        tree.put(keys.id + ":" + i, i);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(DurableBTreeBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
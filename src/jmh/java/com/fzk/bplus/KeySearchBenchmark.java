@@ -0,0 +1,136 @@
+package com.fzk.bplus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LongBTree、IntBTree结点内查找的基准测试：标量二分查找与Vector API查找对比
+ * 每次调用查找一批随机key，key有一半不存在，避免分支预测记住查找路径
+ * 另有LongBTree.get的整树对比，通过-Dbtree.simd切换实现
+ * <p>
+ * 运行：mvn -P jmh clean package && java -jar target/benchmarks.jar KeySearchBenchmark
+ * 整树标量对比：java -jar target/benchmarks.jar KeySearchBenchmark.treeGet -jvmArgsAppend -Dbtree.simd=false
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class KeySearchBenchmark {
+    static final int Probes = 1024;
+
+    // 结点的阶，即结点内key数量
+    @Param({"64", "128", "256"})
+    public int order;
+
+    private long[] longKeys;
+    private int[] intKeys;
+    private long[] longProbes;
+    private int[] intProbes;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        longKeys = new long[order];
+        intKeys = new int[order];
+        for (int i = 0; i < order; i++) {
+            longKeys[i] = i * 2L;// 偶数存在，奇数不存在
+            intKeys[i] = i * 2;
+        }
+        longProbes = new long[Probes];
+        intProbes = new int[Probes];
+        for (int i = 0; i < Probes; i++) {
+            intProbes[i] = random.nextInt(order * 2);
+            longProbes[i] = intProbes[i];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Probes)
+    public int longScalar() {
+        int sum = 0;
+        for (long key : longProbes) sum += KeySearch.scalarSearch(longKeys, order, key);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Probes)
+    public int longVector() {
+        int sum = 0;
+        for (long key : longProbes) sum += VectorKeySearch.search(longKeys, order, key);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Probes)
+    public int intScalar() {
+        int sum = 0;
+        for (int key : intProbes) sum += KeySearch.scalarSearch(intKeys, order, key);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Probes)
+    public int intVector() {
+        int sum = 0;
+        for (int key : intProbes) sum += VectorKeySearch.search(intKeys, order, key);
+        return sum;
+    }
+
+    /**
+     * 整棵LongBTree的随机get，查找实现由KeySearch选择，加-jvmArgsAppend -Dbtree.simd=false即为标量查找
+     */
+    @State(Scope.Benchmark)
+    public static class TreeState {
+        @Param({"64", "128", "256"})
+        public int order;
+
+        LongBTree tree;
+        long[] probes;
+
+        @Setup
+        public void setup() {
+            tree = new LongBTree(order);
+            for (int i = 0; i < 1_000_000; i++) tree.put(i * 2L, i);
+            Random random = new Random(42);
+            probes = new long[Probes];
+            for (int i = 0; i < Probes; i++) probes[i] = random.nextInt(2_000_000);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Probes)
+    public long treeGet(TreeState state) {
+        long sum = 0;
+        for (long key : state.probes) sum += state.tree.get(key);
+        return sum;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(KeySearchBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
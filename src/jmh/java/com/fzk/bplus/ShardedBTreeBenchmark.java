@@ -0,0 +1,82 @@
+package com.fzk.bplus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 多线程写入吞吐：单棵BTree与分片BTree对比，线程数等于CPU数，分片数与线程数相同
+ * skewed：所有key都落在第一个分片，依靠重新平衡扩散到其它分片
+ * <p>
+ * 运行：mvn -P jmh clean package && java -jar target/benchmarks.jar ShardedBTreeBenchmark
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class ShardedBTreeBenchmark {
+    @Param({"single", "sharded", "skewed"})
+    public String impl;
+
+    private Consumer<String> put;
+
+    // 每轮迭代重建，避免树越写越大
+    @Setup(Level.Iteration)
+    public void setup() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        String[] splitKeys = new String[threads - 1];
+        for (int i = 1; i < threads; i++) splitKeys[i - 1] = String.format("%04d", i * 10000 / threads);
+        switch (impl) {
+            case "single" -> {
+                BTree tree = new BTree(64);
+                put = key -> tree.put(key, key);
+            }
+            case "sharded" -> {
+                ShardedBTree tree = new ShardedBTree(64, splitKeys);
+                put = key -> tree.put(key, key);
+            }
+            case "skewed" -> {
+                ShardedBTree tree = new ShardedBTree(64, splitKeys);
+                put = key -> tree.put("0000" + key, key);
+            }
+            default -> throw new RuntimeException("未知实现: " + impl);
+        }
+    }
+
+    @Benchmark
+    public void put() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        put.accept(String.format("%04d%08d", random.nextInt(10000), random.nextInt(100_000_000)));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ShardedBTreeBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,72 @@
+package com.fzk.log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 获取日志调用位置的开销：Thread.getStackTrace与StackWalker对比，以及关闭调用位置时的基线
+ * 业务代码的调用栈通常有几十层(框架、拦截器、代理)，用递归垫高调用栈模拟，getStackTrace的开销随栈深线性增长
+ * <p>
+ * 运行：mvn -P jmh clean package && java -jar target/benchmarks.jar CallerCaptureBenchmark -prof gc
+ *
+ * @author fzk
+ * @datetime 2023-02-09 11:28:31
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallerCaptureBenchmark {
+    // 在JMH自身的调用栈之上额外垫高的层数
+    @Param({"0", "50", "200"})
+    public int extraFrames;
+
+    // 改动前的实现：生成整个调用栈再取一帧
+    @Benchmark
+    public StackTraceElement getStackTrace() {
+        return deep(extraFrames, 0);
+    }
+
+    @Benchmark
+    public StackTraceElement stackWalker() {
+        return deep(extraFrames, 1);
+    }
+
+    // 关闭调用位置：只剩一次数组查找
+    @Benchmark
+    public StackTraceElement disabled() {
+        return deep(extraFrames, 2);
+    }
+
+    private static final boolean[] Capture = {true, true, false};
+
+    private static StackTraceElement deep(int frames, int mode) {
+        if (frames > 0) return deep(frames - 1, mode);
+        if (!Capture[mode]) return null;
+        // 两者下标0都是自身，取同一帧
+        return mode == 0 ? Thread.currentThread().getStackTrace()[4] : LogRecord.callerOf(4);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CallerCaptureBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -1,10 +1,18 @@
 package com.fzk.bplus;
 
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Queue;
 
 /**
  * B+树结点接口
+ * <p>
+ * key前缀压缩：结点内所有key的公共前缀只保存一份在prefix中，BEntry.key只保存去掉前缀后的后缀，
+ * 像tenant:region:user:xxx这种共享长前缀的key，每个结点可以省下大量重复字节
+ * 所有key都有相同前缀，所以后缀的顺序就是完整key的顺序；查找时先比较一次前缀，再只比较后缀，无需拼接
+ * 前缀在页分裂、批量构建时变长，插入不匹配前缀的key时变短并重新编码后缀
+ * 读取完整key请用keyAt，不要直接读BEntry.key
  *
  * @author fzk
  * @datetime 2023-01-14 23:53:45
@@ -13,6 +21,7 @@ public abstract class BNode {
     public int size = 0;// key的数量
     private static final int BinarySearchThreshold = 8;// 二分查找阈值，数组较小时遍历平均情况下会比较次数更少
     public BEntry[] entries;
+    public String prefix = "";// 结点内所有key的公共前缀，entries中保存的是后缀
     public BNode parentNode;
     /**
      * 理论上来说，B+树只有叶子节点需要维护双向链表
@@ -20,13 +29,123 @@ public abstract class BNode {
      */
     public BNode preNode;
     public BNode nextNode;
+    /**
+     * 乐观锁耦合(OLC)的结点版本号：偶数表示未锁定，奇数表示写者正在修改此结点
+     * 读者不加锁，读取前后对比版本号，不一致则从root重试
+     * 写者之间已由BTree的写锁互斥，因此这里加解锁只需自增版本号，无需CAS
+     */
+    private volatile long version = 0;
+    long epoch;// 创建此结点时树的版本，版本不大于最近快照的结点可能被快照共享，修改前需复制
+
+    // 读者：自旋等待结点未被锁定，返回当前版本号
+    long stableVersion() {
+        long v;
+        while (((v = version) & 1) == 1) {
+            Thread.onSpinWait();
+        }
+        return v;
+    }
+
+    // 读者：校验从拿到版本号v到现在，结点未被修改
+    boolean validate(long v) {
+        VarHandle.acquireFence();// 保证之前读取的结点数据不会重排到版本号读取之后
+        return version == v;
+    }
+
+    // 写者：锁定结点，之后的修改对读者不可见直到unlatch
+    void latch() {
+        assert (version & 1) == 0 : "结点重复锁定";
+        version++;
+        VarHandle.storeStoreFence();// 保证版本号先于结点数据修改可见
+    }
+
+    // 写者：解锁结点，版本号变为新的偶数
+    void unlatch() {
+        assert (version & 1) == 1 : "结点未锁定却解锁";
+        version++;
+    }
 
     public String getMinKey() {
-        return entries[0].key;
+        return keyAt(0);
     }
 
     public String getMaxKey() {
-        return entries[size - 1].key;
+        return keyAt(size - 1);
+    }
+
+    // 第i个完整key，有前缀时需要拼接
+    public String keyAt(int i) {
+        String p = prefix;
+        return p.isEmpty() ? entries[i].key : p.concat(entries[i].key);
+    }
+
+    // key与第i个key比较，不拼接字符串
+    public int compareKeyAt(String key, int i) {
+        String p = prefix;// 乐观读时前缀可能被并发修改，只读一次
+        if (p.isEmpty()) return key.compareTo(entries[i].key);
+        if (!key.startsWith(p)) return key.compareTo(p);
+        return compareSuffix(key, p.length(), entries[i].key);
+    }
+
+    // key从offset开始的部分与suffix按字典序比较
+    // 这里是逐字符比较，不是String.compareTo的内建比较；去掉公共前缀后后缀通常只有几个字符且很快出现不同，
+    // 先substring再compareTo并不更快，反而每个结点分配一个String，见ByteKeyBenchmark
+    private static int compareSuffix(String key, int offset, String suffix) {
+        int len1 = key.length() - offset, len2 = suffix.length();
+        int lim = Math.min(len1, len2);
+        for (int i = 0; i < lim; i++) {
+            char c1 = key.charAt(offset + i), c2 = suffix.charAt(i);
+            if (c1 != c2) return c1 - c2;
+        }
+        return len1 - len2;
+    }
+
+    static int commonPrefixLength(String a, String b) {
+        int lim = Math.min(a.length(), b.length()), i = 0;
+        while (i < lim && a.charAt(i) == b.charAt(i)) i++;
+        return i;
+    }
+
+    // 前缀缩短为前newLen个字符，多出来的部分补回每个后缀
+    void shrinkPrefix(int newLen) {
+        if (newLen >= prefix.length()) return;
+        String extra = prefix.substring(newLen);
+        for (int i = 0; i < size; i++) {
+            entries[i].key = extra.concat(entries[i].key);
+        }
+        prefix = prefix.substring(0, newLen);
+    }
+
+    // 重新计算前缀：有序key的公共前缀即首尾两个key的公共前缀，变长时截短每个后缀
+    void compactPrefix() {
+        if (size == 0) {
+            prefix = "";
+            return;
+        }
+        int extraLen = commonPrefixLength(entries[0].key, entries[size - 1].key);
+        if (extraLen == 0) return;
+        prefix = prefix.concat(entries[0].key.substring(0, extraLen));
+        for (int i = 0; i < size; i++) {
+            entries[i].key = entries[i].key.substring(extraLen);
+        }
+    }
+
+    // 设置第i个key，不匹配前缀时先缩短前缀
+    void setKeyAt(int i, String key) {
+        if (!key.startsWith(prefix)) shrinkPrefix(commonPrefixLength(prefix, key));
+        entries[i].key = key.substring(prefix.length());
+    }
+
+    // 将right结点的entry追加到本结点，两者前缀不同时统一为公共前缀
+    void appendEntries(BNode right) {
+        shrinkPrefix(commonPrefixLength(prefix, right.prefix));
+        String extra = right.prefix.substring(prefix.length());
+        for (int i = 0; i < right.size; i++) {
+            BEntry e = right.entries[i];
+            if (!extra.isEmpty()) e.key = extra.concat(e.key);
+            entries[size + i] = e;
+        }
+        size += right.size;
     }
 
     public boolean isFull() {
@@ -34,43 +153,81 @@ public abstract class BNode {
     }
 
     public boolean isExists(String key) {
-        return searchKeyIndex(key).exists;
+        return searchKeyIndex(key) >= 0;
     }
 
-    // 查找key的索引，不存在返回-1
-    public SearchKeyResult searchKeyIndex(String key) {
-        if (size <= 0) return new SearchKeyResult(false, 0);
+    /**
+     * 查找key的索引，返回基本类型以免每次查找都分配对象
+     *
+     * @return key存在时返回其索引，不存在时返回-(应该插入的位置+1)，用insertionPoint还原插入位置
+     */
+    public int searchKeyIndex(String key) {
+        if (size <= 0) return -1;
+        String p = prefix;// 乐观读时前缀可能被并发修改，只读一次
+        int prefixLen = p.length();
+        // 不匹配前缀则比所有key都小或都大
+        if (prefixLen > 0 && !key.startsWith(p)) return key.compareTo(p) < 0 ? -1 : -(size + 1);
         if (size >= BinarySearchThreshold) {
             int left = 0, right = size - 1;
             while (left <= right) {
                 int mid = (left + right) >> 1;
-                int cmp = key.compareTo(entries[mid].key);
+                int cmp = prefixLen == 0 ? key.compareTo(entries[mid].key) : compareSuffix(key, prefixLen, entries[mid].key);
                 if (cmp < 0) right = mid - 1;
-                else if (cmp == 0) return new SearchKeyResult(true, mid);
+                else if (cmp == 0) return mid;
                 else left = mid + 1;
             }
-            return new SearchKeyResult(false, left);
+            return -(left + 1);
         } else {
             // 遍历
             for (int i = 0; i < size; i++) {
-                int cmp = key.compareTo(entries[i].key);
+                int cmp = prefixLen == 0 ? key.compareTo(entries[i].key) : compareSuffix(key, prefixLen, entries[i].key);
                 if (cmp == 0) {
-                    return new SearchKeyResult(true, i);
+                    return i;
                 } else if (cmp < 0) {
-                    return new SearchKeyResult(false, i);
+                    return -(i + 1);
                 }
             }
-            return new SearchKeyResult(false, size);
+            return -(size + 1);
         }
     }
 
+    /**
+     * 从from处向后指数查找key，用于升序的批量操作：相邻的key通常只需比较一两次
+     * key小于from处的key时退化为普通查找
+     */
+    public int searchKeyIndexFrom(String key, int from) {
+        if (from <= 0 || from >= size || compareKeyAt(key, from) < 0) return searchKeyIndex(key);
+        // 此时key>=from处的key，倍增步长直到越过key
+        int left = from, bound = 1;
+        while (left + bound < size && compareKeyAt(key, left + bound) >= 0) {
+            left += bound;
+            bound <<= 1;
+        }
+        int right = Math.min(left + bound, size) - 1;
+        while (left <= right) {
+            int mid = (left + right) >> 1;
+            int cmp = compareKeyAt(key, mid);
+            if (cmp < 0) right = mid - 1;
+            else if (cmp == 0) return mid;
+            else left = mid + 1;
+        }
+        return -(left + 1);
+    }
+
+    // searchKeyIndex的返回值还原为key的位置：存在时为其索引，不存在时为应该插入的位置
+    static int insertionPoint(int searchResult) {
+        return searchResult >= 0 ? searchResult : -(searchResult + 1);
+    }
+
     // 更新key的value，必须已经存在
     public Object update(String key, Object newVal) {
-        SearchKeyResult keyResult = searchKeyIndex(key);
-        if (!keyResult.exists)
+        int index = searchKeyIndex(key);
+        if (index < 0)
             throw new RuntimeException(String.format("更新key: %s的value时在待替换结点中未找到该key", key));
-        Object old = entries[keyResult.index].value;
-        entries[keyResult.index].value = newVal;
+        Object old = entries[index].value;
+        latch();
+        entries[index].value = newVal;// 原地修改BEntry，不分配新对象
+        unlatch();
         // 如果插入的value是结点，则必须维护父子结点关系
         if (newVal instanceof BNode vn) {
             vn.parentNode = this;
@@ -87,31 +244,51 @@ public abstract class BNode {
     void dfsUpdateMinKey(String newMinKey, String oldMinKey) {
         BNode p = this.parentNode;
         while (p != null) {
-            SearchKeyResult keyResult = p.searchKeyIndex(oldMinKey);
-            assert keyResult.exists : String.format("min key为%s的结点的父节点中没找到该key", oldMinKey);
+            int index = p.searchKeyIndex(oldMinKey);
+            assert index >= 0 : String.format("min key为%s的结点的父节点中没找到该key", oldMinKey);
 
-            p.entries[keyResult.index].key = newMinKey;
+            p.latch();
+            p.setKeyAt(index, newMinKey);
+            p.unlatch();
             // 在父节点中也是min key，循环向上修改
-            if (keyResult.index == 0) p = p.parentNode;
+            if (index == 0) p = p.parentNode;
             else break;// 父节点中不是minKey，修改到此结束
         }
     }
 
     // 插入key
     public void insert(String key, Object value) {
+        insert(key, value, null);
+    }
+
+    /**
+     * 插入key
+     *
+     * @param reuse 可复用的空闲BEntry，null则新建
+     */
+    public void insert(String key, Object value, BEntry reuse) {
         // 如果插入key比当前结点minKey都小，则需要循环维护指向此节点的父节点的key（指向此节点的key必须是结点最小key）
-        if (this.size > 0 && key.compareTo(getMinKey()) < 0 && this.parentNode != null) {
+        if (this.size > 0 && compareKeyAt(key, 0) < 0 && this.parentNode != null) {
             dfsUpdateMinKey(key, getMinKey());
         }
 
         // 插入排序咯
+        latch();
+        if (!key.startsWith(prefix)) shrinkPrefix(commonPrefixLength(prefix, key));
+        String suffix = key.substring(prefix.length());
         int i = size;// 待插入索引
-        while (i > 0 && key.compareTo(entries[i - 1].key) < 0) {
+        while (i > 0 && suffix.compareTo(entries[i - 1].key) < 0) {
             entries[i] = entries[i - 1];
             i--;
         }
-        entries[i] = new BEntry(key, value);
+        if (reuse == null) entries[i] = new BEntry(suffix, value);
+        else {
+            reuse.key = suffix;
+            reuse.value = value;
+            entries[i] = reuse;
+        }
         size++;
+        unlatch();
         // 如果插入的value是结点，则必须维护父子结点关系
         if (value instanceof BNode vn) {
             vn.parentNode = this;
@@ -123,16 +300,29 @@ public abstract class BNode {
         StringBuilder sb = new StringBuilder();
         sb.append('{');
         for (int i = 0; i < size; i++) {
-            sb.append(entries[i].key).append(", ");
+            sb.append(keyAt(i)).append(", ");
         }
         sb.delete(sb.length() - 2, sb.length());
         sb.append('}');
         return sb.toString();
     }
 
+    // 清空结点以便放回结点池复用，保留entries数组；版本号不重置，持有此结点的乐观读者校验必然失败
+    // 注意：结点可能仍被乐观读者持有，调用方需先latch
+    void reset() {
+        Arrays.fill(entries, 0, size, null);
+        size = 0;
+        prefix = "";
+        parentNode = null;
+        preNode = null;
+        nextNode = null;
+    }
+
+    // 注意：结点可能仍被乐观读者持有，调用方需先latch
     public void clear() {
         size = 0;
         entries = null;// 置空避免内存泄露
+        prefix = "";
         parentNode = null;
         preNode = null;
         nextNode = null;
@@ -140,7 +330,7 @@ public abstract class BNode {
 
     // 每个结点维护一组键值映射
     public static class BEntry {
-        public String key;
+        public String key;// 结点中保存的是去掉结点前缀后的后缀
         public Object value;// 在叶子结点中为保存的值，在非叶子结点中保存为该key指向的childNode
 
         public BEntry(String key, Object value) {
@@ -149,16 +339,6 @@ public abstract class BNode {
         }
     }
 
-    public static class SearchKeyResult {
-        public boolean exists;// key是否存在
-        public int index;// key存在时的索引，或不存在时应该插入的位置
-
-        public SearchKeyResult(boolean exists, int index) {
-            this.exists = exists;
-            this.index = index;
-        }
-    }
-
     public void checkSelf() {
         if (this.size == 0) return;
         // 1.先检查size正确
@@ -169,12 +349,12 @@ public abstract class BNode {
         }
         for (int i = size; i < entries.length; i++) {
             if (entries[i] != null) {
-                throw new RuntimeException(String.format("index: %d --> %s 必须为null, %s", i, entries[i].key, getKeysString()));
+                throw new RuntimeException(String.format("index: %d --> %s 必须为null, %s", i, prefix + entries[i].key, getKeysString()));
             }
         }
         // 2.检查key顺序正确
         for (int i = 1; i < size; i++) {
-            if (entries[i - 1].key.compareTo(entries[i].key) >= 0) {
+            if (keyAt(i - 1).compareTo(keyAt(i)) >= 0) {
                 throw new RuntimeException(String.format("index: %d的key>=其后的key, %s", i - 1, getKeysString()));
             }
         }
@@ -196,8 +376,8 @@ public abstract class BNode {
                 System.out.print(" |");
                 for (int i = 0; i < remove.size; i++) {
                     if (i == remove.size - 1)
-                        System.out.printf("%s", remove.entries[i].key);
-                    else System.out.printf("%s ", remove.entries[i].key);
+                        System.out.printf("%s", remove.keyAt(i));
+                    else System.out.printf("%s ", remove.keyAt(i));
                     if (remove.entries[i].value instanceof BNode) {
                         queue.add((BNode) remove.entries[i].value);
                     }
@@ -2,20 +2,66 @@ package com.fzk.bplus;
 
 import com.fzk.util.MyRandomUtil;
 
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author fzk
  * @datetime 2023-01-16 00:13:01
  */
 public class BTest {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         BTest t = new BTest();
         for (int i = 0; i < 100; i++) {
             t.test1();
         }
         t.test3();
+        t.testConcurrentRead();
+        t.testScan();
+        t.testBulkLoad();
+        t.testPrefixKeys();
+        t.testBytesKeys();
+        t.testBatch();
+        t.testSnapshot();
+        t.testSplitPoint();
+        t.testDeferredMerge();
+        t.testBloomFilter();
+        t.testStats();
+        t.testBTreeMap();
+        t.testShardedTree();
+        t.testIndexedTable();
+        t.testKeySearch();
+        t.testPrimitiveTree();
+        t.testPagedTree();
+        t.testBufferPool();
+        t.testPersistence();
+        t.testDurableTree();
     }
 
     // 测试字符串随机插入和随机删除
@@ -83,4 +129,1089 @@ public class BTest {
             b.checkTree();
         }
     }
+
+    // 测试乐观读：多个读线程无锁读取的同时，写线程不断插入删除触发页分裂与合并
+    void testConcurrentRead() {
+        BTree b = new BTree(8);
+        // 固定key始终存在，读者必须总能读到正确值；churn key被写者反复插入删除
+        for (int i = 0; i < 10000; i += 2) {
+            String key = String.format("%05d", i);
+            b.put(key, key);
+        }
+        int readerCount = 8;
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong reads = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(readerCount);
+        ArrayList<String> errors = new ArrayList<>();
+        for (int r = 0; r < readerCount; r++) {
+            boolean scanner = r == 0;// 一个线程做范围查询：key必须严格递增且固定key不能缺失
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long n = 0;
+                while (scanner && !stop.get()) {
+                    int expectEven = 0;
+                    String pre = null;
+                    for (BTree.Cursor it = b.scan(null, null); it.hasNext(); n++) {
+                        String key = it.next().key;
+                        if (pre != null && pre.compareTo(key) >= 0 || Integer.parseInt(key) > expectEven) {
+                            synchronized (errors) {
+                                errors.add("scan: " + pre + "-->" + key);
+                            }
+                        }
+                        if (Integer.parseInt(key) == expectEven) expectEven += 2;
+                        pre = key;
+                    }
+                }
+                while (!stop.get()) {
+                    int i = random.nextInt(10000);
+                    String key = String.format("%05d", i);
+                    Object value = b.get(key);
+                    if ((i & 1) == 0 && !key.equals(value) || (i & 1) == 1 && value != null && !key.equals(value)) {
+                        synchronized (errors) {
+                            errors.add(key + "-->" + value);
+                        }
+                    }
+                    n++;
+                }
+                reads.addAndGet(n);
+                done.countDown();
+            }).start();
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 1; i < 10000; i += 2) {
+                String key = String.format("%05d", i);
+                b.put(key, key);
+            }
+            for (int i = 1; i < 10000; i += 2) {
+                if (random.nextBoolean()) b.remove(String.format("%05d", i));
+            }
+        }
+        stop.set(true);
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        b.checkTree();
+        if (!errors.isEmpty()) throw new RuntimeException("乐观读读到错误值: " + errors.subList(0, Math.min(10, errors.size())));
+        System.out.println("并发读测试通过，读次数: " + reads.get());
+    }
+
+    // 测试范围查询与游标：结果与TreeMap对比
+    void testScan() {
+        BTree b = new BTree(5);
+        TreeMap<String, Object> expect = new TreeMap<>();
+        for (int i = 0; i < 2000; i++) {
+            String key = MyRandomUtil.randomLowerStr(3);
+            b.put(key, i);
+            expect.put(key, i);
+        }
+        for (int i = 0; i < 200; i++) {
+            String from = MyRandomUtil.randomLowerStr(2), to = MyRandomUtil.randomLowerStr(2);
+            if (from.compareTo(to) > 0) {
+                String tmp = from;
+                from = to;
+                to = tmp;
+            }
+            checkScan(b.scan(from, to), expect.subMap(from, true, to, false));
+            checkScan(b.scanDescending(from, to), expect.subMap(from, true, to, false).descendingMap());
+            checkScan(b.scanPrefix(from.substring(0, 1)), expect.subMap(from.substring(0, 1), true, BTree.prefixUpperBound(from.substring(0, 1)), false));
+        }
+        checkScan(b.scan(null, null), expect);
+        checkScan(b.scanDescending(null, null), expect.descendingMap());
+
+        // 游标恢复：遍历到一半后从seek处继续
+        BTree.Cursor cursor = b.cursor(null);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 100 && cursor.hasNext(); i++) keys.add(cursor.next().key);
+        String last = keys.get(keys.size() - 1);
+        cursor = b.cursor(null);
+        cursor.seek(last);
+        if (!cursor.next().key.equals(last)) throw new RuntimeException("游标seek后位置错误");
+        checkScan(cursor, expect.tailMap(last, false));
+        System.out.println("范围查询测试通过");
+    }
+
+    private void checkScan(Iterator<BNode.BEntry> it, NavigableMap<String, Object> expect) {
+        for (var e : expect.entrySet()) {
+            if (!it.hasNext()) throw new RuntimeException("范围查询缺少key: " + e.getKey());
+            BNode.BEntry entry = it.next();
+            if (!entry.key.equals(e.getKey()) || !entry.value.equals(e.getValue())) {
+                throw new RuntimeException(String.format("范围查询期望%s, 实际%s", e.getKey(), entry.key));
+            }
+        }
+        if (it.hasNext()) throw new RuntimeException("范围查询多出key: " + it.next().key);
+    }
+
+    // 测试批量构建：不同数量和填充因子下树结构正常，且构建后可以继续增删
+    void testBulkLoad() {
+        for (int n : new int[]{0, 1, 3, 4, 5, 17, 100, 1000, 12345}) {
+            for (double fillFactor : new double[]{0.5, 0.7, 1}) {
+                BTree.BulkLoader loader = new BTree.BulkLoader(4 + n % 7, fillFactor);
+                TreeMap<String, Object> expect = new TreeMap<>();
+                for (int i = 0; i < n; i++) expect.put(String.format("%06d", i * 3), i);
+                expect.forEach(loader::add);
+                BTree b = loader.build();
+                b.checkTree();
+                checkScan(b.scan(null, null), expect);
+                for (int i = 0; i < n * 3; i++) {
+                    String key = String.format("%06d", i);
+                    if (i % 2 == 0) {
+                        b.put(key, i);
+                        expect.put(key, i);
+                    } else if (b.remove(key) == null == expect.containsKey(key)) {
+                        throw new RuntimeException("批量构建后删除结果错误: " + key);
+                    } else expect.remove(key);
+                }
+                b.checkTree();
+                checkScan(b.scan(null, null), expect);
+            }
+        }
+        System.out.println("批量构建测试通过");
+    }
+
+    // 测试共享长前缀的key：结点前缀压缩在插入、分裂、合并、批量构建后都能正确还原key
+    void testPrefixKeys() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String[] tenants = {"tenant-0001:cn-north:user:", "tenant-0001:cn-south:user:", "tenant-0002:us-east:order:"};
+        for (int m : new int[]{4, 7, 16, 64}) {
+            BTree b = new BTree(m);
+            TreeMap<String, Object> expect = new TreeMap<>();
+            for (int i = 0; i < 5000; i++) {
+                String key = tenants[random.nextInt(tenants.length)] + random.nextInt(2000);
+                if (random.nextInt(3) > 0) {
+                    b.put(key, i);
+                    expect.put(key, i);
+                } else if (b.remove(key) == null == expect.containsKey(key)) {
+                    throw new RuntimeException("前缀压缩后删除结果错误: " + key);
+                } else expect.remove(key);
+                // 偶尔插入不共享前缀的key，迫使结点缩短前缀
+                if (i % 500 == 0) {
+                    b.put("a" + i, i);
+                    expect.put("a" + i, i);
+                }
+            }
+            b.checkTree();
+            checkScan(b.scan(null, null), expect);
+            checkScan(b.scanPrefix(tenants[1]), expect.subMap(tenants[1], true, BTree.prefixUpperBound(tenants[1]), false));
+            expect.forEach((k, v) -> {
+                if (!v.equals(b.get(k))) throw new RuntimeException("前缀压缩后查询结果错误: " + k);
+            });
+
+            BTree.BulkLoader loader = new BTree.BulkLoader(m, 1);
+            expect.forEach(loader::add);
+            BTree loaded = loader.build();
+            loaded.checkTree();
+            checkScan(loaded.scanDescending(null, null), expect.descendingMap());
+        }
+        System.out.println("前缀压缩测试通过");
+    }
+
+    // 测试二进制key：排序须与无符号字节字典序一致
+    void testBytesKeys() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        BTree b = new BTree(16);
+        TreeMap<byte[], Object> expect = new TreeMap<>(Arrays::compareUnsigned);
+        for (int i = 0; i < 5000; i++) {
+            byte[] key = new byte[1 + random.nextInt(6)];
+            random.nextBytes(key);
+            if (random.nextInt(4) > 0) {
+                b.put(key, i);
+                expect.put(key, i);
+            } else if (b.remove(key) == null == expect.containsKey(key)) {
+                throw new RuntimeException("二进制key删除结果错误: " + Arrays.toString(key));
+            } else expect.remove(key);
+        }
+        b.checkTree();
+        Iterator<BNode.BEntry> it = b.scanBytes(null, null);
+        for (Map.Entry<byte[], Object> e : expect.entrySet()) {
+            BNode.BEntry entry = it.next();
+            if (!Arrays.equals(BTree.keyBytes(entry.key), e.getKey()) || !entry.value.equals(b.get(e.getKey()))) {
+                throw new RuntimeException("二进制key顺序错误: " + Arrays.toString(e.getKey()));
+            }
+        }
+        if (it.hasNext()) throw new RuntimeException("二进制key范围查询多出key");
+        System.out.println("二进制key测试通过");
+    }
+
+    // 测试批量查询和批量插入，并与逐个操作对比耗时
+    void testBatch() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        BTree b = new BTree(64), single = new BTree(64);
+        TreeMap<String, Object> expect = new TreeMap<>();
+        long batchNanos = 0, singleNanos = 0;
+        for (int round = 0; round < 2000; round++) {
+            TreeMap<String, Object> batch = new TreeMap<>();
+            int base = random.nextInt(1_000_000);
+            for (int i = 0; i < 256; i++) batch.put(String.format("%08d", base + random.nextInt(20_000)), round);
+            long start = System.nanoTime();
+            b.putAll(batch);
+            Map<String, Object> got = b.getAll(batch.navigableKeySet());
+            batchNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            for (Map.Entry<String, Object> e : batch.entrySet()) single.put(e.getKey(), e.getValue());
+            for (String key : batch.keySet()) single.get(key);
+            singleNanos += System.nanoTime() - start;
+            expect.putAll(batch);
+            if (!got.equals(batch)) throw new RuntimeException("批量查询结果错误");
+        }
+        b.checkTree();
+        checkScan(b.scan(null, null), expect);
+        // 包含不存在的key以及非自然序的集合
+        TreeSet<String> keys = new TreeSet<>(Comparator.reverseOrder());
+        for (int i = 0; i < 1000; i++) keys.add(String.format("%08d", random.nextInt(1_100_000)));
+        Map<String, Object> got = b.getAll(keys);
+        for (String key : keys) {
+            if (!Objects.equals(got.get(key), expect.get(key))) throw new RuntimeException("批量查询结果错误: " + key);
+        }
+        System.out.printf("批量操作测试通过，批量耗时%dms，逐个耗时%dms\n", batchNanos / 1_000_000, singleNanos / 1_000_000);
+    }
+
+    // 测试快照：快照创建后的写入、页分裂与合并都不影响快照内容，且遍历快照时写者不被阻塞
+    void testSnapshot() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int m : new int[]{4, 16}) {
+            BTree b = new BTree(m);
+            TreeMap<String, Object> expect = new TreeMap<>();
+            List<BTree.Snapshot> snapshots = new ArrayList<>();
+            List<TreeMap<String, Object>> snapshotExpects = new ArrayList<>();
+            for (int round = 0; round < 20; round++) {
+                if (round % 3 == 2) {
+                    // 关闭最早的快照，之后不再为它复制结点
+                    snapshots.remove(0).close();
+                    snapshotExpects.remove(0);
+                }
+                snapshots.add(b.snapshot());
+                snapshotExpects.add(new TreeMap<>(expect));
+                for (int i = 0; i < 500; i++) {
+                    String key = String.format("%05d", random.nextInt(3000));
+                    if (random.nextInt(3) > 0) {
+                        b.put(key, round);
+                        expect.put(key, round);
+                    } else if (b.remove(key) == null == expect.containsKey(key)) {
+                        throw new RuntimeException("快照存在时删除结果错误: " + key);
+                    } else expect.remove(key);
+                }
+                b.checkTree();
+                checkScan(b.scan(null, null), expect);
+                for (int i = 0; i < snapshots.size(); i++) {
+                    BTree.Snapshot snapshot = snapshots.get(i);
+                    TreeMap<String, Object> snapshotExpect = snapshotExpects.get(i);
+                    checkScan(snapshot.scan(null, null), snapshotExpect);
+                    checkScan(snapshot.scan("01000", "02000"), snapshotExpect.subMap("01000", true, "02000", false));
+                    for (int j = 0; j < 100; j++) {
+                        String key = String.format("%05d", random.nextInt(3000));
+                        if (!Objects.equals(snapshot.get(key), snapshotExpect.get(key)))
+                            throw new RuntimeException("快照查询结果错误: " + key);
+                    }
+                }
+            }
+            snapshots.forEach(BTree.Snapshot::close);
+        }
+
+        // 并发：遍历快照的同时持续写入
+        BTree b = new BTree(32);
+        for (int i = 0; i < 50000; i++) b.put(String.format("%06d", i), i);
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            while (!stop.get()) {
+                String key = String.format("%06d", r.nextInt(60000));
+                if (r.nextBoolean()) b.put(key, -1);
+                else b.remove(key);
+            }
+        });
+        writer.start();
+        try {
+            for (int round = 0; round < 20; round++) {
+                try (BTree.Snapshot snapshot = b.snapshot()) {
+                    List<BNode.BEntry> first = new ArrayList<>();
+                    snapshot.scan(null, null).forEachRemaining(first::add);
+                    Iterator<BNode.BEntry> again = snapshot.scan(null, null);
+                    for (BNode.BEntry e : first) {
+                        BNode.BEntry e2 = again.next();
+                        if (!e.key.equals(e2.key) || e.value != e2.value)
+                            throw new RuntimeException("并发写入时快照内容发生变化: " + e.key);
+                    }
+                    if (again.hasNext()) throw new RuntimeException("并发写入时快照多出key");
+                }
+            }
+        } finally {
+            stop.set(true);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        b.checkTree();
+        System.out.println("快照测试通过");
+    }
+
+    // 测试分裂点选择：递增、递减插入时叶子结点接近填满，随机插入仍然正确
+    void testSplitPoint() {
+        int n = 100_000, m = 64;
+        BTree ascending = new BTree(m), descending = new BTree(m), random = new BTree(m);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < n; i++) keys.add(String.format("ts:%010d", i));
+        for (String key : keys) ascending.put(key, key);
+        for (int i = n - 1; i >= 0; i--) descending.put(keys.get(i), keys.get(i));
+        List<String> shuffled = new ArrayList<>(keys);
+        Collections.shuffle(shuffled);
+        for (String key : shuffled) random.put(key, key);
+        for (BTree b : new BTree[]{ascending, descending, random}) {
+            b.checkTree();
+            Iterator<BNode.BEntry> it = b.scan(null, null);
+            for (String key : keys) {
+                if (!it.next().key.equals(key)) throw new RuntimeException("分裂后顺序错误: " + key);
+            }
+        }
+        if (ascending.fillFactor() < 0.85 || descending.fillFactor() < 0.85)
+            throw new RuntimeException(String.format("顺序插入填充率过低: %.2f %.2f", ascending.fillFactor(), descending.fillFactor()));
+        System.out.printf("分裂点测试通过，填充率/结点数：递增%.2f/%d，递减%.2f/%d，随机%.2f/%d\n",
+                ascending.fillFactor(), ascending.nodeCount(), descending.fillFactor(), descending.nodeCount(),
+                random.fillFactor(), random.nodeCount());
+    }
+
+    // 测试延迟合并与范围删除：与TreeMap对比，快照存在时范围删除不影响快照，compact后结点数减少
+    void testDeferredMerge() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int m : new int[]{4, 5, 16}) {
+            for (int maxUnderfull : new int[]{-1, 0, 0, 50}) {
+                BTree b = new BTree(m);
+                if (maxUnderfull >= 0) b.deferMerge(maxUnderfull);
+                TreeMap<String, Object> expect = new TreeMap<>();
+                BTree.Snapshot snapshot = null;
+                TreeMap<String, Object> snapshotExpect = null;
+                for (int round = 0; round < 30; round++) {
+                    if (round == 10) {
+                        snapshot = b.snapshot();
+                        snapshotExpect = new TreeMap<>(expect);
+                    }
+                    for (int i = 0; i < 1000; i++) {
+                        String key = String.format("%05d", random.nextInt(20000));
+                        if (random.nextInt(3) > 0) checkEquals(b.put(key, i), expect.put(key, i));
+                        else checkEquals(b.remove(key), expect.remove(key));
+                    }
+                    String from = random.nextInt(10) == 0 ? null : String.format("%05d", random.nextInt(20000));
+                    String to = random.nextInt(10) == 0 ? null : String.format("%05d", random.nextInt(20000));
+                    if (from != null && to != null && from.compareTo(to) > 0) {
+                        String tmp = from;
+                        from = to;
+                        to = tmp;
+                    }
+                    NavigableMap<String, Object> range = from == null ? expect.headMap(to == null ? "99999" : to, false)
+                            : expect.subMap(from, true, to == null ? "99999" : to, false);
+                    checkEquals(b.removeRange(from, to), (long) range.size());
+                    range.clear();
+                    b.checkTree();
+                    checkScan(b.scan(null, null), expect);
+                }
+                if (snapshot != null) {
+                    checkScan(snapshot.scan(null, null), snapshotExpect);
+                    snapshot.close();
+                }
+                // 删除九成key后compact，延迟模式的结点数应明显减少
+                for (String key : new ArrayList<>(expect.keySet())) {
+                    if (random.nextInt(10) > 0) checkEquals(b.remove(key), expect.remove(key));
+                }
+                long before = b.nodeCount();
+                b.compact();
+                b.checkTree();
+                checkScan(b.scan(null, null), expect);
+                if (maxUnderfull == 0 && expect.size() > m * 4 && b.nodeCount() >= before)
+                    throw new RuntimeException(String.format("compact后结点数没有减少: %d --> %d", before, b.nodeCount()));
+                b.eagerMerge();
+                checkEquals(b.removeRange(null, null), (long) expect.size());
+                checkScan(b.scan(null, null), new TreeMap<>());
+            }
+        }
+        // 批量删除耗时对比：逐个删除(立即合并/延迟合并)与范围删除
+        int n = 1_000_000;
+        long[] cost = new long[3];
+        for (int mode = 0; mode < 3; mode++) {
+            BTree.BulkLoader loader = new BTree.BulkLoader(64, 0.7);
+            for (int i = 0; i < n; i++) loader.add(String.format("%08d", i), i);
+            BTree b = loader.build();
+            if (mode == 1) b.deferMerge(0);
+            long start = System.nanoTime();
+            if (mode == 2) b.removeRange("00000000", String.format("%08d", n * 9 / 10));
+            else for (int i = 0; i < n * 9 / 10; i++) b.remove(String.format("%08d", i));
+            b.compact();
+            cost[mode] = (System.nanoTime() - start) / 1_000_000;
+            b.checkTree();
+        }
+        System.out.printf("延迟合并测试通过，删除90万key耗时：立即合并%dms，延迟合并%dms，范围删除%dms\n", cost[0], cost[1], cost[2]);
+    }
+
+    // 测试布隆过滤器：结果与TreeMap一致，扩容重建期间并发读者不会漏掉已存在的key，不存在的key大部分被过滤
+    void testBloomFilter() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long maxBytes : new long[]{64, 1 << 20}) {
+            BTree b = new BTree(16);
+            b.enableBloomFilter(0.01, maxBytes);
+            TreeMap<String, Object> expect = new TreeMap<>();
+            for (int i = 0; i < 100000; i++) {
+                String key = String.format("%06d", random.nextInt(200000));
+                int op = random.nextInt(10);
+                if (op < 4) checkEquals(b.put(key, i), expect.put(key, i));
+                else if (op < 5) checkEquals(b.remove(key), expect.remove(key));
+                else if (op < 6) {
+                    String to = String.format("%06d", Integer.parseInt(key) + 100);
+                    NavigableMap<String, Object> range = expect.subMap(key, true, to, false);
+                    checkEquals(b.removeRange(key, to), (long) range.size());
+                    range.clear();
+                } else checkEquals(b.get(key), expect.get(key));
+            }
+            b.checkTree();
+            BTree.BloomStats stats = b.bloomStats();
+            if (maxBytes > 64 && (stats.savedDescents() == 0 || stats.falsePositiveRate() > 0.05))
+                throw new RuntimeException("布隆过滤器没有生效: " + stats);
+        }
+
+        // 偶数key始终存在，写者插入删除奇数key触发多次重建，读者必须总能读到偶数key
+        BTree b = new BTree(16);
+        for (int i = 0; i < 2000; i += 2) b.put(String.format("%06d", i), i);
+        b.enableBloomFilter(0.01, 1 << 20);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(2);
+        for (int r = 0; r < 2; r++) {
+            new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (!stop.get()) {
+                    int i = rnd.nextInt(1000) * 2;
+                    if (!Objects.equals(b.get(String.format("%06d", i)), i)) errors.incrementAndGet();
+                }
+                done.countDown();
+            }).start();
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 2001; i < 200000; i += 2) b.put(String.format("%06d", i), i);
+            for (int i = 2001; i < 200000; i += 2) b.remove(String.format("%06d", i));
+        }
+        stop.set(true);
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        if (errors.get() > 0) throw new RuntimeException("布隆过滤器重建期间漏掉了已存在的key: " + errors.get());
+
+        // 不存在的key的查询耗时对比
+        BTree.BulkLoader loader = new BTree.BulkLoader(64, 0.9);
+        for (int i = 0; i < 1_000_000; i++) loader.add(String.format("%08d", i * 2), i);
+        BTree tree = loader.build();
+        String[] misses = new String[1 << 16];
+        for (int i = 0; i < misses.length; i++) misses[i] = String.format("%08d", random.nextInt(1_000_000) * 2 + 1);
+        long[] cost = new long[2];
+        for (int round = 0; round < 4; round++) {
+            for (int mode = 0; mode < 2; mode++) {
+                if (mode == 1) tree.enableBloomFilter(0.01, 16 << 20);
+                else tree.disableBloomFilter();
+                long start = System.nanoTime();
+                for (int i = 0; i < 2_000_000; i++) tree.get(misses[i & (misses.length - 1)]);
+                cost[mode] = System.nanoTime() - start;
+            }
+        }
+        System.out.printf("布隆过滤器测试通过，不存在的key查询耗时：无过滤器%dns/op，有过滤器%dns/op，%s\n",
+                cost[0] / 2_000_000, cost[1] / 2_000_000, tree.bloomStats());
+    }
+
+    // 测试统计：结构信息与逐层遍历一致，各操作计数准确，MBean属性可读
+    void testStats() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        BTree b = new BTree(16);
+        long gets = 0, puts = 0, removes = 0;
+        for (int i = 0; i < 200000; i++) {
+            String key = String.format("%06d", random.nextInt(50000));
+            int op = random.nextInt(10);
+            if (op < 4) {
+                b.put(key, i);
+                puts++;
+            } else if (op < 6) {
+                b.remove(key);
+                removes++;
+            } else {
+                b.get(key);
+                gets++;
+            }
+        }
+        b.checkTree();
+        BTreeStats stats = b.stats();
+        if (stats.leafNodes() + stats.indexNodes() != b.nodeCount() || Math.abs(stats.fillFactor() - b.fillFactor()) > 1e-9)
+            throw new RuntimeException("结构统计错误: " + stats);
+        if (stats.get().count() != gets || stats.put().count() != puts || stats.remove().count() != removes)
+            throw new RuntimeException("操作计数错误: " + stats);
+        if (stats.splits() == 0 || stats.merges() == 0 || stats.minKeyUpdates() == 0)
+            throw new RuntimeException("分裂、合并、min key修改计数错误: " + stats);
+        for (BTreeStats.Latency latency : List.of(stats.get(), stats.put(), stats.remove())) {
+            if (latency.p50Nanos() > latency.p99Nanos() || latency.p99Nanos() > latency.p999Nanos() || latency.p999Nanos() > latency.maxNanos())
+                throw new RuntimeException("百分位数不单调: " + latency);
+        }
+        // 层高
+        BTree single = new BTree(16);
+        single.put("a", 1);
+        if (single.stats().height() != 1 || new BTree(16).stats().height() != 0)
+            throw new RuntimeException("层高统计错误");
+        for (int i = 0; i < 16 * 16; i++) single.put(String.format("%06d", i), i);
+        if (single.stats().height() != 3) throw new RuntimeException("层高统计错误: " + single.stats());
+
+        // 关闭延迟统计后计数不再增加
+        b.setLatencyStats(false);
+        for (int i = 0; i < 1000; i++) b.get(String.format("%06d", i));
+        if (b.stats().get().count() != gets) throw new RuntimeException("关闭延迟统计后仍在计数");
+        b.setLatencyStats(true);
+
+        // MBean
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = b.registerMBean("test");
+        try {
+            if (!Objects.equals(server.getAttribute(name, "Height"), stats.height())
+                    || !Objects.equals(server.getAttribute(name, "GetCount"), gets))
+                throw new RuntimeException("MBean属性错误");
+            for (String op : new String[]{"Get", "Put", "Remove"}) {
+                long p50 = (long) server.getAttribute(name, op + "P50Nanos"), p99 = (long) server.getAttribute(name, op + "P99Nanos"),
+                        p999 = (long) server.getAttribute(name, op + "P999Nanos"), max = (long) server.getAttribute(name, op + "MaxNanos");
+                if (p50 > p99 || p99 > p999 || p999 > max)
+                    throw new RuntimeException(String.format("MBean %s延迟分位数错误: p50=%d p99=%d p999=%d max=%d", op, p50, p99, p999, max));
+            }
+            server.setAttribute(name, new Attribute("LatencyStats", false));
+            if (b.isLatencyStats()) throw new RuntimeException("MBean关闭延迟统计失败");
+            server.invoke(name, "resetLatency", null, null);
+            if (b.stats().get().count() != 0) throw new RuntimeException("MBean重置延迟统计失败");
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        } finally {
+            b.unregisterMBean("test");
+        }
+
+        // 延迟统计的开销
+        BTree.BulkLoader loader = new BTree.BulkLoader(64, 0.9);
+        for (int i = 0; i < 1_000_000; i++) loader.add(String.format("%08d", i), i);
+        BTree tree = loader.build();
+        String[] keys = new String[1 << 16];
+        for (int i = 0; i < keys.length; i++) keys[i] = String.format("%08d", random.nextInt(1_000_000));
+        long[] cost = new long[2];
+        for (int round = 0; round < 4; round++) {
+            for (int mode = 0; mode < 2; mode++) {
+                tree.setLatencyStats(mode == 1);
+                long start = System.nanoTime();
+                for (int i = 0; i < 2_000_000; i++) tree.get(keys[i & (keys.length - 1)]);
+                cost[mode] = System.nanoTime() - start;
+            }
+        }
+        System.out.printf("统计测试通过，get耗时：关闭延迟统计%dns/op，开启%dns/op，%s\n",
+                cost[0] / 2_000_000, cost[1] / 2_000_000, tree.stats().get());
+    }
+
+    // 测试BTreeMap：随机操作及各种视图的结果与TreeMap一致
+    void testBTreeMap() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (Comparator<Integer> comparator : Arrays.<Comparator<Integer>>asList(null, Comparator.reverseOrder())) {
+            for (int m : new int[]{4, 5, 16, 64}) {
+                BTreeMap<Integer, Integer> b = new BTreeMap<>(m, comparator);
+                TreeMap<Integer, Integer> expect = new TreeMap<>(comparator);
+                for (int i = 0; i < 20000; i++) {
+                    int key = random.nextInt(2000);
+                    switch (random.nextInt(8)) {
+                        case 0, 1, 2 -> checkEquals(b.put(key, i), expect.put(key, i));
+                        case 3, 4 -> checkEquals(b.remove(key), expect.remove(key));
+                        case 5 -> {
+                            checkEquals(b.floorKey(key), expect.floorKey(key));
+                            checkEquals(b.ceilingEntry(key), expect.ceilingEntry(key));
+                            checkEquals(b.lowerEntry(key), expect.lowerEntry(key));
+                            checkEquals(b.higherKey(key), expect.higherKey(key));
+                        }
+                        case 6 -> {
+                            if (random.nextInt(100) == 0) checkEquals(b.pollFirstEntry(), expect.pollFirstEntry());
+                            checkEquals(b.firstEntry(), expect.firstEntry());
+                            checkEquals(b.lastEntry(), expect.lastEntry());
+                        }
+                        default -> checkEquals(b.get(key), expect.get(key));
+                    }
+                }
+                b.checkTree();
+                checkEquals(b.size(), expect.size());
+                checkEquals(new ArrayList<>(b.entrySet()), new ArrayList<>(expect.entrySet()));
+                // 视图：随机边界的子map，再在其上取降序、子视图
+                for (int i = 0; i < 200; i++) {
+                    int x = random.nextInt(2000), y = random.nextInt(2000);
+                    Integer from = expect.comparator() == null ? Math.min(x, y) : Math.max(x, y);
+                    Integer to = expect.comparator() == null ? Math.max(x, y) : Math.min(x, y);
+                    boolean fi = random.nextBoolean(), ti = random.nextBoolean();
+                    NavigableMap<Integer, Integer> bv = b.subMap(from, fi, to, ti), ev = expect.subMap(from, fi, to, ti);
+                    if (random.nextBoolean()) {
+                        bv = bv.descendingMap();
+                        ev = ev.descendingMap();
+                    }
+                    checkView(bv, ev, random.nextInt(2000));
+                    checkView(b.headMap(to, ti).descendingMap(), expect.headMap(to, ti).descendingMap(), random.nextInt(2000));
+                    checkView(b.descendingMap().tailMap(to, ti), expect.descendingMap().tailMap(to, ti), random.nextInt(2000));
+                }
+                // 通过视图和迭代器修改
+                int lo = comparator == null ? 500 : 700, hi = comparator == null ? 700 : 500;
+                b.subMap(lo, hi).keySet().removeIf(k -> k % 3 == 0);
+                expect.subMap(lo, hi).keySet().removeIf(k -> k % 3 == 0);
+                b.descendingMap().entrySet().forEach(e -> e.setValue(-e.getKey()));
+                expect.descendingMap().entrySet().forEach(e -> e.setValue(-e.getKey()));
+                b.checkTree();
+                checkEquals(new ArrayList<>(b.descendingMap().entrySet()), new ArrayList<>(expect.descendingMap().entrySet()));
+                checkEquals(b, expect);
+            }
+        }
+        System.out.println("BTreeMap测试通过");
+    }
+
+    private static void checkView(NavigableMap<Integer, Integer> b, NavigableMap<Integer, Integer> expect, int key) {
+        checkEquals(new ArrayList<>(b.entrySet()), new ArrayList<>(expect.entrySet()));
+        checkEquals(b.size(), expect.size());
+        checkEquals(b.isEmpty(), expect.isEmpty());
+        checkEquals(b.firstEntry(), expect.firstEntry());
+        checkEquals(b.lastEntry(), expect.lastEntry());
+        checkEquals(b.floorEntry(key), expect.floorEntry(key));
+        checkEquals(b.ceilingKey(key), expect.ceilingKey(key));
+        checkEquals(b.lowerKey(key), expect.lowerKey(key));
+        checkEquals(b.higherEntry(key), expect.higherEntry(key));
+        checkEquals(b.get(key), expect.get(key));
+        checkEquals(b.containsKey(key), expect.containsKey(key));
+        checkEquals(new ArrayList<>(b.navigableKeySet().descendingSet()), new ArrayList<>(expect.navigableKeySet().descendingSet()));
+        // key超出视图范围时两者都应抛出IllegalArgumentException
+        boolean outOfRange = false;
+        try {
+            expect.headMap(key, true);
+            expect.tailMap(key, false);
+        } catch (IllegalArgumentException e) {
+            outOfRange = true;
+        }
+        try {
+            checkEquals(new ArrayList<>(b.headMap(key, true).keySet()), new ArrayList<>(expect.headMap(key, true).keySet()));
+            checkEquals(new ArrayList<>(b.tailMap(key, false).values()), new ArrayList<>(expect.tailMap(key, false).values()));
+            if (outOfRange) throw new RuntimeException("视图范围外的key未抛出异常: " + key);
+        } catch (IllegalArgumentException e) {
+            if (!outOfRange) throw e;
+        }
+    }
+
+    private static void checkEquals(Object actual, Object expect) {
+        if (!Objects.equals(actual, expect))
+            throw new RuntimeException(String.format("期望%s, 实际%s", expect, actual));
+    }
+
+    // 测试分片B+树：key全部落在第一个分片，多线程写入期间自动迁移边界，同时有线程在读和遍历
+    void testShardedTree() {
+        ShardedBTree b = new ShardedBTree(8, "c", "f", "m", "t");
+        int writerCount = 4;
+        AtomicBoolean stop = new AtomicBoolean(false);
+        CountDownLatch done = new CountDownLatch(writerCount + 1);
+        ArrayList<String> errors = new ArrayList<>();
+        List<TreeMap<String, Object>> expects = new ArrayList<>();
+        for (int w = 0; w < writerCount; w++) {
+            TreeMap<String, Object> expect = new TreeMap<>();
+            expects.add(expect);
+            int id = w;
+            // 每个写线程只操作以自己编号结尾的key，返回的旧值必须与自己的记录一致
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 50000; i++) {
+                    String key = "a" + MyRandomUtil.randomLowerStr(3) + id;
+                    Object old, expectOld;
+                    if (random.nextInt(4) > 0) {
+                        old = b.put(key, i);
+                        expectOld = expect.put(key, i);
+                    } else {
+                        old = b.remove(key);
+                        expectOld = expect.remove(key);
+                    }
+                    if (!Objects.equals(old, expectOld)) {
+                        synchronized (errors) {
+                            errors.add(key + " old " + old + " expect " + expectOld);
+                        }
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        new Thread(() -> {
+            while (!stop.get()) {
+                String pre = null;
+                for (Iterator<BNode.BEntry> it = b.scan(null, null); it.hasNext(); ) {
+                    String key = it.next().key;
+                    if (pre != null && pre.compareTo(key) >= 0) {
+                        synchronized (errors) {
+                            errors.add("scan: " + pre + "-->" + key);
+                        }
+                    }
+                    pre = key;
+                }
+            }
+            done.countDown();
+        }).start();
+        try {
+            while (done.getCount() > 1) Thread.sleep(10);
+            stop.set(true);
+            done.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        if (!errors.isEmpty()) throw new RuntimeException("分片B+树并发错误: " + errors.subList(0, Math.min(10, errors.size())));
+        if (b.rebalanceCount() == 0) throw new RuntimeException("热点分片没有重新平衡");
+
+        TreeMap<String, Object> expect = new TreeMap<>();
+        for (TreeMap<String, Object> e : expects) expect.putAll(e);
+        b.checkTree();
+        checkEquals(b.size(), (long) expect.size());
+        checkScan(b.scan(null, null), expect);
+        checkScan(b.scanDescending(null, null), expect.descendingMap());
+        for (int i = 0; i < 100; i++) {
+            String from = "a" + MyRandomUtil.randomLowerStr(2), to = "a" + MyRandomUtil.randomLowerStr(3);
+            if (from.compareTo(to) > 0) continue;
+            checkScan(b.scan(from, to), expect.subMap(from, true, to, false));
+            checkScan(b.scanDescending(from, to), expect.subMap(from, true, to, false).descendingMap());
+        }
+        for (String key : expect.keySet()) checkEquals(b.get(key), expect.get(key));
+        // 手动重新平衡直到相邻分片相差不超过1
+        while (b.rebalance(true)) ;
+        b.checkTree();
+        checkScan(b.scan(null, null), expect);
+        System.out.printf("分片B+树测试通过，迁移%d次，分片大小%s\n", b.rebalanceCount(), Arrays.toString(b.shardSizes()));
+    }
+
+    record Person(String name, String city, int age) {
+    }
+
+    // 测试二级索引：随机增删改后按索引查询与遍历全部记录过滤的结果一致，索引值含'\0'和互为前缀时不会混淆
+    void testIndexedTable() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String[] cities = {"", "a", "a\0", "a\0b", "ab", "b", null};
+        IndexedTable<Person> table = new IndexedTable<>(8);
+        table.addIndex("city", Person::city, Person::name);
+        table.addIndex("age", p -> String.format("%03d", p.age()));
+        TreeMap<String, Person> expect = new TreeMap<>();
+        for (int i = 0; i < 20000; i++) {
+            String id = MyRandomUtil.randomLowerStr(3);
+            if (random.nextInt(4) > 0) {
+                Person p = new Person(MyRandomUtil.randomLowerStr(2), cities[random.nextInt(cities.length)], random.nextInt(100));
+                checkEquals(table.put(id, p), expect.put(id, p));
+            } else {
+                checkEquals(table.remove(id), expect.remove(id));
+            }
+            // 表中已有数据时添加索引
+            if (i == 10000) table.addIndex("name", Person::name);
+        }
+        table.checkIndexes();
+        for (String city : cities) {
+            if (city == null) continue;
+            List<Person> want = expect.values().stream().filter(p -> city.equals(p.city())).toList();
+            checkEquals(table.findBy("city", city), want);
+            checkEquals(table.countBy("city", city), (long) want.size());
+        }
+        List<Person> want = new ArrayList<>(expect.values().stream().filter(p -> p.age() >= 20 && p.age() < 40).toList());
+        want.sort(Comparator.comparingInt(Person::age));// 稳定排序，同一年龄内仍按主键
+        checkEquals(table.findRange("age", "020", "040"), want);
+        checkEquals(table.findBy("name", "ab"), expect.values().stream().filter(p -> p.name().equals("ab")).toList());
+        // index-only scan：覆盖列直接来自索引，不回表；按索引值再按主键排序
+        List<String> scanned = new ArrayList<>();
+        for (Iterator<IndexedTable.IndexEntry> it = table.scanIndex("city", null, null); it.hasNext(); ) {
+            IndexedTable.IndexEntry e = it.next();
+            checkEquals(e.covered(), expect.get(e.primaryKey()).name());
+            scanned.add(e.key() + "|" + e.primaryKey());
+        }
+        checkEquals(scanned, expect.entrySet().stream().filter(e -> e.getValue().city() != null)
+                .sorted(Comparator.comparing((Map.Entry<String, Person> e) -> e.getValue().city()).thenComparing(Map.Entry::getKey))
+                .map(e -> e.getValue().city() + "|" + e.getKey()).toList());
+        System.out.println("二级索引测试通过");
+    }
+
+    // 测试结点内查找：SIMD查找与标量查找结果一致，包括key在首尾、不存在以及结点大小不是向量宽度整数倍的情况
+    void testKeySearch() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int size = 0; size <= 300; size++) {
+            long[] longKeys = new long[size + random.nextInt(3)];// 数组可能比size长
+            int[] intKeys = new int[longKeys.length];
+            long cur = Long.MIN_VALUE + 1;
+            for (int i = 0; i < size; i++) {
+                cur += 1 + random.nextInt(3);
+                longKeys[i] = cur;
+                intKeys[i] = (int) (cur - Long.MIN_VALUE) + Integer.MIN_VALUE;
+            }
+            for (int i = size; i < longKeys.length; i++) {
+                longKeys[i] = random.nextLong();// 超出size的部分不能影响结果
+                intKeys[i] = random.nextInt();
+            }
+            for (long key = Long.MIN_VALUE; key <= cur + 2; key = key == Long.MIN_VALUE ? Long.MIN_VALUE + 1 : key + 1) {
+                int intKey = (int) (key - Long.MIN_VALUE) + Integer.MIN_VALUE;
+                checkEquals(KeySearch.search(longKeys, size, key), KeySearch.scalarSearch(longKeys, size, key));
+                checkEquals(KeySearch.search(intKeys, size, intKey), KeySearch.scalarSearch(intKeys, size, intKey));
+                if (KeySearch.VectorEnabled && size > 0) {
+                    checkEquals(VectorKeySearch.search(longKeys, size, key), KeySearch.scalarSearch(longKeys, size, key));
+                    checkEquals(VectorKeySearch.search(intKeys, size, intKey), KeySearch.scalarSearch(intKeys, size, intKey));
+                }
+            }
+        }
+        System.out.println("结点内查找测试通过，SIMD: " + KeySearch.VectorEnabled);
+    }
+
+    // 测试LongBTree、IntBTree随机增删查，与TreeMap对比
+    void testPrimitiveTree() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int m : new int[]{4, 5, 16, 64}) {
+            LongBTree lb = new LongBTree(m, -1);
+            IntBTree ib = new IntBTree(m, -1);
+            TreeMap<Long, Long> expect = new TreeMap<>();
+            for (int i = 0; i < 50000; i++) {
+                long key = random.nextInt(5000);
+                long value = random.nextInt(1000000);
+                long expectOld = expect.getOrDefault(key, -1L);
+                if (random.nextInt(3) > 0) {
+                    expect.put(key, value);
+                    if (lb.put(key, value) != expectOld || ib.put((int) key, (int) value) != expectOld)
+                        throw new RuntimeException("put旧值错误: " + key);
+                } else {
+                    expect.remove(key);
+                    if (lb.remove(key) != expectOld || ib.remove((int) key) != expectOld)
+                        throw new RuntimeException("remove旧值错误: " + key);
+                }
+                if (i % 1000 == 0) {
+                    lb.checkTree();
+                    ib.checkTree();
+                }
+            }
+            lb.checkTree();
+            ib.checkTree();
+            for (long key = -10; key < 5010; key++) {
+                long expectValue = expect.getOrDefault(key, -1L);
+                if (lb.get(key) != expectValue || ib.get((int) key) != expectValue)
+                    throw new RuntimeException("get错误: " + key);
+            }
+            if (lb.size() != expect.size() || ib.size() != expect.size()) throw new RuntimeException("size错误");
+            for (Long key : new ArrayList<>(expect.keySet())) {
+                lb.remove(key);
+                ib.remove(key.intValue());
+            }
+            lb.checkTree();
+            ib.checkTree();
+            if (lb.size() != 0 || ib.size() != 0) throw new RuntimeException("全部删除后size不为0");
+        }
+        System.out.println("LongBTree、IntBTree测试通过");
+    }
+
+    // 测试分页B+树：缓冲池很小以触发页淘汰，关闭后重新打开数据不丢失
+    void testPagedTree() throws IOException {
+        Path path = Files.createTempFile("paged_btree", ".db");
+        try {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            TreeMap<Long, Long> expect = new TreeMap<>();
+            try (PagedBTree b = new PagedBTree(path, 16, -1)) {
+                for (int i = 0; i < 200000; i++) {
+                    long key = random.nextInt(100000);
+                    long expectOld = expect.getOrDefault(key, -1L);
+                    if (random.nextInt(4) > 0) {
+                        expect.put(key, (long) i);
+                        if (b.put(key, i) != expectOld) throw new RuntimeException("put旧值错误: " + key);
+                    } else {
+                        expect.remove(key);
+                        if (b.remove(key) != expectOld) throw new RuntimeException("remove旧值错误: " + key);
+                    }
+                }
+                b.checkTree();
+            }
+            long fileSize = Files.size(path);
+            try (PagedBTree b = new PagedBTree(path, 64, -1)) {
+                b.checkTree();
+                if (b.size() != expect.size()) throw new RuntimeException("重新打开后size错误");
+                for (long key = 0; key < 100000; key++) {
+                    if (b.get(key) != expect.getOrDefault(key, -1L)) throw new RuntimeException("重新打开后get错误: " + key);
+                }
+                // 全部删除后再插入一半，释放的页应被复用，文件不再增长
+                for (Long key : expect.keySet()) b.remove(key);
+                b.checkTree();
+                for (Long key : expect.keySet()) if ((key & 1) == 0) b.put(key, key);
+                b.checkTree();
+            }
+            if (Files.size(path) > fileSize) throw new RuntimeException("空闲页没有被复用");
+            System.out.println("分页B+树测试通过");
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // 缓冲池已满且都被pin住时再pin一页：新读入的页不能被淘汰，其页帧也不能被复用
+    void testBufferPool() throws IOException {
+        Path path = Files.createTempFile("buffer_pool", ".db");
+        final int capacity = 4;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.allocate(PagedBTree.PageSize);
+            for (long id = 0; id <= capacity + 1; id++) {
+                buf.clear().putLong(0, id);
+                channel.write(buf, id * PagedBTree.PageSize);
+            }
+            PagedBTree.BufferPool pool = new PagedBTree.BufferPool(channel, capacity);
+            List<PagedBTree.Page> pinned = new ArrayList<>();
+            for (long id = 0; id < capacity; id++) pinned.add(pool.pin(id));
+            PagedBTree.Page extra = pool.pin(capacity);
+            if (extra.buf.getLong(0) != capacity) throw new RuntimeException("读入的页内容错误");
+            extra.buf.putLong(8, 42);
+            extra.dirty = true;
+            // 再读入一页，不能拿到extra的页帧
+            PagedBTree.Page next = pool.pin(capacity + 1);
+            if (next.buf == extra.buf || extra.buf.getLong(0) != capacity)
+                throw new RuntimeException("被pin住的页帧被复用");
+            if (pool.pin(capacity) != extra) throw new RuntimeException("被pin住的页被淘汰");
+            pool.unpin(extra);
+            pool.unpin(extra);
+            pool.unpin(next);
+            for (PagedBTree.Page page : pinned) pool.unpin(page);
+            pool.flush();
+            buf.clear();
+            channel.read(buf, (long) capacity * PagedBTree.PageSize);
+            if (buf.getLong(8) != 42) throw new RuntimeException("写入被pin住的页后丢失");
+            System.out.println("缓冲池测试通过");
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // 测试writeTo/readFrom：各种key和value类型往返一致，超过缓冲区的entry，截断和损坏的文件能被发现
+    void testPersistence() throws IOException {
+        Path file = Files.createTempFile("btree", ".bin");
+        try {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            BTree b = new BTree(16);
+            TreeMap<String, Object> expect = new TreeMap<>();
+            for (int i = 0; i < 50000; i++) {
+                String key = switch (i % 4) {
+                    case 0 -> String.format("user:%08d", random.nextInt(1_000_000));
+                    case 1 -> "中文" + random.nextInt(1000) + "\uD83D\uDE00" + random.nextInt(100);// 含代理对
+                    case 2 -> BTree.bytesKey(new byte[]{(byte) random.nextInt(256), (byte) random.nextInt(256), (byte) i});
+                    default -> MyRandomUtil.randomLowerStr(1 + random.nextInt(8));
+                };
+                Object value = switch (i % 5) {
+                    case 0 -> key + i;
+                    case 1 -> (long) i;
+                    case 2 -> i;
+                    case 3 -> i / 3.0;
+                    default -> i % 2 == 0;
+                };
+                b.put(key, value);
+                expect.put(key, value);
+            }
+            if (b.writeTo(file) != expect.size()) throw new RuntimeException("writeTo写入数量错误");
+            for (int m : new int[]{0, 4, 64}) {
+                BTree loaded = m == 0 ? BTree.readFrom(file) : BTree.readFrom(file, m, 1);
+                loaded.checkTree();
+                checkScan(loaded.scan(null, null), expect);
+                if (m == 0 && loaded.M != 16) throw new RuntimeException("readFrom未使用文件中的阶");
+            }
+
+            // 超过缓冲区大小的value
+            BTree big = new BTree(8);
+            byte[] bytes = new byte[9 << 20];
+            random.nextBytes(bytes);
+            big.put("a", "x");
+            big.put("b", bytes);
+            big.put("c", "y".repeat(5 << 20));
+            big.writeTo(file);
+            BTree loaded = BTree.readFrom(file);
+            if (!Arrays.equals((byte[]) loaded.get("b"), bytes) || !"x".equals(loaded.get("a"))
+                    || ((String) loaded.get("c")).length() != 5 << 20)
+                throw new RuntimeException("大value往返不一致");
+
+            // 空树
+            new BTree(8).writeTo(file);
+            if (BTree.readFrom(file).stats().size() != 0) throw new RuntimeException("空树往返不一致");
+
+            // 截断、损坏的文件
+            b.writeTo(file);
+            byte[] data = Files.readAllBytes(file);
+            Files.write(file, Arrays.copyOf(data, data.length - 7));
+            expectIOException(file, "截断");
+            data[data.length / 2] ^= 1;
+            Files.write(file, data);
+            expectIOException(file, "损坏");
+            // 第一个entry的长度被改写：不能按损坏的长度分配缓冲区，校验和之前就要报错
+            b.writeTo(file);
+            data = Files.readAllBytes(file);
+            for (int len : new int[]{0x7ffffff0, data.length}) {
+                byte[] corrupt = data.clone();
+                ByteBuffer.wrap(corrupt).putInt(24, len);// 24字节的文件头之后是第一个entry的长度
+                Files.write(file, corrupt);
+                expectIOException(file, "entry长度损坏");
+            }
+
+            // 与逐个put重建对比
+            BTree tree = new BTree(64);
+            String[] keys = new String[1_000_000];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = String.format("user:%010d", random.nextInt(Integer.MAX_VALUE));
+                tree.put(keys[i], (long) i);
+            }
+            long start = System.nanoTime();
+            tree.writeTo(file);
+            long writeCost = System.nanoTime() - start;
+            start = System.nanoTime();
+            BTree reloaded = BTree.readFrom(file);
+            long readCost = System.nanoTime() - start;
+            start = System.nanoTime();
+            BTree reput = new BTree(64);
+            for (int i = 0; i < keys.length; i++) reput.put(keys[i], (long) i);
+            long putCost = System.nanoTime() - start;
+            if (reloaded.stats().size() != reput.stats().size()) throw new RuntimeException("重新加载的key数量错误");
+            System.out.printf("序列化测试通过，%d个key：writeTo %dms，readFrom %dms，逐个put %dms，文件%dKB\n",
+                    reput.stats().size(), writeCost / 1_000_000, readCost / 1_000_000, putCost / 1_000_000, Files.size(file) >> 10);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void expectIOException(Path file, String what) {
+        try {
+            BTree.readFrom(file);
+        } catch (IOException e) {
+            return;
+        }
+        throw new RuntimeException(what + "的文件没有被发现");
+    }
+
+    // 测试WAL与崩溃恢复：不关闭直接重新打开模拟崩溃，日志尾部写坏一半也能恢复
+    void testDurableTree() throws IOException {
+        Path dir = Files.createTempDirectory("durable_btree");
+        try {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            TreeMap<String, Object> expect = new TreeMap<>();
+            for (BTreeWal.SyncMode mode : BTreeWal.SyncMode.values()) {
+                // 日志超过16KB自动做检查点
+                DurableBTree b = new DurableBTree(dir, 8, mode, 1, TimeUnit.MILLISECONDS, 16 * 1024);
+                for (int i = 0; i < 5000; i++) {
+                    String key = MyRandomUtil.randomLowerStr(3);
+                    if (random.nextInt(3) > 0) {
+                        Object value = i % 2 == 0 ? key + i : (Object) (long) i;
+                        b.put(key, value);
+                        expect.put(key, value);
+                    } else {
+                        b.remove(key);
+                        expect.remove(key);
+                    }
+                }
+                if (mode == BTreeWal.SyncMode.ASYNC) b.close();// 异步模式崩溃会丢最后一个窗口内的日志
+                // 模拟崩溃时写了一半的日志
+                long walSize = Files.size(dir.resolve("wal"));
+                Files.write(dir.resolve("wal"), new byte[]{0, 0, 0, 100, 1, 2}, StandardOpenOption.APPEND);
+                try (DurableBTree recovered = new DurableBTree(dir, 16, mode, 1, TimeUnit.MILLISECONDS, 16 * 1024)) {
+                    BTreeWal.ReplayResult replay = recovered.getReplayResult();
+                    if (replay.truncatedAt() != walSize || replay.truncatedBytes() != 6)
+                        throw new RuntimeException("日志尾部截断位置错误: " + replay + ", 日志大小" + walSize);
+                    recovered.getTree().checkTree();
+                    checkScan(recovered.getTree().scan(null, null), expect);
+                }
+            }
+            System.out.println("WAL崩溃恢复测试通过");
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path p : files.toList()) Files.delete(p);
+            }
+            Files.delete(dir);
+        }
+    }
 }
@@ -1,10 +1,35 @@
 package com.fzk.bplus;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
 
 /**
  * 自定义实现B+树
@@ -13,6 +38,24 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * key是唯一，即唯一性索引
  * <a href="https://segmentfault.com/a/1190000041696709">B+树原理以及Go语言实现</a>
  * 注意：该文章的理论可借鉴，实现有问题
+ * <p>
+ * 并发控制：写者之间由写锁互斥，读者采用乐观锁耦合(OLC)，不加任何锁
+ * 读者从root向下遍历时记录每个结点的版本号，读完子结点指针后校验父结点版本未变，
+ * 写者只锁定(latch)自己正在修改的结点，如页分裂、合并时的左右结点，其余结点上的读者不受影响
+ * 乐观读连续失败多次时退化为加读锁，避免写密集时读者饿死
+ * <p>
+ * 二进制key：byte[]的重载方法将每个字节映射为一个0~255的char，即按ISO-8859-1构造String，
+ * 不做任何解码，JDK的紧凑字符串会将其存为Latin-1的byte[]，字符串比较即为按无符号字节的字典序比较
+ * 但每次调用都要拷贝字节新建一个String(String对象和数组头约40多字节，再加key长度)，比直接用String key慢，没有零拷贝；
+ * 结点有公共前缀时后缀是逐字符比较的，没有前缀时才是String.compareTo的内建比较，见ByteKeyBenchmark
+ * 与String key混用时，二者按char值统一排序，所有字符都<=0xFF的String key与等值的byte[] key是同一个key
+ * <p>
+ * 快照：snapshot()记录当前root并将树的版本加1，此后写者修改旧版本的结点前先复制它，
+ * 并沿父结点向上复制到root(路径复制)，快照持有的旧结点内容从此不再改变，可以不加锁地长时间遍历，
+ * 写者也不会被阻塞；快照只通过entries向下遍历，不使用会被写者修改的父结点、兄弟结点指针
+ * 快照关闭或被GC回收后不再复制，旧版本结点没有快照引用后由GC回收
+ * <p>
+ * 统计：stats()返回层高、结点数、填充率、分裂/合并次数和get/put/remove的延迟分布，也可用registerMBean经JMX查看
  *
  * @author fzk
  * @datetime 2023-01-14 23:25:41
@@ -20,9 +63,37 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class BTree {
     // B+树的阶
     public final int M;
+    private static final int OptimisticReadRetries = 64;// 乐观读重试次数，超过则加读锁
+    private static final Object Restart = new Object();// 乐观读需要重试的标记
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private BNode root;// 根结点
+    private volatile BNode root;// 根结点，乐观读者需感知root的替换
     private LeafNode head;// 叶子结点链表头结点
+    private static final Cleaner SnapshotCleaner = Cleaner.create();// 未关闭的快照被GC回收时释放
+    private long epoch;// 树的当前版本，新建或复制的结点记录此版本
+    private long snapshotEpoch = -1;// 最近一次快照的版本，版本不大于它的结点可能被快照共享
+    private final AtomicInteger openSnapshots = new AtomicInteger();// 未关闭的快照数量，为0时无需复制
+    // 删除、合并释放的结点和BEntry放入池中，分裂、插入时复用，稳定状态下写入不分配对象；只在写锁内访问
+    private static final int NodePoolSize = 64, EntryPoolSize = 1024;
+    private final ArrayDeque<BNode> leafPool = new ArrayDeque<>(), indexPool = new ArrayDeque<>();
+    private final ArrayDeque<BNode.BEntry> entryPool = new ArrayDeque<>();
+    // 延迟合并：删除后结点欠满(key数量少于M/2)也不与兄弟合并，欠满结点累计到上限或调用compact()时统一合并；只在写锁内访问
+    private boolean deferredMerge;
+    private int maxUnderfullNodes;// 自动compact的欠满结点数，<=0表示只在调用compact()时合并
+    private int underfullNodes;// 上次compact以来变为欠满的结点数
+    private boolean compacting;// compact期间删除索引项引起的索引结点欠满仍立即合并
+    // 布隆过滤器：get前先查询，一定不存在的key不必从root下降，null表示未开启；见enableBloomFilter
+    private static final long MinBloomCapacity = 1024;
+    private volatile BloomFilter bloom;
+    private double bloomFalsePositiveRate;
+    private long bloomMaxBytes;
+    private final LongAdder bloomChecks = new LongAdder(), bloomSaved = new LongAdder(), bloomFalsePositives = new LongAdder();
+    // 统计：计数器只在写锁内累加，延迟直方图由读写线程并发记录；见stats()
+    private final LongAdder splits = new LongAdder(), merges = new LongAdder(), minKeyUpdates = new LongAdder();
+    private final LatencyHistogram getLatency = new LatencyHistogram(), putLatency = new LatencyHistogram(), removeLatency = new LatencyHistogram();
+    private volatile boolean latencyStats = true;// 关闭后get/put/remove不再调用System.nanoTime
+    // 序列化文件，格式见writeTo
+    private static final int FileMagic = 0x42545246;// BTRF
+    private static final int FileVersion = 1, FileHeaderSize = 24, FileBufferSize = 4 << 20;
 
     public BTree(int m) {
         if (m < 4) throw new RuntimeException("B+树的阶不能小于4");
@@ -34,50 +105,254 @@ public class BTree {
      *
      * @return 若key不存在则null，存在则返回旧值
      */
-    public synchronized Object put(String key, Object value) {
+    public Object put(String key, Object value) {
+        if (!latencyStats) return putLocked(key, value);
+        long start = System.nanoTime();
+        Object old = putLocked(key, value);
+        putLatency.record(System.nanoTime() - start);
+        return old;
+    }
+
+    private Object putLocked(String key, Object value) {
         lock.writeLock().lock();
         try {
-            // 根结点为空，说明的第一次插入，需更新root和head
-            if (root == null) {
-                assert head == null : "root为null但head不为null";
-                root = new LeafNode(M);
-                root.insert(key, value);
-                head = (LeafNode) root;
-                return null;
-            }
-
-            // 如果root是叶子结点，直接插入
-            if (root instanceof LeafNode) {
-                assert root == head && root.parentNode == null : "root是叶子结点却不等于head或其父节点不为null";
-                return insertNode(root, key, value);
+            BloomFilter filter = bloom;
+            if (filter == null) return doPut(key, value);
+            filter.add(key);// 先置位再插入，key插入后读者不会再被过滤器拒绝
+            Object old = doPut(key, value);
+            if (old == null) {
+                filter.keys++;
+                maybeRebuildBloom();
             }
-
-            // 从root开始找到key应该插入的叶子结点
-            LeafNode toInsertLeaf = findLeafNodeByKey(root, key);
-            return insertNode(toInsertLeaf, key, value);
+            return old;
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    private Object doPut(String key, Object value) {
+        // 根结点为空，说明的第一次插入，需更新root和head
+        if (root == null) {
+            assert head == null : "root为null但head不为null";
+            root = newNode(true);
+            root.insert(key, value);
+            head = (LeafNode) root;
+            return null;
+        }
+
+        // 如果root是叶子结点，直接插入
+        if (root instanceof LeafNode) {
+            assert root == head && root.parentNode == null : "root是叶子结点却不等于head或其父节点不为null";
+            return insertNode(root, key, value);
+        }
+
+        // 从root开始找到key应该插入的叶子结点
+        LeafNode toInsertLeaf = findLeafNodeByKey(root, key);
+        return insertNode(toInsertLeaf, key, value);
+    }
+
     /**
      * 返回指定key的值
      *
      * @return null或值
      */
-    public synchronized Object get(String key) {
+    public Object get(String key) {
+        if (!latencyStats) return lookup(key);
+        long start = System.nanoTime();
+        Object result = lookup(key);
+        getLatency.record(System.nanoTime() - start);
+        return result;
+    }
+
+    private Object lookup(String key) {
+        BloomFilter filter = bloom;
+        if (filter == null) return find(key);
+        bloomChecks.increment();
+        if (!filter.mightContain(key)) {
+            bloomSaved.increment();
+            return null;
+        }
+        Object result = find(key);
+        if (result == null) bloomFalsePositives.increment();
+        return result;
+    }
+
+    private Object find(String key) {
+        for (int i = 0; i < OptimisticReadRetries; i++) {
+            Object result = optimisticGet(key);
+            if (result != Restart) return result;
+            Thread.onSpinWait();
+        }
+        // 乐观读多次失败，说明写冲突频繁，退化为加读锁
         lock.readLock().lock();
         try {
-            if (root == null || key.compareTo(root.getMinKey()) < 0) return null;
+            if (root == null || root.compareKeyAt(key, 0) < 0) return null;
             LeafNode leafNode = findLeafNodeByKey(root, key);
-            BNode.SearchKeyResult keyResult = leafNode.searchKeyIndex(key);
-            if (keyResult.exists) {
-                return leafNode.entries[keyResult.index].value;
+            int index = leafNode.searchKeyIndex(key);
+            return index >= 0 ? leafNode.entries[index].value : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 乐观读：全程不加锁，每下降一层都校验父结点版本号
+     * 读到一半的结点可能处于不一致状态，数组越界或空指针都视为需要重试
+     *
+     * @return null或值，需要重试时返回Restart
+     */
+    private Object optimisticGet(String key) {
+        try {
+            BNode node = root;
+            if (node == null) return null;
+            long v = node.stableVersion();
+            if (node != root) return Restart;// 拿版本号前root已被替换，如root分裂
+
+            while (node instanceof IndexNode) {
+                BNode child = (BNode) node.entries[childIndex(node, key)].value;
+                long childVersion = child.stableVersion();
+                // 校验读取子结点指针期间父结点未被修改
+                if (!node.validate(v)) return Restart;
+                node = child;
+                v = childVersion;
+            }
+
+            int index = node.searchKeyIndex(key);
+            Object value = index >= 0 ? node.entries[index].value : null;
+            return node.validate(v) ? value : Restart;
+        } catch (NullPointerException | ArrayIndexOutOfBoundsException e) {
+            // 结点正被修改或已被删除(entries置null)
+            return Restart;
+        }
+    }
+
+    /**
+     * 批量查询：只加一次读锁，key升序处理，下一个key仍在当前叶子结点时直接在结点内查找，
+     * 否则沿父结点向上找到覆盖它的最低祖先后再向下，而不是每次都从root下降
+     *
+     * @param keys 非自然序的集合会先按自然序重新排序
+     * @return 存在的key及其值，按key升序
+     */
+    public Map<String, Object> getAll(SortedSet<String> keys) {
+        if (keys.comparator() != null) {
+            // 注意TreeSet(SortedSet)会沿用原比较器
+            SortedSet<String> sorted = new TreeSet<>();
+            sorted.addAll(keys);
+            keys = sorted;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        BloomFilter filter = bloom;
+        lock.readLock().lock();
+        try {
+            BNode leaf = null;
+            int from = 0;// 上一个key在当前叶子结点中的位置，下一个key从此处向后查找
+            for (String key : keys) {
+                if (root == null) break;
+                if (filter != null && !filter.mightContain(key)) continue;
+                BNode next = seekLeaf(leaf, key);
+                if (next != leaf) {
+                    leaf = next;
+                    from = 0;
+                }
+                int index = leaf.searchKeyIndexFrom(key, from);
+                from = BNode.insertionPoint(index);
+                if (index >= 0) result.put(key, leaf.entries[index].value);
             }
-            return null;
         } finally {
             lock.readLock().unlock();
         }
+        return result;
+    }
+
+    /**
+     * 批量插入或更新：只加一次写锁，key升序插入，定位叶子结点的方式同getAll
+     *
+     * @param map 非自然序的map会先按自然序重新排序
+     */
+    public void putAll(SortedMap<String, ?> map) {
+        if (map.comparator() != null) {
+            SortedMap<String, Object> sorted = new TreeMap<>();
+            sorted.putAll(map);
+            map = sorted;
+        }
+        lock.writeLock().lock();
+        try {
+            BNode leaf = null;
+            int from = 0;
+            for (Map.Entry<String, ?> entry : map.entrySet()) {
+                String key = entry.getKey();
+                if (root == null) {
+                    put(key, entry.getValue());// 第一次插入需创建root，写锁可重入
+                    continue;
+                }
+                BNode next = seekLeaf(leaf, key);
+                if (next != leaf) {
+                    from = 0;
+                }
+                leaf = writable(next);// 快照共享时先复制，之后从副本继续定位
+                int index = leaf.searchKeyIndexFrom(key, from);
+                if (index >= 0) {
+                    // 更新：结点结构不变，下一个key从此处继续查找
+                    leaf.latch();
+                    leaf.entries[index].value = entry.getValue();
+                    leaf.unlatch();
+                    from = index;
+                } else {
+                    // 插入：可能页分裂，链表与父结点指针仍然正确，下次从leaf继续定位即可
+                    if (bloom != null) bloom.add(key);
+                    insertNode(leaf, key, entry.getValue());
+                    if (bloom != null) bloom.keys++;
+                    from = 0;
+                }
+            }
+            maybeRebuildBloom();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 从上一个key所在的叶子结点定位key所在的叶子结点，调用方需持有锁且key不小于上一个key
+     * 结点的min key<=key，因此只要后继结点的min key>key，key就在此结点的范围内
+     */
+    private BNode seekLeaf(BNode leaf, String key) {
+        if (leaf == null) return findLeafNodeByKey(root, key);
+        BNode node = leaf;
+        while (node.nextNode != null && node.nextNode.compareKeyAt(key, 0) >= 0) {
+            node = node.parentNode;
+            if (node == null) return findLeafNodeByKey(root, key);
+        }
+        return node == leaf ? leaf : findLeafNodeByKey(node, key);
+    }
+
+    // 二进制key版本的put，key按无符号字节字典序排序
+    public Object put(byte[] key, Object value) {
+        return put(bytesKey(key), value);
+    }
+
+    // 二进制key版本的get
+    public Object get(byte[] key) {
+        return get(bytesKey(key));
+    }
+
+    // 二进制key版本的remove
+    public Object remove(byte[] key) {
+        return remove(bytesKey(key));
+    }
+
+    // 二进制key的范围查询[fromKey, toKey)，升序，遍历到的key可用keyBytes还原为byte[]；不重载scan以免scan(null, null)有歧义
+    public Cursor scanBytes(byte[] fromKey, byte[] toKey) {
+        return scan(fromKey == null ? null : bytesKey(fromKey), toKey == null ? null : bytesKey(toKey));
+    }
+
+    // byte[]转为树中的String key，每个字节对应一个char，排序与无符号字节字典序一致
+    public static String bytesKey(byte[] key) {
+        return new String(key, StandardCharsets.ISO_8859_1);
+    }
+
+    // bytesKey的逆操作
+    public static byte[] keyBytes(String key) {
+        return key.getBytes(StandardCharsets.ISO_8859_1);
     }
 
     /**
@@ -85,12 +360,26 @@ public class BTree {
      *
      * @return key不存在返回null，存在时返回删除的旧值
      */
-    public synchronized Object remove(String key) {
+    public Object remove(String key) {
+        if (!latencyStats) return removeLocked(key);
+        long start = System.nanoTime();
+        Object old = removeLocked(key);
+        removeLatency.record(System.nanoTime() - start);
+        return old;
+    }
+
+    private Object removeLocked(String key) {
         lock.writeLock().lock();
         try {
-            if (root == null || key.compareTo(root.getMinKey()) < 0) return null;
+            if (root == null || root.compareKeyAt(key, 0) < 0) return null;
             LeafNode node = findLeafNodeByKey(root, key);
-            return deleteKeyFromNode(node, key);
+            Object old = deleteKeyFromNode(node, key);
+            if (old != null && bloom != null) {
+                bloom.removed++;
+                maybeRebuildBloom();
+            }
+            maybeCompact();
+            return old;
         } finally {
             lock.writeLock().unlock();
         }
@@ -99,43 +388,54 @@ public class BTree {
     // 删除节点上的key映射
     private Object deleteKeyFromNode(BNode node, String key) {
         // 1.查找key在node的索引
-        BNode.SearchKeyResult keyResult = node.searchKeyIndex(key);
-        if (!keyResult.exists) return null;
-        int index = keyResult.index;
-        Object result = node.entries[keyResult.index].value;
+        int index = node.searchKeyIndex(key);
+        if (index < 0) return null;
+        node = writable(node);
+        BNode.BEntry removed = node.entries[index];
+        Object result = removed.value;
         // 2.key为此结点min key，且删除后结点为空，把结点也删了
         if (index == 0 && node.size == 1) {
             // 2.1 如果该节点是root，则直接清空b+树
             if (node == root) {
+                node.latch();
                 clear();
+                recycle(node);
+                node.unlatch();
+                recycleEntry(removed);
                 return result;
             }
             // 2.2 维护双向链表
+            node.latch();// 直到父节点删除指向此节点的key前，读者到达此节点都需重试
             BNode pre = node.preNode, next = node.nextNode;
             if (pre != null) pre.nextNode = next;
             if (next != null) next.preNode = pre;
             if (head == node) head = (LeafNode) next;// 如果是删除头结点，修改为后继节点
 
             // 2.3 从父节点中删除指向此节点的key
-            BNode parent = node.parentNode;
-            node.clear();// 清空node避免内存泄露
-            deleteKeyFromNode(parent, key);
+            deleteKeyFromNode(node.parentNode, key);
+            recycle(node);// 清空node放回结点池
+            node.unlatch();
+            recycleEntry(removed);
             return result;
         }
 
         // 3.从结点删除key
+        node.latch();
         System.arraycopy(node.entries, index + 1, node.entries, index, node.size - index - 1);
         node.entries[--node.size] = null;// 置空避免内存泄漏
-
         // 4.key为此节点min key，需要循环修改祖先结点指向此节点的key
-        if (index == 0) {
-            String newMinKey = node.getMinKey();
-            node.dfsUpdateMinKey(newMinKey, key);
+        // 须在解锁前修改：否则祖先仍会把[key, 新min key)路由到此结点，此结点再路由到第一个子结点，
+        // 而合并时移入左兄弟的key正在这个区间内，乐观读者会读到null
+        if (index == 0 && node.parentNode != null) {
+            node.dfsUpdateMinKey(node.getMinKey(), key);
+            minKeyUpdates.increment();
         }
+        node.unlatch();
+        recycleEntry(removed);
 
         // 4.node的子结点或元素数量减少，尝试合并node
-        tryMergeNode(node);
-        return true;
+        tryMergeNode(node, node.size + 1);
+        return result;
     }
 
     // 合并结点
@@ -155,11 +455,18 @@ public class BTree {
      * 目的在于降低层高，每个索引结点仅持有少量的子结点时，可能出现叶子结点非常少的情况下，层高非常高
      * 是索引结点说明其某个子结点刚被删除
      *
-     * @param node 叶子结点和旁边的合并，索引结点怎么合并呢？
+     * 延迟合并模式下有兄弟结点时只记录欠满结点数，留给compact()统一合并
+     *
+     * @param node    叶子结点和旁边的合并，索引结点怎么合并呢？
+     * @param oldSize 删除前node的key数量
      */
-    private void tryMergeNode(BNode node) {
+    private void tryMergeNode(BNode node, int oldSize) {
         if (node.size >= this.M / 2) return;
         BNode pre = node.preNode, next = node.nextNode;
+        if (deferredMerge && !compacting && (pre != null || next != null)) {
+            if (oldSize >= this.M / 2) underfullNodes++;// 此次删除使其变为欠满
+            return;
+        }
         if (pre != null && (pre.size + node.size) <= M) {
             // 优先将node合入左节点
             doMergeNode(pre, node);
@@ -171,19 +478,28 @@ public class BTree {
             assert root == node : "没有兄弟节点必须的root节点";
             // 如果root节点页key数量为1，是索引页时，则循环向下降低层高，即删除没必要的索引页
             while (root.size == 1 && root instanceof IndexNode) {
-                BNode child = (BNode) root.entries[0].value;
+                BNode oldRoot = root;
+                BNode child = (BNode) oldRoot.entries[0].value;
+                oldRoot.latch();// 持有旧root的读者需重试
                 child.parentNode = null;// root节点没有父节点
-                root.clear();// 清空旧root节点
                 root = child;
+                recycle(oldRoot);// 清空旧root节点放回结点池
+                oldRoot.unlatch();
             }
         }
     }
 
-    // 将right节点合入left节点，尽量都向左合并，这样可以不修改Head结点
-    private void doMergeNode(BNode left, BNode right) {
+    // 将right节点合入left节点，尽量都向左合并，这样可以不修改Head结点；返回合并后的left，被快照共享时是其副本
+    private BNode doMergeNode(BNode left, BNode right) {
+        // right的entry会被移到left并重新编码，两者都不能是快照共享的结点
+        left = writable(left);
+        right = writable(right);
+        // 合并完成且父节点删除right前，读者到达这2个节点都需重试
+        left.latch();
+        right.latch();
+        String rightMinKey = right.getMinKey();// 拷贝时right的后缀会按left的前缀重新编码，先取出
         // 1.将right节点拷贝到left节点
-        System.arraycopy(right.entries, 0, left.entries, left.size, right.size);
-        left.size += right.size;
+        left.appendEntries(right);
         // 如果是索引节点需要维护父子关系
         if (left instanceof IndexNode) {
             for (int i = 0; i < right.size; i++) {
@@ -197,11 +513,158 @@ public class BTree {
         if (next != null) next.preNode = left;
 
         // 3.删除节点
-        deleteKeyFromNode(right.parentNode, right.getMinKey());
-        right.clear();// 清空节点避免内存泄露
+        deleteKeyFromNode(right.parentNode, rightMinKey);
+        recycle(right);// 清空节点放回结点池
+        right.unlatch();
+        left.unlatch();
+        merges.increment();
+        return left;
+    }
+
+    /**
+     * 开启延迟合并：删除使结点欠满时不再立即与兄弟结点合并、逐层删除父结点的索引项，
+     * 大批量删除(如TTL过期)时每次删除只修改一个叶子结点，欠满结点留给compact()一次性合并
+     * 只有结点被删空时才从树中摘除，所以树的层高和查询路径不受影响，只是空间利用率暂时降低
+     *
+     * @param maxUnderfullNodes 欠满结点累计到此数量时在删除后自动compact，<=0表示只在调用compact()时合并
+     */
+    public void deferMerge(int maxUnderfullNodes) {
+        lock.writeLock().lock();
+        try {
+            deferredMerge = true;
+            this.maxUnderfullNodes = maxUnderfullNodes;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 恢复删除时立即合并，并先合并延迟期间累积的欠满结点
+    public void eagerMerge() {
+        lock.writeLock().lock();
+        try {
+            deferredMerge = false;
+            compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void maybeCompact() {
+        if (deferredMerge && maxUnderfullNodes > 0 && underfullNodes >= maxUnderfullNodes) compact();
+    }
+
+    /**
+     * 合并欠满结点：自底向上逐层从左到右遍历，欠满结点吸收右兄弟直到不再欠满或放不下，
+     * 合并叶子结点删除的索引项使索引结点欠满时立即合并，因此叶子层之上通常只剩很少的欠满结点
+     * 只遍历一次叶子链表，不重建整棵树，遍历期间读者仍可乐观读
+     */
+    public void compact() {
+        lock.writeLock().lock();
+        try {
+            compacting = true;
+            for (int level = 0; ; level++) {
+                // 每层的第一个结点：从head向上level层，合并只吸收右兄弟，所以每层的第一个结点不变
+                BNode first = head;
+                for (int i = 0; i < level && first != null; i++) first = first.parentNode;
+                if (first == null || first == root) break;
+                for (BNode node = first; node != null; ) {
+                    BNode next = node.nextNode;
+                    if (node.size < M / 2 && next != null && node.size + next.size <= M) node = doMergeNode(node, next);
+                    else node = next;
+                }
+            }
+            underfullNodes = 0;
+        } finally {
+            compacting = false;
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 删除[fromKey, toKey)内的所有key：完全落在范围内的叶子结点整个摘除，父结点只删除一个索引项，
+     * 不逐个删除key；范围两端的叶子结点一次拷贝删除其中的一段
+     *
+     * @param fromKey 下界(包含)，null表示无下界
+     * @param toKey   上界(不包含)，null表示无上界
+     * @return 删除的key数量
+     */
+    public long removeRange(String fromKey, String toKey) {
+        lock.writeLock().lock();
+        try {
+            long removed = 0;
+            while (root != null) {
+                // 每次从root重新定位，摘除结点或合并后原来的链表位置可能失效
+                BNode leaf = fromKey == null ? head : findLeafNodeByKey(root, fromKey);
+                int from = fromKey == null ? 0 : lowerBound(leaf, fromKey);
+                if (from == leaf.size) {
+                    // 此叶子结点的key都小于fromKey，范围从下一个叶子结点开始
+                    leaf = leaf.nextNode;
+                    from = 0;
+                    if (leaf == null) break;
+                }
+                int to = toKey == null ? leaf.size : lowerBound(leaf, toKey);
+                if (to <= from) break;
+                removed += to - from;
+                if (from == 0 && to == leaf.size) dropLeaf(leaf);
+                else removeEntries(leaf, from, to);
+            }
+            if (bloom != null) {
+                bloom.removed += removed;
+                maybeRebuildBloom();
+            }
+            maybeCompact();
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 结点中第一个>=key的下标
+    private static int lowerBound(BNode node, String key) {
+        int index = node.searchKeyIndex(key);
+        return index >= 0 ? index : BNode.insertionPoint(index);
+    }
+
+    // 从树中摘除整个叶子结点
+    private void dropLeaf(BNode leaf) {
+        boolean owned = !shared(leaf);// 被快照共享的结点的entry仍属于快照，不能复用
+        leaf.latch();
+        if (leaf == root) {
+            clear();
+        } else {
+            BNode pre = leaf.preNode, next = leaf.nextNode;
+            if (pre != null) pre.nextNode = next;
+            if (next != null) next.preNode = pre;
+            if (head == leaf) head = (LeafNode) next;
+            deleteKeyFromNode(leaf.parentNode, leaf.getMinKey());
+        }
+        if (owned) {
+            for (int i = 0; i < leaf.size; i++) recycleEntry(leaf.entries[i]);
+        }
+        recycle(leaf);
+        leaf.unlatch();
+    }
+
+    // 删除叶子结点中[from, to)的entry，不会删空结点
+    private void removeEntries(BNode leaf, int from, int to) {
+        leaf = writable(leaf);
+        int oldSize = leaf.size;
+        String oldMinKey = leaf.getMinKey();
+        leaf.latch();
+        for (int i = from; i < to; i++) recycleEntry(leaf.entries[i]);
+        System.arraycopy(leaf.entries, to, leaf.entries, from, oldSize - to);
+        Arrays.fill(leaf.entries, oldSize - (to - from), oldSize, null);
+        leaf.size = oldSize - (to - from);
+        if (from == 0 && leaf.parentNode != null) {// 同deleteKeyFromNode，解锁前修改祖先
+            leaf.dfsUpdateMinKey(leaf.getMinKey(), oldMinKey);
+            minKeyUpdates.increment();
+        }
+        leaf.unlatch();
+        tryMergeNode(leaf, oldSize);
     }
 
     private Object insertNode(BNode node, String key, Object value) {
+        node = writable(node);
         // key存在，则覆盖
         if (node.isExists(key)) {
             // 如果已经存在，则覆盖原值，此时这里必须是叶子结点
@@ -211,33 +674,53 @@ public class BTree {
 
         // 新key，则插入
         BNode toInsert = node;
-        if (node.isFull()) {// mmp，页分裂，向右分裂一半
-            // todo: 这里需要根据即将插入的key来进行更优化的页分裂
-            BNode rightNode = splitNode(node);
+        if (node.isFull()) {// mmp，页分裂，分裂点见splitPoint
+            BNode rightNode = splitNode(node, splitPoint(node, key));
 
             // 页分裂完成，选择插入结点
-            if (key.compareTo(rightNode.getMinKey()) >= 0) {
+            if (rightNode.compareKeyAt(key, 0) >= 0) {
                 toInsert = rightNode;
             }
         }
-        // 此时结点必然未满，直接插入
-        toInsert.insert(key, value);
+        // 此时结点必然未满，直接插入；插入到最左叶子结点的头部时insert会改写祖先的min key
+        if (toInsert.parentNode != null && toInsert.compareKeyAt(key, 0) < 0) minKeyUpdates.increment();
+        toInsert.insert(key, value, entryPool.poll());
         return null;
     }
 
-    // 结点向右分裂
-    private BNode splitNode(BNode leftNode) {
-        BNode rightNode;
-        if (leftNode instanceof LeafNode) rightNode = new LeafNode(M);
-        else rightNode = new IndexNode(M);
+    /**
+     * 根据即将插入的key选择分裂点，返回留在左结点的key数量
+     * 在最右结点末尾追加(如递增的时间戳)时左结点保留90%，否则按一半分裂的左结点此后再也不会被插入，永远半满；
+     * 在最左结点头部插入(递减的key)时同理，左结点只保留10%；
+     * 其余情况把即将插入的key也算上，使插入后左右两边数量相差不超过1
+     */
+    private static int splitPoint(BNode node, String key) {
+        int size = node.size, pos = BNode.insertionPoint(node.searchKeyIndex(key));// key的插入位置
+        int small = Math.max(1, size / 10);
+        if (pos == size && node.nextNode == null) return size - small;
+        if (pos == 0 && node.preNode == null) return small;
+        int half = (size + 1) >> 1;
+        return pos < half ? half - 1 : half;
+    }
+
+    // 结点向右分裂，前partitionIndex个key留在左结点
+    private BNode splitNode(BNode leftNode, int partitionIndex) {
+        splits.increment();
+        BNode rightNode = newNode(leftNode instanceof LeafNode);
+        // 新结点插入父节点前，读者可能沿旧路径到达leftNode却找不到已移走的key，因此两者都锁到最后
+        leftNode.latch();
+        rightNode.latch();
 
-        // 将一半key拷贝到新结点
-        int partitionIndex = leftNode.size >> 1;
+        // 将分裂点之后的key拷贝到新结点
         System.arraycopy(leftNode.entries, partitionIndex, rightNode.entries, 0, leftNode.size - partitionIndex);
         Arrays.fill(leftNode.entries, partitionIndex, leftNode.size, null);// 必须置null避免内存泄漏(删除key这里却有引用)
         // 更新2个节点的size
         rightNode.size = leftNode.size - partitionIndex;
         leftNode.size = partitionIndex;
+        // 分裂后每半边的key范围更窄，公共前缀可能更长
+        rightNode.prefix = leftNode.prefix;
+        rightNode.compactPrefix();
+        leftNode.compactPrefix();
 
         // 维护双向链表
         BNode next = leftNode.nextNode;
@@ -262,13 +745,15 @@ public class BTree {
             assert leftNode == root : "node的父节点为null却不是root";
 
             // 必须新建父节点作为root
-            IndexNode parent = new IndexNode(M);
+            BNode parent = newNode(false);
             // 父节点维护子结点
             // 将node和rightNode作为子结点插入到新建父节点中
             parent.insert(leftNode.getMinKey(), leftNode);
             parent.insert(rightNode.getMinKey(), rightNode);
             root = parent;
         } else insertNode(leftNode.parentNode, rightNode.getMinKey(), rightNode);
+        rightNode.unlatch();
+        leftNode.unlatch();
         return rightNode;
     }
 
@@ -278,18 +763,7 @@ public class BTree {
 
         BNode cur = from;
         while (cur instanceof IndexNode) {
-            // k1 <= key < k2，则k1指向的子结点为正确路径的下一层级
-            BNode.SearchKeyResult keyResult = cur.searchKeyIndex(key);
-            int nextIndex;
-            if (keyResult.exists) {
-                nextIndex = keyResult.index;
-            } else if (keyResult.index == 0) {
-                nextIndex = 0;
-            } else {
-                // 不存在时，返回的是key应该插入的索引，则下个节点索引为index-1
-                nextIndex = keyResult.index - 1;
-            }
-            BNode next = (BNode) cur.entries[nextIndex].value;
+            BNode next = (BNode) cur.entries[childIndex(cur, key)].value;
             // 如果指向的是叶子结点，直接返回key所在叶子结点
             if (next instanceof LeafNode leaf) {
                 return leaf;
@@ -299,6 +773,780 @@ public class BTree {
         throw new RuntimeException(String.format("%s 没找到叶子结点", key));
     }
 
+    // 索引结点中key所在子结点的索引：k1 <= key < k2，则k1指向的子结点为正确路径的下一层级
+    private static int childIndex(BNode indexNode, String key) {
+        int index = indexNode.searchKeyIndex(key);
+        if (index >= 0) return index;
+        // 不存在时，-(index+1)是key应该插入的索引，则下个节点索引为-(index+1)-1
+        return index == -1 ? 0 : -index - 2;
+    }
+
+    /**
+     * 升序游标，从fromKey(包含)开始遍历到最后
+     *
+     * @param fromKey null表示从最小key开始
+     */
+    public Cursor cursor(String fromKey) {
+        return new Cursor(true, fromKey, null);
+    }
+
+    /**
+     * 范围查询[fromKey, toKey)，升序
+     *
+     * @param fromKey 下界(包含)，null表示无下界
+     * @param toKey   上界(不包含)，null表示无上界
+     */
+    public Cursor scan(String fromKey, String toKey) {
+        return new Cursor(true, fromKey, toKey);
+    }
+
+    /**
+     * 范围查询[fromKey, toKey)，降序
+     *
+     * @param fromKey 下界(包含)，null表示无下界
+     * @param toKey   上界(不包含)，null表示无上界
+     */
+    public Cursor scanDescending(String fromKey, String toKey) {
+        return new Cursor(false, fromKey, toKey);
+    }
+
+    // 前缀查询，升序
+    public Cursor scanPrefix(String prefix) {
+        return new Cursor(true, prefix, prefixUpperBound(prefix));
+    }
+
+    // 大于所有以prefix为前缀的key的最小字符串，null表示没有上界
+    static String prefixUpperBound(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) end--;
+        if (end == 0) return null;
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * 有序游标：从root定位一次叶子结点后，沿叶子结点双向链表逐个结点流式读取，不再从root下降
+     * 每次将整个叶子结点的entry拷贝到缓冲区并校验版本号，读取期间不持有任何锁
+     * 只有所在叶子结点被分裂、合并或删除导致链表位置失效时，才从root重新定位
+     * 弱一致性：遍历期间的并发写入可能可见也可能不可见，但不会重复或乱序返回key
+     */
+    public class Cursor implements Iterator<BNode.BEntry> {
+        private final boolean ascending;
+        private final String lo;// 下界(包含)，null表示无下界
+        private final String hi;// 上界(不包含)，null表示无上界
+        private String from;// 当前定位：升序时下一个key需>=from，降序时需<=from，null表示从头/尾开始
+        private boolean fromInclusive;
+        // 当前叶子结点的拷贝
+        private final String[] keys = new String[M];
+        private final Object[] values = new Object[M];
+        private int count, pos;
+        private BNode leaf;// 缓冲区拷贝自的叶子结点，null表示需要从root重新定位
+        private BNode sibling;// 拷贝时读到的下一个要遍历的兄弟结点
+        private boolean exhausted;
+
+        private Cursor(boolean ascending, String lo, String hi) {
+            this.ascending = ascending;
+            this.lo = lo;
+            this.hi = hi;
+            if (ascending) {
+                from = lo;
+                fromInclusive = true;
+            } else {
+                from = hi;
+                fromInclusive = false;
+            }
+        }
+
+        /**
+         * 重新定位游标，升序时下一个返回>=key的最小key，降序时返回<=key的最大key
+         * 可用于记录上次遍历到的key，之后从此处恢复遍历
+         */
+        public void seek(String key) {
+            from = key;
+            fromInclusive = true;
+            count = pos = 0;
+            leaf = sibling = null;
+            exhausted = false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (pos < count) return true;
+            if (exhausted) return false;
+            fill();
+            return pos < count;
+        }
+
+        @Override
+        public BNode.BEntry next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            String key = keys[pos];
+            Object value = values[pos];
+            keys[pos] = null;// 避免缓冲区持有已返回的value
+            values[pos++] = null;
+            from = key;
+            fromInclusive = false;
+            return new BNode.BEntry(key, value);
+        }
+
+        // 填充下一批entry，乐观读多次失败后退化为加读锁
+        private void fill() {
+            for (int i = 0; ; i++) {
+                boolean locked = i >= OptimisticReadRetries;
+                if (locked) lock.readLock().lock();
+                try {
+                    if (tryFill()) return;
+                } catch (NullPointerException | ArrayIndexOutOfBoundsException e) {
+                    // 结点正被修改或已被删除，重新定位
+                } finally {
+                    if (locked) lock.readLock().unlock();
+                }
+                count = pos = 0;
+                leaf = sibling = null;
+                Thread.onSpinWait();
+            }
+        }
+
+        // 返回true表示缓冲区已有数据或已遍历完毕，false表示需要重新定位
+        private boolean tryFill() {
+            while (true) {
+                BNode prev = leaf, node;
+                long v;
+                if (prev == null) {
+                    // 从root下降定位叶子结点
+                    BNode cur = root;
+                    if (cur == null) {
+                        exhausted = true;
+                        return true;
+                    }
+                    v = cur.stableVersion();
+                    if (cur != root) return false;
+                    while (cur instanceof IndexNode) {
+                        int index;
+                        if (from != null) index = childIndex(cur, from);
+                        else index = ascending ? 0 : cur.size - 1;
+                        BNode child = (BNode) cur.entries[index].value;
+                        long childVersion = child.stableVersion();
+                        if (!cur.validate(v)) return false;
+                        cur = child;
+                        v = childVersion;
+                    }
+                    node = cur;
+                } else {
+                    // 沿链表到兄弟结点
+                    node = sibling;
+                    if (node == null) {
+                        exhausted = true;
+                        return true;
+                    }
+                    v = node.stableVersion();
+                }
+                if (!copyLeaf(node, v, prev)) return false;
+                if (count > 0 || exhausted) return true;
+            }
+        }
+
+        /**
+         * 拷贝叶子结点中未遍历且在范围内的entry到缓冲区
+         *
+         * @param prev 上一个遍历的叶子结点，用于校验两者在链表中仍相邻，null则不校验
+         */
+        private boolean copyLeaf(BNode node, long v, BNode prev) {
+            count = pos = 0;
+            String prefix = node.prefix;
+            BNode.BEntry[] entries = node.entries;
+            int size = node.size;
+            if (ascending) {
+                for (int i = 0; i < size; i++) {
+                    String key = prefix.isEmpty() ? entries[i].key : prefix.concat(entries[i].key);
+                    if (lo != null && key.compareTo(lo) < 0) continue;
+                    if (from != null) {
+                        int cmp = key.compareTo(from);
+                        if (cmp < 0 || cmp == 0 && !fromInclusive) continue;
+                    }
+                    if (hi != null && key.compareTo(hi) >= 0) {
+                        exhausted = true;
+                        break;
+                    }
+                    keys[count] = key;
+                    values[count++] = entries[i].value;
+                }
+            } else {
+                for (int i = size - 1; i >= 0; i--) {
+                    String key = prefix.isEmpty() ? entries[i].key : prefix.concat(entries[i].key);
+                    if (hi != null && key.compareTo(hi) >= 0) continue;
+                    if (from != null) {
+                        int cmp = key.compareTo(from);
+                        if (cmp > 0 || cmp == 0 && !fromInclusive) continue;
+                    }
+                    if (lo != null && key.compareTo(lo) < 0) {
+                        exhausted = true;
+                        break;
+                    }
+                    keys[count] = key;
+                    values[count++] = entries[i].value;
+                }
+            }
+            BNode next = ascending ? node.nextNode : node.preNode;
+            // 上一个结点分裂后，旧的兄弟指针会跳过新分裂出的结点
+            BNode back = ascending ? node.preNode : node.nextNode;
+            if ((prev != null && back != prev) || !node.validate(v)) {
+                Arrays.fill(keys, 0, count, null);
+                Arrays.fill(values, 0, count, null);
+                count = 0;
+                exhausted = false;
+                return false;
+            }
+            leaf = node;
+            sibling = next;
+            return true;
+        }
+    }
+
+    /**
+     * 开启布隆过滤器：get先查询过滤器，一定不存在的key直接返回null，不再从root下降
+     * 适合大部分查询的key不存在的场景；每次插入多一次置位，删除的key无法从过滤器清除，
+     * 存活的key超过容量或删除的key过多时在写锁内遍历叶子结点重建，容量翻倍，均摊到每次写入为O(1)
+     *
+     * @param falsePositiveRate 目标误判率，key数量超出内存上限能容纳的数量后实际误判率会高于它
+     * @param maxBytes          位数组的内存上限
+     */
+    public void enableBloomFilter(double falsePositiveRate, long maxBytes) {
+        lock.writeLock().lock();
+        try {
+            bloomFalsePositiveRate = falsePositiveRate;
+            bloomMaxBytes = maxBytes;
+            rebuildBloom();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void disableBloomFilter() {
+        lock.writeLock().lock();
+        try {
+            bloom = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void maybeRebuildBloom() {
+        if (bloom != null && bloom.needsRebuild()) rebuildBloom();
+    }
+
+    // 按当前key数量的2倍重建，新过滤器发布前仍使用旧的，旧的包含发布前插入的所有key
+    private void rebuildBloom() {
+        long live = 0;
+        for (BNode leaf = head; leaf != null; leaf = leaf.nextNode) live += leaf.size;
+        BloomFilter filter = new BloomFilter(Math.max(MinBloomCapacity, live * 2), bloomFalsePositiveRate, bloomMaxBytes);
+        for (BNode leaf = head; leaf != null; leaf = leaf.nextNode) {
+            for (int i = 0; i < leaf.size; i++) filter.add(leaf.keyAt(i));
+        }
+        filter.keys = live;
+        bloom = filter;
+    }
+
+    /**
+     * 布隆过滤器统计
+     *
+     * @param checks         get查询过滤器的次数
+     * @param savedDescents  过滤器判定不存在而省去的下降次数
+     * @param falsePositives 过滤器判定可能存在但树中没有的次数
+     * @param bits           当前位数组大小
+     * @param hashes         每个key置位的数量
+     * @param capacity       当前位数组按目标误判率能容纳的key数量
+     */
+    public record BloomStats(long checks, long savedDescents, long falsePositives, long bits, int hashes, long capacity) {
+        // 实际误判率：误判次数 / 不存在的key的查询次数
+        public double falsePositiveRate() {
+            long negatives = savedDescents + falsePositives;
+            return negatives == 0 ? 0 : (double) falsePositives / negatives;
+        }
+    }
+
+    // 未开启时返回null
+    public BloomStats bloomStats() {
+        BloomFilter filter = bloom;
+        if (filter == null) return null;
+        return new BloomStats(bloomChecks.sum(), bloomSaved.sum(), bloomFalsePositives.sum(),
+                filter.bitCount(), filter.hashCount(), filter.capacity);
+    }
+
+    /**
+     * 叶子结点的平均填充率：key总数 / (叶子结点数 * M)，空树返回0
+     * 随机插入时约为0.7，递增插入时接近0.9
+     */
+    public double fillFactor() {
+        lock.readLock().lock();
+        try {
+            long keys = 0, leaves = 0;
+            for (BNode node = head; node != null; node = node.nextNode) {
+                keys += node.size;
+                leaves++;
+            }
+            return leaves == 0 ? 0 : (double) keys / (leaves * M);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 所有层的结点总数
+    public long nodeCount() {
+        lock.readLock().lock();
+        try {
+            long count = 0;
+            for (BNode first = root; first != null; first = first instanceof IndexNode ? (BNode) first.entries[0].value : null) {
+                for (BNode node = first; node != null; node = node.nextNode) count++;
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 统计快照：结构信息在读锁下沿各层结点链表遍历得到，代价与结点数成正比，不宜在热路径上调用；
+     * 计数器和延迟直方图只是求和，不阻塞读写
+     */
+    public BTreeStats stats() {
+        int height = 0;
+        long size = 0, leafNodes = 0, indexNodes = 0;
+        lock.readLock().lock();
+        try {
+            for (BNode first = root; first != null; first = first instanceof IndexNode ? (BNode) first.entries[0].value : null) {
+                height++;
+                for (BNode node = first; node != null; node = node.nextNode) {
+                    if (node instanceof IndexNode) indexNodes++;
+                    else {
+                        leafNodes++;
+                        size += node.size;
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new BTreeStats(height, size, leafNodes, indexNodes, leafNodes == 0 ? 0 : (double) size / (leafNodes * M),
+                splits.sum(), merges.sum(), minKeyUpdates.sum(),
+                getLatency.snapshot(), putLatency.snapshot(), removeLatency.snapshot());
+    }
+
+    /**
+     * 开关get/put/remove的延迟统计，默认开启
+     * 每次操作多2次System.nanoTime和一次LongAdder累加，百纳秒级的get上约占一成，可按需关闭
+     * getAll/putAll等批量操作不计入
+     */
+    public void setLatencyStats(boolean enabled) {
+        latencyStats = enabled;
+    }
+
+    public boolean isLatencyStats() {
+        return latencyStats;
+    }
+
+    public void resetLatency() {
+        getLatency.reset();
+        putLatency.reset();
+        removeLatency.reset();
+    }
+
+    /**
+     * 注册到平台MBeanServer，ObjectName为com.fzk.bplus:type=BTree,name=name
+     *
+     * @return 注册的ObjectName，不再使用时需调用unregisterMBean，否则MBeanServer会一直持有此树
+     */
+    public ObjectName registerMBean(String name) {
+        try {
+            ObjectName objectName = mbeanName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new BTreeMonitor(this), objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new RuntimeException("注册BTree MBean失败: " + name, e);
+        }
+    }
+
+    public void unregisterMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName(name));
+        } catch (JMException e) {
+            throw new RuntimeException("注销BTree MBean失败: " + name, e);
+        }
+    }
+
+    private static ObjectName mbeanName(String name) throws JMException {
+        return new ObjectName("com.fzk.bplus:type=BTree,name=" + ObjectName.quote(name));
+    }
+
+    // 优先从结点池取结点，池中的结点已被reset
+    private BNode newNode(boolean leaf) {
+        BNode node = leaf ? leafPool.poll() : indexPool.poll();
+        if (node == null) node = leaf ? new LeafNode(M) : new IndexNode(M);
+        node.epoch = epoch;
+        return node;
+    }
+
+    /**
+     * 从树中移除的结点放回结点池，调用方需持有结点的latch
+     * 结点复用后版本号继续递增而不是归零，所以持有旧引用的乐观读者校验必然失败，不会读到复用后的内容
+     * 快照仍可能引用的结点不能复用
+     */
+    private void recycle(BNode node) {
+        if (shared(node)) return;
+        node.reset();
+        ArrayDeque<BNode> pool = node instanceof LeafNode ? leafPool : indexPool;
+        if (pool.size() < NodePoolSize) pool.offer(node);
+    }
+
+    // 从结点删除的BEntry放回池中，下次插入时复用；同recycle，持有它的乐观读者所在结点的版本号已变化
+    private void recycleEntry(BNode.BEntry entry) {
+        entry.key = null;
+        entry.value = null;
+        if (entryPool.size() < EntryPoolSize) entryPool.offer(entry);
+    }
+
+    // 结点是否可能被未关闭的快照引用
+    private boolean shared(BNode node) {
+        return node.epoch <= snapshotEpoch && openSnapshots.get() > 0;
+    }
+
+    /**
+     * 写者修改结点前调用：结点被快照共享时复制一份替换它在树中的位置，返回可修改的结点
+     * 先递归复制父结点，因此修改一个结点会复制其到root的整条路径，dfsUpdateMinKey修改祖先时也无需再检查
+     * 旧结点的父结点、兄弟结点指针仍可能被修改，但快照不使用它们
+     */
+    private BNode writable(BNode node) {
+        if (!shared(node)) return node;
+        BNode parent = node.parentNode == null ? null : writable(node.parentNode);
+        BNode copy = newNode(node instanceof LeafNode);
+        for (int i = 0; i < node.size; i++) {
+            copy.entries[i] = new BNode.BEntry(node.entries[i].key, node.entries[i].value);
+        }
+        copy.size = node.size;
+        copy.prefix = node.prefix;
+        copy.parentNode = parent;
+        copy.preNode = node.preNode;
+        copy.nextNode = node.nextNode;
+
+        node.latch();// 已到达旧结点的乐观读者需重试，转到副本上读取
+        if (copy.preNode != null) copy.preNode.nextNode = copy;
+        if (copy.nextNode != null) copy.nextNode.preNode = copy;
+        if (copy instanceof IndexNode) {
+            for (int i = 0; i < copy.size; i++) {
+                ((BNode) copy.entries[i].value).parentNode = copy;
+            }
+        }
+        if (parent == null) {
+            assert node == root : "没有父结点的结点必须是root";
+            root = copy;
+        } else {
+            int index = parent.searchKeyIndex(node.getMinKey());
+            assert index >= 0 && parent.entries[index].value == node : "父结点中没找到指向此结点的key";
+            parent.latch();
+            parent.entries[index].value = copy;
+            parent.unlatch();
+        }
+        if (head == node) head = (LeafNode) copy;
+        node.unlatch();
+        return copy;
+    }
+
+    /**
+     * 创建当前树的只读快照，之后的写入对快照不可见
+     * 快照用完应关闭，否则直到它被GC回收前，写者都要为它复制结点
+     */
+    public Snapshot snapshot() {
+        lock.writeLock().lock();
+        try {
+            snapshotEpoch = epoch++;
+            openSnapshots.incrementAndGet();
+            return new Snapshot(root);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 某一时刻的B+树快照，结点内容不再改变，读取无需任何锁和版本校验
+     */
+    public class Snapshot implements AutoCloseable {
+        private final BNode root;
+        private final int height;// 层数，即root到叶子结点的结点数
+        private final Cleaner.Cleanable cleanable;
+
+        private Snapshot(BNode root) {
+            this.root = root;
+            int h = 0;
+            for (BNode node = root; node != null; h++) {
+                node = node instanceof IndexNode ? (BNode) node.entries[0].value : null;
+            }
+            this.height = h;
+            // 关闭动作不能引用快照本身，否则快照永远不会被回收
+            AtomicInteger counter = openSnapshots;
+            this.cleanable = SnapshotCleaner.register(this, counter::decrementAndGet);
+        }
+
+        public Object get(String key) {
+            if (root == null) return null;
+            BNode node = root;
+            while (node instanceof IndexNode) {
+                node = (BNode) node.entries[childIndex(node, key)].value;
+            }
+            int index = node.searchKeyIndex(key);
+            return index >= 0 ? node.entries[index].value : null;
+        }
+
+        /**
+         * 范围查询[fromKey, toKey)，升序
+         *
+         * @param fromKey 下界(包含)，null表示无下界
+         * @param toKey   上界(不包含)，null表示无上界
+         */
+        public Iterator<BNode.BEntry> scan(String fromKey, String toKey) {
+            return new SnapshotIterator(fromKey, toKey);
+        }
+
+        // 关闭后写者不再为此快照复制结点，不能再读取快照
+        @Override
+        public void close() {
+            cleanable.clean();// 只会执行一次
+        }
+
+        // 保存从root到当前叶子结点的路径，叶子结点遍历完后回到父结点取下一个子结点
+        private class SnapshotIterator implements Iterator<BNode.BEntry> {
+            private final String hi;
+            private final BNode[] path = new BNode[height];
+            private final int[] index = new int[height];// path中每个结点下一个要访问的entry
+            private BNode.BEntry next;
+
+            SnapshotIterator(String lo, String hi) {
+                this.hi = hi;
+                if (root == null) return;
+                BNode node = root;
+                for (int level = 0; level < height; level++) {
+                    path[level] = node;
+                    if (node instanceof IndexNode) {
+                        index[level] = lo == null ? 0 : childIndex(node, lo);
+                        node = (BNode) node.entries[index[level]].value;
+                    } else index[level] = lo == null ? 0 : BNode.insertionPoint(node.searchKeyIndex(lo));
+                }
+                advance();
+            }
+
+            private void advance() {
+                next = null;
+                int leafLevel = height - 1;
+                while (true) {
+                    BNode leaf = path[leafLevel];
+                    int i = index[leafLevel];
+                    if (i < leaf.size) {
+                        index[leafLevel]++;
+                        String key = leaf.keyAt(i);
+                        if (hi == null || key.compareTo(hi) < 0) next = new BNode.BEntry(key, leaf.entries[i].value);
+                        return;
+                    }
+                    // 叶子结点遍历完，向上找到还有下一个子结点的祖先，再沿最左路径下降
+                    int level = leafLevel - 1;
+                    while (level >= 0 && ++index[level] >= path[level].size) level--;
+                    if (level < 0) return;
+                    for (int l = level + 1; l < height; l++) {
+                        path[l] = (BNode) path[l - 1].entries[index[l - 1]].value;
+                        index[l] = 0;
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public BNode.BEntry next() {
+                if (next == null) throw new NoSuchElementException();
+                BNode.BEntry result = next;
+                advance();
+                return result;
+            }
+        }
+    }
+
+    /**
+     * 将整棵树写入文件，用readFrom可自底向上重建，比逐个put快得多
+     * 在快照上按key升序遍历，写入期间不阻塞读写，文件内容是调用时刻的树
+     * <p>
+     * 格式：| magic(4) | 版本(4) | 阶(4) | 数量(8) | CRC32C(4) | entry | entry | ... |
+     * entry：| 长度(4) | 与上一个key的公共前缀长度(varint) | 其余部分长度(varint) | 其余部分UTF-8字节 | value |
+     * 有序的相邻key通常有很长的公共前缀，只写不同的部分；value格式见BValueCodec
+     * 数量和校验和写完才知道，最后回填到文件头；写完会force，但不是原子替换，需要时先写临时文件再rename
+     *
+     * @return 写入的key数量
+     */
+    public long writeTo(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING); Snapshot snap = snapshot()) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(FileBufferSize);
+            CRC32C crc = new CRC32C();
+            long count = 0;
+            String prev = "";
+            channel.position(FileHeaderSize);
+            for (Iterator<BNode.BEntry> it = snap.scan(null, null); it.hasNext(); count++) {
+                BNode.BEntry entry = it.next();
+                int shared = BNode.commonPrefixLength(prev, entry.key);
+                if (shared > 0 && Character.isHighSurrogate(entry.key.charAt(shared - 1))) shared--;// 不拆开代理对，否则无法按UTF-8编码
+                byte[] suffix = entry.key.substring(shared).getBytes(StandardCharsets.UTF_8);
+                while (true) {
+                    int start = buf.position();
+                    try {
+                        buf.position(start + 4);
+                        putVarint(buf, shared);
+                        putVarint(buf, suffix.length);
+                        buf.put(suffix);
+                        BValueCodec.write(buf, entry.value);
+                        buf.putInt(start, buf.position() - start - 4);
+                        break;
+                    } catch (BufferOverflowException | IllegalArgumentException e) {
+                        // 缓冲区剩余空间不足，写出已有的entry后重试；单个entry比缓冲区还大时扩容
+                        buf.position(start);
+                        if (start > 0) flush(channel, buf, crc);
+                        else buf = ByteBuffer.allocateDirect(buf.capacity() * 2);
+                    }
+                }
+                prev = entry.key;
+            }
+            flush(channel, buf, crc);
+            ByteBuffer header = ByteBuffer.allocate(FileHeaderSize)
+                    .putInt(FileMagic).putInt(FileVersion).putInt(M).putLong(count).putInt((int) crc.getValue())
+                    .flip();
+            while (header.hasRemaining()) channel.write(header, header.position());
+            channel.force(true);
+            return count;
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf, CRC32C crc) throws IOException {
+        buf.flip();
+        crc.update(buf.duplicate());
+        while (buf.hasRemaining()) channel.write(buf);
+        buf.clear();
+    }
+
+    /**
+     * 以文件中记录的阶和0.9的填充因子读取writeTo写入的文件，留一些空间给此后的插入
+     */
+    public static BTree readFrom(Path path) throws IOException {
+        return readFrom(path, 0, 0.9);
+    }
+
+    /**
+     * 读取writeTo写入的文件，用BulkLoader自底向上构建，不经过逐个插入时的查找和页分裂
+     * 文件被截断、校验和不一致或格式错误时抛出IOException
+     *
+     * @param m          B+树的阶，<=0表示使用文件中记录的阶
+     * @param fillFactor 结点填充因子，见BulkLoader
+     */
+    public static BTree readFrom(Path path, int m, double fillFactor) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(FileHeaderSize);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) throw new IOException("B+树文件被截断: " + path);
+            }
+            header.flip();
+            if (header.getInt() != FileMagic) throw new IOException("不是B+树文件: " + path);
+            int version = header.getInt();
+            if (version != FileVersion) throw new IOException("不支持的B+树文件版本: " + version);
+            int fileM = header.getInt();
+            long count = header.getLong();
+            int expectCrc = header.getInt();
+
+            BulkLoader loader = new BulkLoader(m > 0 ? m : fileM, fillFactor);
+            FileInput in = new FileInput(channel);
+            byte[] scratch = new byte[64];
+            String prev = "";
+            try {
+                for (long i = 0; i < count; i++) {
+                    ByteBuffer buf = in.ensure(4);
+                    int len = buf.getInt();
+                    // 长度在校验和之前使用，损坏的长度不能导致分配巨大的缓冲区
+                    if (len < 0 || len > in.remaining()) throw new IOException("entry长度错误，第" + i + "个key: " + len);
+                    buf = in.ensure(len);
+                    int end = buf.position() + len;
+                    int shared = getVarint(buf), suffixLen = getVarint(buf);
+                    if (shared > prev.length() || suffixLen < 0 || suffixLen > end - buf.position())
+                        throw new IOException("entry格式错误，第" + i + "个key");
+                    if (scratch.length < suffixLen) scratch = new byte[Math.max(suffixLen, scratch.length * 2)];
+                    buf.get(scratch, 0, suffixLen);
+                    String suffix = new String(scratch, 0, suffixLen, StandardCharsets.UTF_8);
+                    String key = shared == 0 ? suffix : prev.substring(0, shared).concat(suffix);
+                    Object value = BValueCodec.read(buf);
+                    if (buf.position() != end) throw new IOException("entry长度不一致，第" + i + "个key");
+                    loader.add(key, value);
+                    prev = key;
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("B+树文件被截断: " + path);
+            }
+            if (in.buf.hasRemaining() || channel.position() != channel.size())
+                throw new IOException("B+树文件末尾有多余数据: " + path);
+            if (in.crc.getValue() != (expectCrc & 0xFFFFFFFFL)) throw new IOException("B+树文件校验和不一致: " + path);
+            return loader.build();
+        }
+    }
+
+    // 按大块读取文件的缓冲区，读入的同时计算校验和
+    private static final class FileInput {
+        private final FileChannel channel;
+        private final CRC32C crc = new CRC32C();
+        private ByteBuffer buf = ByteBuffer.allocateDirect(FileBufferSize).flip();
+        private long unread;// 文件中还未读入缓冲区的字节数
+
+        FileInput(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.unread = channel.size() - channel.position();
+        }
+
+        // 缓冲区中未读的字节加上文件中还未读入的字节，不需要系统调用
+        long remaining() {
+            return buf.remaining() + unread;
+        }
+
+        // 尽量使缓冲区至少有n字节未读，文件不足时不报错，由之后的读取抛出BufferUnderflowException
+        ByteBuffer ensure(int n) throws IOException {
+            if (buf.remaining() >= n) return buf;
+            if (n > buf.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(n, buf.capacity() * 2));
+                bigger.put(buf);
+                buf = bigger;
+            } else buf.compact();
+            while (buf.position() < n) {
+                int start = buf.position();
+                int read = channel.read(buf);
+                if (read < 0) break;
+                unread -= read;
+                crc.update(buf.duplicate().flip().position(start));
+            }
+            return buf.flip();
+        }
+    }
+
+    // 无符号LEB128，每字节低7位为数据，最高位表示后面还有字节
+    private static void putVarint(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer buf) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("varint过长");
+    }
+
     public void printTree() {
         if (root == null) System.out.println("{}");
         else root.printSelf();
@@ -321,8 +1569,122 @@ public class BTree {
     }
 
     public void clear() {
-        this.root = null;
-        this.head = null;
+        lock.writeLock().lock();// 写锁可重入，put/remove内部也可调用
+        try {
+            this.root = null;
+            this.head = null;
+            BloomFilter filter = bloom;
+            if (filter != null) bloom = new BloomFilter(filter.capacity, bloomFalsePositiveRate, bloomMaxBytes);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 从有序数据自底向上批量构建B+树，避免逐个put导致的频繁页分裂和半满叶子结点
+     * 叶子结点按填充因子装满后才开辟下一个，每个结点写满时将其min key提升到上一层，
+     * 所以各层索引结点在一次遍历中同步建好，叶子结点和各层索引结点的双向链表也顺带维护好
+     * 填充因子越大内存占用越少，但之后随机插入会更快触发页分裂
+     * <pre>
+     * BTree.BulkLoader loader = new BTree.BulkLoader(128, 0.9);
+     * for (...) loader.add(key, value);// key必须严格递增
+     * BTree tree = loader.build();
+     * </pre>
+     */
+    public static class BulkLoader {
+        private final int M;
+        private final int fill;// 每个结点装入的key数量
+        private final ArrayList<BNode> tails = new ArrayList<>();// 每一层当前正在装填的结点，下标0为叶子层
+        private String lastKey;
+        private boolean built;
+
+        /**
+         * @param m          B+树的阶
+         * @param fillFactor 结点填充因子，取值[0.5, 1]，小于0.5的结点删除时会立刻触发合并
+         */
+        public BulkLoader(int m, double fillFactor) {
+            if (m < 4) throw new RuntimeException("B+树的阶不能小于4");
+            if (fillFactor < 0.5 || fillFactor > 1)
+                throw new RuntimeException("填充因子需在[0.5, 1]之间: " + fillFactor);
+            this.M = m;
+            this.fill = Math.max(M / 2, Math.min(M, (int) Math.ceil(M * fillFactor)));
+        }
+
+        // 追加一个键值对，key必须严格大于上一个key
+        public BulkLoader add(String key, Object value) {
+            if (built) throw new RuntimeException("BulkLoader已经build过了");
+            if (lastKey != null && key.compareTo(lastKey) <= 0)
+                throw new RuntimeException(String.format("批量构建的key必须严格递增: %s after %s", key, lastKey));
+            lastKey = key;
+            append(0, key, value);
+            return this;
+        }
+
+        // 结束装填，处理每层最后一个结点后返回构建好的B+树
+        public BTree build() {
+            if (built) throw new RuntimeException("BulkLoader已经build过了");
+            built = true;
+            BTree tree = new BTree(M);
+            if (tails.isEmpty()) return tree;
+
+            BNode root = null;
+            for (int level = 0; level < tails.size(); level++) {
+                BNode cur = tails.get(level), pre = cur.preNode;
+                if (pre == null) {
+                    // 此层只有一个结点，即为root
+                    cur.compactPrefix();
+                    root = cur;
+                    break;
+                }
+                // 最后一个结点可能不满：能合入前一个结点则合并，否则从前一个结点匀一些过来
+                if (cur.size < M / 2) {
+                    if (pre.size + cur.size <= M) {
+                        for (int i = 0; i < cur.size; i++) pre.insert(cur.keyAt(i), cur.entries[i].value);
+                        pre.nextNode = null;
+                        cur.clear();
+                        continue;
+                    }
+                    int move = (pre.size + cur.size) / 2 - cur.size;
+                    for (int i = pre.size - move; i < pre.size; i++) cur.insert(pre.keyAt(i), pre.entries[i].value);
+                    Arrays.fill(pre.entries, pre.size - move, pre.size, null);
+                    pre.size -= move;
+                    pre.compactPrefix();
+                }
+                cur.compactPrefix();
+                append(level + 1, cur.getMinKey(), cur);
+            }
+            // 合并最后一个结点后，上层可能只剩下单个子结点的索引结点，降低层高
+            while (root instanceof IndexNode && root.size == 1) {
+                BNode child = (BNode) root.entries[0].value;
+                root.clear();
+                root = child;
+            }
+            root.parentNode = null;
+            BNode head = root;
+            while (head instanceof IndexNode) head = (BNode) head.entries[0].value;
+            tree.head = (LeafNode) head;
+            tree.root = root;
+            tails.clear();
+            return tree;
+        }
+
+        private void append(int level, String key, Object value) {
+            if (tails.size() == level) tails.add(null);
+            BNode cur = tails.get(level);
+            if (cur == null || cur.size >= fill) {
+                BNode next = level == 0 ? new LeafNode(M) : new IndexNode(M);
+                if (cur != null) {
+                    // 当前结点已装满，维护双向链表并将其提升到上一层
+                    cur.nextNode = next;
+                    next.preNode = cur;
+                    cur.compactPrefix();
+                    append(level + 1, cur.getMinKey(), cur);
+                }
+                tails.set(level, next);
+                cur = next;
+            }
+            cur.insert(key, value);
+        }
     }
 
     // 非叶子结点，即索引结点
@@ -358,11 +1720,11 @@ public class BTree {
                 if (remove instanceof IndexNode ir) {
                     for (int i = 0; i < ir.size; i++) {
                         queue.add((BNode) ir.entries[i].value);
-                        if (!ir.entries[i].key.equals(((BNode) ir.entries[i].value).getMinKey())) {
-                            throw new RuntimeException(String.format("%s不是其指向的子结点min key", ir.entries[i].key));
+                        if (!ir.keyAt(i).equals(((BNode) ir.entries[i].value).getMinKey())) {
+                            throw new RuntimeException(String.format("%s不是其指向的子结点min key", ir.keyAt(i)));
                         }
                         if ((((BNode) ir.entries[i].value).parentNode != ir)) {
-                            throw new RuntimeException(String.format("%s的父节点指向错误", ir.entries[i].key));
+                            throw new RuntimeException(String.format("%s的父节点指向错误", ir.keyAt(i)));
                         }
                     }
                 }
@@ -0,0 +1,69 @@
+package com.fzk.bplus;
+
+/**
+ * BTree的JMX管理接口，由BTree.registerMBean注册到平台MBeanServer，可用JConsole、VisualVM等查看
+ * 属性都是BTreeStats中的值，延迟单位为纳秒
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+public interface BTreeMXBean {
+    int getHeight();
+
+    long getSize();
+
+    long getLeafNodes();
+
+    long getIndexNodes();
+
+    double getFillFactor();
+
+    long getSplits();
+
+    long getMerges();
+
+    long getMinKeyUpdates();
+
+    long getGetCount();
+
+    double getGetMeanNanos();
+
+    long getGetP50Nanos();
+
+    long getGetP99Nanos();
+
+    long getGetP999Nanos();
+
+    long getGetMaxNanos();
+
+    long getPutCount();
+
+    double getPutMeanNanos();
+
+    long getPutP50Nanos();
+
+    long getPutP99Nanos();
+
+    long getPutP999Nanos();
+
+    long getPutMaxNanos();
+
+    long getRemoveCount();
+
+    double getRemoveMeanNanos();
+
+    long getRemoveP50Nanos();
+
+    long getRemoveP99Nanos();
+
+    long getRemoveP999Nanos();
+
+    long getRemoveMaxNanos();
+
+    boolean isLatencyStats();
+
+    void setLatencyStats(boolean enabled);
+
+    // 清空延迟直方图，计数器不清空
+    void resetLatency();
+}
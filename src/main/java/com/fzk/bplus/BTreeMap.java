@@ -0,0 +1,1155 @@
+package com.fzk.bplus;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * 泛型B+树，实现NavigableMap，可直接替换TreeMap
+ * key按Comparator排序，未指定时按key的自然顺序(Comparable)，与TreeMap一致不允许null key
+ * <p>
+ * 结构与LongBTree相同：结点内key和value以并行的Object[]数组保存，没有BEntry对象，
+ * 索引结点keys[i]为children[i]的下界，不维护父结点指针，插入删除都是从root递归向下；
+ * 叶子结点额外维护双向链表，用于有序遍历和floor/ceiling跨结点查找
+ * <p>
+ * 与TreeMap一样不是线程安全的，迭代器快速失败；并发访问请用BTree或外部加锁
+ * subMap/headMap/tailMap/descendingMap返回的都是视图，对视图的修改会反映到原map
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+public class BTreeMap<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+    // B+树的阶
+    public final int M;
+    private static final int BinarySearchThreshold = 8;// 二分查找阈值，数组较小时遍历平均情况下会比较次数更少
+    private final Comparator<? super K> comparator;
+    private Node root;
+    private int size;// 键值对数量
+    private int modCount;// 结构修改次数，用于迭代器快速失败
+    // 以下字段用于不分配对象地从递归中带回结果
+    private boolean replaced;
+    private Object oldValue;
+    private final SubMap whole = new SubMap(true, null, false, true, null, false, false);// 整个map的视图，导航方法委托给它
+
+    public BTreeMap(int m) {
+        this(m, null);
+    }
+
+    /**
+     * @param comparator null表示按key的自然顺序
+     */
+    public BTreeMap(int m, Comparator<? super K> comparator) {
+        if (m < 4) throw new RuntimeException("B+树的阶不能小于4");
+        M = m;
+        this.comparator = comparator;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(Object k1, Object k2) {
+        return comparator == null ? ((Comparable<Object>) k1).compareTo(k2) : comparator.compare((K) k1, (K) k2);
+    }
+
+    /**
+     * 查找key的索引
+     *
+     * @return key存在时返回其索引，不存在时返回-(插入位置+1)
+     */
+    private int search(Object[] keys, int size, Object key) {
+        if (size >= BinarySearchThreshold) {
+            int left = 0, right = size - 1;
+            while (left <= right) {
+                int mid = (left + right) >>> 1;
+                int cmp = compare(key, keys[mid]);
+                if (cmp < 0) right = mid - 1;
+                else if (cmp > 0) left = mid + 1;
+                else return mid;
+            }
+            return -(left + 1);
+        }
+        // 遍历
+        for (int i = 0; i < size; i++) {
+            int cmp = compare(key, keys[i]);
+            if (cmp == 0) return i;
+            if (cmp < 0) return -(i + 1);
+        }
+        return -(size + 1);
+    }
+
+    // 索引结点中key所在子结点的索引：k1 <= key < k2，则k1指向的子结点为正确路径的下一层级
+    private int childIndex(Node node, Object key) {
+        int r = search(node.keys, node.size, key);
+        if (r >= 0) return r;
+        int insertion = -r - 1;
+        return insertion == 0 ? 0 : insertion - 1;
+    }
+
+    private LeafNode findLeaf(Object key) {
+        Node cur = root;
+        while (cur instanceof IndexNode in) {
+            cur = in.children[childIndex(in, key)];
+        }
+        return (LeafNode) cur;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return comparator;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (key == null && comparator == null) throw new NullPointerException();
+        LeafNode leaf = findLeaf(key);
+        if (leaf == null) return null;
+        int r = search(leaf.keys, leaf.size, key);
+        return r >= 0 ? (V) leaf.values[r] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (key == null && comparator == null) throw new NullPointerException();
+        LeafNode leaf = findLeaf(key);
+        return leaf != null && search(leaf.keys, leaf.size, key) >= 0;
+    }
+
+    /**
+     * 插入或更新指定key的值
+     *
+     * @return 若key不存在则null，存在则返回旧值
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        if (key == null && comparator == null) throw new NullPointerException();
+        if (root == null) {
+            compare(key, key);// 与TreeMap一致，类型不可比较时在此抛出异常
+            root = new LeafNode(M);
+        }
+        replaced = false;
+        Node right = insert(root, key, value);
+        if (right != null) {
+            // root分裂，新建root
+            IndexNode newRoot = new IndexNode(M);
+            newRoot.insertAt(0, root.keys[0], root);
+            newRoot.insertAt(1, right.keys[0], right);
+            root = newRoot;
+        }
+        if (replaced) {
+            V old = (V) oldValue;
+            oldValue = null;
+            return old;
+        }
+        size++;
+        modCount++;
+        return null;
+    }
+
+    /**
+     * 递归插入
+     *
+     * @return node分裂出的右结点，未分裂则返回null
+     */
+    private Node insert(Node node, Object key, Object value) {
+        if (node instanceof LeafNode leaf) {
+            int r = search(leaf.keys, leaf.size, key);
+            if (r >= 0) {
+                // 已经存在，覆盖原值
+                replaced = true;
+                oldValue = leaf.values[r];
+                leaf.values[r] = value;
+                return null;
+            }
+            int index = -r - 1;
+            if (!leaf.isFull()) {
+                leaf.insertAt(index, key, value);
+                return null;
+            }
+            // 页分裂，向右分裂一半
+            LeafNode right = (LeafNode) leaf.split();
+            if (index <= leaf.size) leaf.insertAt(index, key, value);
+            else right.insertAt(index - leaf.size, key, value);
+            return right;
+        }
+
+        IndexNode in = (IndexNode) node;
+        int ci = childIndex(in, key);
+        if (ci == 0 && compare(key, in.keys[0]) < 0) in.keys[0] = key;// 维护下界
+        Node childRight = insert(in.children[ci], key, value);
+        if (childRight == null) return null;
+        // 子结点分裂，将分裂出的右结点插入到ci+1
+        int index = ci + 1;
+        if (!in.isFull()) {
+            in.insertAt(index, childRight.keys[0], childRight);
+            return null;
+        }
+        IndexNode right = (IndexNode) in.split();
+        if (index <= in.size) in.insertAt(index, childRight.keys[0], childRight);
+        else right.insertAt(index - in.size, childRight.keys[0], childRight);
+        return right;
+    }
+
+    /**
+     * 删除指定key
+     *
+     * @return key不存在返回null，存在时返回删除的旧值
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (key == null && comparator == null) throw new NullPointerException();
+        if (root == null || !delete(root, key)) return null;
+        size--;
+        modCount++;
+        if (root.size == 0) {
+            root = null;
+        } else if (root instanceof IndexNode in && in.size == 1) {
+            // root只剩一个子结点，降低层高
+            root = in.children[0];
+        }
+        V old = (V) oldValue;
+        oldValue = null;
+        return old;
+    }
+
+    // 递归删除，返回key是否存在
+    private boolean delete(Node node, Object key) {
+        if (node instanceof LeafNode leaf) {
+            int r = search(leaf.keys, leaf.size, key);
+            if (r < 0) return false;
+            oldValue = leaf.values[r];
+            leaf.removeAt(r);
+            return true;
+        }
+        IndexNode in = (IndexNode) node;
+        int ci = childIndex(in, key);
+        if (!delete(in.children[ci], key)) return false;
+        if (in.children[ci].size < M / 2) rebalance(in, ci);
+        return true;
+    }
+
+    /**
+     * 子结点元素过少：优先从左右兄弟借一个，兄弟也不富余时合并
+     * 借用时移动的entry自带的key即为其新下界，因此父结点只需更新被借方的key
+     */
+    private void rebalance(IndexNode parent, int ci) {
+        Node child = parent.children[ci];
+        Node left = ci > 0 ? parent.children[ci - 1] : null;
+        Node right = ci + 1 < parent.size ? parent.children[ci + 1] : null;
+        if (left != null && left.size > M / 2) {
+            // 从左兄弟借最后一个
+            child.insertAt(0, left, left.size - 1);
+            left.removeAt(left.size - 1);
+            parent.keys[ci] = child.keys[0];
+        } else if (right != null && right.size > M / 2) {
+            // 从右兄弟借第一个
+            child.insertAt(child.size, right, 0);
+            right.removeAt(0);
+            parent.keys[ci + 1] = right.keys[0];
+        } else if (left != null) {
+            // 合入左兄弟
+            left.appendAll(child);
+            parent.removeAt(ci);
+        } else if (right != null) {
+            // 右兄弟合入
+            child.appendAll(right);
+            parent.removeAt(ci + 1);
+        }
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        size = 0;
+        modCount++;
+    }
+
+    // ------------------------ 按位置导航，返回null表示不存在 ------------------------
+
+    // 叶子结点中的一个位置
+    private record Pos(LeafNode leaf, int index) {
+        Object key() {
+            return leaf.keys[index];
+        }
+
+        Object value() {
+            return leaf.values[index];
+        }
+
+        Pos next() {
+            if (index + 1 < leaf.size) return new Pos(leaf, index + 1);
+            return leaf.next == null ? null : new Pos(leaf.next, 0);
+        }
+
+        Pos prev() {
+            if (index > 0) return new Pos(leaf, index - 1);
+            return leaf.prev == null ? null : new Pos(leaf.prev, leaf.prev.size - 1);
+        }
+    }
+
+    private Pos firstPos() {
+        Node cur = root;
+        if (cur == null) return null;
+        while (cur instanceof IndexNode in) cur = in.children[0];
+        return new Pos((LeafNode) cur, 0);
+    }
+
+    private Pos lastPos() {
+        Node cur = root;
+        if (cur == null) return null;
+        while (cur instanceof IndexNode in) cur = in.children[in.size - 1];
+        return new Pos((LeafNode) cur, cur.size - 1);
+    }
+
+    // 大于等于(inclusive)或大于key的第一个位置
+    private Pos ceilingPos(Object key, boolean inclusive) {
+        LeafNode leaf = findLeaf(key);
+        if (leaf == null) return null;
+        int r = search(leaf.keys, leaf.size, key);
+        int index = r >= 0 ? (inclusive ? r : r + 1) : -r - 1;
+        if (index < leaf.size) return new Pos(leaf, index);
+        return leaf.next == null ? null : new Pos(leaf.next, 0);
+    }
+
+    // 小于等于(inclusive)或小于key的最后一个位置
+    private Pos floorPos(Object key, boolean inclusive) {
+        LeafNode leaf = findLeaf(key);
+        if (leaf == null) return null;
+        int r = search(leaf.keys, leaf.size, key);
+        int index = r >= 0 ? (inclusive ? r : r - 1) : -r - 2;
+        if (index >= 0) return new Pos(leaf, index);
+        return leaf.prev == null ? null : new Pos(leaf.prev, leaf.prev.size - 1);
+    }
+
+    // ------------------------ NavigableMap，委托给整个map的视图 ------------------------
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return whole.entrySet();
+    }
+
+    @Override
+    public NavigableSet<K> keySet() {
+        return whole.navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return whole.navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return whole.descendingKeySet();
+    }
+
+    @Override
+    public NavigableMap<K, V> descendingMap() {
+        return whole.descendingMap();
+    }
+
+    @Override
+    public Entry<K, V> firstEntry() {
+        return whole.firstEntry();
+    }
+
+    @Override
+    public Entry<K, V> lastEntry() {
+        return whole.lastEntry();
+    }
+
+    @Override
+    public Entry<K, V> pollFirstEntry() {
+        return whole.pollFirstEntry();
+    }
+
+    @Override
+    public Entry<K, V> pollLastEntry() {
+        return whole.pollLastEntry();
+    }
+
+    @Override
+    public K firstKey() {
+        return whole.firstKey();
+    }
+
+    @Override
+    public K lastKey() {
+        return whole.lastKey();
+    }
+
+    @Override
+    public Entry<K, V> lowerEntry(K key) {
+        return whole.lowerEntry(key);
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return whole.lowerKey(key);
+    }
+
+    @Override
+    public Entry<K, V> floorEntry(K key) {
+        return whole.floorEntry(key);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return whole.floorKey(key);
+    }
+
+    @Override
+    public Entry<K, V> ceilingEntry(K key) {
+        return whole.ceilingEntry(key);
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return whole.ceilingKey(key);
+    }
+
+    @Override
+    public Entry<K, V> higherEntry(K key) {
+        return whole.higherEntry(key);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return whole.higherKey(key);
+    }
+
+    @Override
+    public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return whole.subMap(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    @Override
+    public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+        return whole.headMap(toKey, inclusive);
+    }
+
+    @Override
+    public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return whole.tailMap(fromKey, inclusive);
+    }
+
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    /**
+     * [lo, hi]范围内的视图，边界是否包含由loInclusive、hiInclusive决定，fromStart/toEnd表示没有下界/上界
+     * descending时所有方向相反：first为最大key，ceiling为<=key的最大key，以此类推
+     * 与TreeMap.NavigableSubMap的实现思路相同，先按升序求绝对位置，再根据方向映射
+     */
+    private class SubMap extends AbstractMap<K, V> implements NavigableMap<K, V> {
+        private final boolean fromStart, loInclusive, toEnd, hiInclusive, descending;
+        private final K lo, hi;
+
+        SubMap(boolean fromStart, K lo, boolean loInclusive, boolean toEnd, K hi, boolean hiInclusive, boolean descending) {
+            if (!fromStart && !toEnd && compare(lo, hi) > 0) throw new IllegalArgumentException("fromKey > toKey");
+            this.fromStart = fromStart;
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.toEnd = toEnd;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            this.descending = descending;
+        }
+
+        private boolean tooLow(Object key) {
+            if (fromStart) return false;
+            int c = compare(key, lo);
+            return c < 0 || (c == 0 && !loInclusive);
+        }
+
+        private boolean tooHigh(Object key) {
+            if (toEnd) return false;
+            int c = compare(key, hi);
+            return c > 0 || (c == 0 && !hiInclusive);
+        }
+
+        private boolean inRange(Object key) {
+            return !tooLow(key) && !tooHigh(key);
+        }
+
+        // 用于创建子视图时检查边界：不包含的边界可以等于本视图不包含的边界
+        private boolean inRange(Object key, boolean inclusive) {
+            if (inclusive) return inRange(key);
+            return (fromStart || compare(key, lo) >= 0) && (toEnd || compare(hi, key) >= 0);
+        }
+
+        // 升序的绝对位置，超出范围返回null
+        private Pos absLowest() {
+            Pos p = fromStart ? firstPos() : ceilingPos(lo, loInclusive);
+            return p == null || tooHigh(p.key()) ? null : p;
+        }
+
+        private Pos absHighest() {
+            Pos p = toEnd ? lastPos() : floorPos(hi, hiInclusive);
+            return p == null || tooLow(p.key()) ? null : p;
+        }
+
+        private Pos absCeiling(Object key, boolean inclusive) {
+            if (tooLow(key)) return absLowest();
+            Pos p = ceilingPos(key, inclusive);
+            return p == null || tooHigh(p.key()) ? null : p;
+        }
+
+        private Pos absFloor(Object key, boolean inclusive) {
+            if (tooHigh(key)) return absHighest();
+            Pos p = floorPos(key, inclusive);
+            return p == null || tooLow(p.key()) ? null : p;
+        }
+
+        // 按视图方向的位置
+        private Pos first() {
+            return descending ? absHighest() : absLowest();
+        }
+
+        private Pos last() {
+            return descending ? absLowest() : absHighest();
+        }
+
+        // 视图方向上>=key(inclusive)或>key的第一个位置
+        private Pos ceiling(Object key, boolean inclusive) {
+            return descending ? absFloor(key, inclusive) : absCeiling(key, inclusive);
+        }
+
+        // 视图方向上<=key(inclusive)或<key的最后一个位置
+        private Pos floor(Object key, boolean inclusive) {
+            return descending ? absCeiling(key, inclusive) : absFloor(key, inclusive);
+        }
+
+        @SuppressWarnings("unchecked")
+        private Entry<K, V> entry(Pos p) {
+            return p == null ? null : new SimpleImmutableEntry<>((K) p.key(), (V) p.value());
+        }
+
+        @SuppressWarnings("unchecked")
+        private K key(Pos p) {
+            return p == null ? null : (K) p.key();
+        }
+
+        private K keyOrThrow(Pos p) {
+            if (p == null) throw new NoSuchElementException();
+            return key(p);
+        }
+
+        private Entry<K, V> poll(Pos p) {
+            Entry<K, V> e = entry(p);
+            if (e != null) BTreeMap.this.remove(e.getKey());
+            return e;
+        }
+
+        @Override
+        public int size() {
+            if (fromStart && toEnd) return BTreeMap.this.size;
+            int count = 0;
+            for (Iterator<Entry<K, V>> it = new EntryIterator(); it.hasNext(); it.next()) count++;
+            return count;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return fromStart && toEnd ? BTreeMap.this.size == 0 : absLowest() == null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return inRange(key) && BTreeMap.this.containsKey(key);
+        }
+
+        @Override
+        public V get(Object key) {
+            return inRange(key) ? BTreeMap.this.get(key) : null;
+        }
+
+        @Override
+        public V put(K key, V value) {
+            if (!inRange(key)) throw new IllegalArgumentException("key out of range");
+            return BTreeMap.this.put(key, value);
+        }
+
+        @Override
+        public V remove(Object key) {
+            return inRange(key) ? BTreeMap.this.remove(key) : null;
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            return descending ? Collections.reverseOrder(comparator) : comparator;
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return SubMap.this.size();
+                }
+
+                @Override
+                public boolean isEmpty() {
+                    return SubMap.this.isEmpty();
+                }
+            };
+        }
+
+        @Override
+        public NavigableSet<K> keySet() {
+            return navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> navigableKeySet() {
+            return new KeySet<>(this);
+        }
+
+        @Override
+        public NavigableSet<K> descendingKeySet() {
+            return descendingMap().navigableKeySet();
+        }
+
+        @Override
+        public NavigableMap<K, V> descendingMap() {
+            return new SubMap(fromStart, lo, loInclusive, toEnd, hi, hiInclusive, !descending);
+        }
+
+        @Override
+        public Entry<K, V> firstEntry() {
+            return entry(first());
+        }
+
+        @Override
+        public Entry<K, V> lastEntry() {
+            return entry(last());
+        }
+
+        @Override
+        public Entry<K, V> pollFirstEntry() {
+            return poll(first());
+        }
+
+        @Override
+        public Entry<K, V> pollLastEntry() {
+            return poll(last());
+        }
+
+        @Override
+        public K firstKey() {
+            return keyOrThrow(first());
+        }
+
+        @Override
+        public K lastKey() {
+            return keyOrThrow(last());
+        }
+
+        @Override
+        public Entry<K, V> lowerEntry(K key) {
+            return entry(floor(key, false));
+        }
+
+        @Override
+        public K lowerKey(K key) {
+            return key(floor(key, false));
+        }
+
+        @Override
+        public Entry<K, V> floorEntry(K key) {
+            return entry(floor(key, true));
+        }
+
+        @Override
+        public K floorKey(K key) {
+            return key(floor(key, true));
+        }
+
+        @Override
+        public Entry<K, V> ceilingEntry(K key) {
+            return entry(ceiling(key, true));
+        }
+
+        @Override
+        public K ceilingKey(K key) {
+            return key(ceiling(key, true));
+        }
+
+        @Override
+        public Entry<K, V> higherEntry(K key) {
+            return entry(ceiling(key, false));
+        }
+
+        @Override
+        public K higherKey(K key) {
+            return key(ceiling(key, false));
+        }
+
+        @Override
+        public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+            if (!inRange(fromKey, fromInclusive)) throw new IllegalArgumentException("fromKey out of range");
+            if (!inRange(toKey, toInclusive)) throw new IllegalArgumentException("toKey out of range");
+            if (descending) return new SubMap(false, toKey, toInclusive, false, fromKey, fromInclusive, true);
+            return new SubMap(false, fromKey, fromInclusive, false, toKey, toInclusive, false);
+        }
+
+        @Override
+        public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+            if (!inRange(toKey, inclusive)) throw new IllegalArgumentException("toKey out of range");
+            if (descending) return new SubMap(false, toKey, inclusive, toEnd, hi, hiInclusive, true);
+            return new SubMap(fromStart, lo, loInclusive, false, toKey, inclusive, false);
+        }
+
+        @Override
+        public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+            if (!inRange(fromKey, inclusive)) throw new IllegalArgumentException("fromKey out of range");
+            if (descending) return new SubMap(fromStart, lo, loInclusive, false, fromKey, inclusive, true);
+            return new SubMap(false, fromKey, inclusive, toEnd, hi, hiInclusive, false);
+        }
+
+        @Override
+        public SortedMap<K, V> subMap(K fromKey, K toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public SortedMap<K, V> headMap(K toKey) {
+            return headMap(toKey, false);
+        }
+
+        @Override
+        public SortedMap<K, V> tailMap(K fromKey) {
+            return tailMap(fromKey, true);
+        }
+
+        /**
+         * 沿叶子结点链表按视图方向遍历，快速失败
+         * remove删除当前key后结点可能被借用或合并，因此按已返回的key重新定位下一个位置
+         */
+        private class EntryIterator implements Iterator<Entry<K, V>> {
+            private Pos next = first();
+            private K lastReturned;
+            private boolean canRemove;
+            private int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Entry<K, V> next() {
+                if (next == null) throw new NoSuchElementException();
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                K key = (K) next.key();
+                Entry<K, V> e = new WriteThroughEntry(key, (V) next.value());
+                lastReturned = key;
+                canRemove = true;
+                next = advance(descending ? next.prev() : next.next());
+                return e;
+            }
+
+            // 越过视图边界则结束
+            private Pos advance(Pos p) {
+                if (p == null) return null;
+                return (descending ? tooLow(p.key()) : tooHigh(p.key())) ? null : p;
+            }
+
+            @Override
+            public void remove() {
+                if (!canRemove) throw new IllegalStateException();
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                BTreeMap.this.remove(lastReturned);
+                canRemove = false;
+                expectedModCount = modCount;
+                next = ceiling(lastReturned, false);
+            }
+        }
+    }
+
+    // 迭代器返回的entry，setValue写回map
+    private class WriteThroughEntry extends SimpleEntry<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        WriteThroughEntry(K key, V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            BTreeMap.this.put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+
+    /**
+     * NavigableMap的key视图，所有操作委托给map
+     */
+    private static class KeySet<E> extends AbstractSet<E> implements NavigableSet<E> {
+        private final NavigableMap<E, ?> m;
+
+        KeySet(NavigableMap<E, ?> m) {
+            this.m = m;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            Iterator<? extends Entry<E, ?>> it = m.entrySet().iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public E next() {
+                    return it.next().getKey();
+                }
+
+                @Override
+                public void remove() {
+                    it.remove();
+                }
+            };
+        }
+
+        @Override
+        public Iterator<E> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public int size() {
+            return m.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return m.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return m.containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!m.containsKey(o)) return false;
+            m.remove(o);
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            m.clear();
+        }
+
+        @Override
+        public Comparator<? super E> comparator() {
+            return m.comparator();
+        }
+
+        @Override
+        public E first() {
+            return m.firstKey();
+        }
+
+        @Override
+        public E last() {
+            return m.lastKey();
+        }
+
+        @Override
+        public E lower(E e) {
+            return m.lowerKey(e);
+        }
+
+        @Override
+        public E floor(E e) {
+            return m.floorKey(e);
+        }
+
+        @Override
+        public E ceiling(E e) {
+            return m.ceilingKey(e);
+        }
+
+        @Override
+        public E higher(E e) {
+            return m.higherKey(e);
+        }
+
+        @Override
+        public E pollFirst() {
+            Entry<E, ?> e = m.pollFirstEntry();
+            return e == null ? null : e.getKey();
+        }
+
+        @Override
+        public E pollLast() {
+            Entry<E, ?> e = m.pollLastEntry();
+            return e == null ? null : e.getKey();
+        }
+
+        @Override
+        public NavigableSet<E> descendingSet() {
+            return new KeySet<>(m.descendingMap());
+        }
+
+        @Override
+        public NavigableSet<E> subSet(E fromElement, boolean fromInclusive, E toElement, boolean toInclusive) {
+            return new KeySet<>(m.subMap(fromElement, fromInclusive, toElement, toInclusive));
+        }
+
+        @Override
+        public NavigableSet<E> headSet(E toElement, boolean inclusive) {
+            return new KeySet<>(m.headMap(toElement, inclusive));
+        }
+
+        @Override
+        public NavigableSet<E> tailSet(E fromElement, boolean inclusive) {
+            return new KeySet<>(m.tailMap(fromElement, inclusive));
+        }
+
+        @Override
+        public SortedSet<E> subSet(E fromElement, E toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<E> headSet(E toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<E> tailSet(E fromElement) {
+            return tailSet(fromElement, true);
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            boolean modified = false;
+            for (Object o : c) modified |= remove(o);
+            return modified;
+        }
+    }
+
+    // 检查B+树结构是否正常，此操作会遍历整个树结构，操作代价高
+    public void checkTree() {
+        if (root == null) {
+            if (size != 0) throw new RuntimeException("root为null但size不为0");
+            return;
+        }
+        int count = checkNode(root, null, null, true);
+        if (count != size) throw new RuntimeException(String.format("键值对数量%d与size%d不一致", count, size));
+        // 叶子结点链表与树中的顺序一致
+        int linked = 0;
+        LeafNode prev = null;
+        for (LeafNode leaf = firstPos().leaf; leaf != null; leaf = leaf.next) {
+            if (leaf.prev != prev) throw new RuntimeException("叶子结点的前继指针错误: " + leaf);
+            linked += leaf.size;
+            prev = leaf;
+        }
+        if (linked != size) throw new RuntimeException(String.format("叶子结点链表中的键值对数量%d与size%d不一致", linked, size));
+    }
+
+    // 检查node的key都在[lo, hi)内且有序，null表示没有边界，返回子树的键值对数量
+    private int checkNode(Node node, Object lo, Object hi, boolean isRoot) {
+        if (!isRoot && node.size < M / 2)
+            throw new RuntimeException(String.format("结点元素数量%d小于M/2", node.size));
+        for (int i = 0; i < node.size; i++) {
+            if ((lo != null && compare(node.keys[i], lo) < 0) || (hi != null && compare(node.keys[i], hi) >= 0))
+                throw new RuntimeException(String.format("key %s不在[%s, %s)内", node.keys[i], lo, hi));
+            if (i > 0 && compare(node.keys[i - 1], node.keys[i]) >= 0)
+                throw new RuntimeException(String.format("index: %d的key>=其后的key, %s", i - 1, node));
+        }
+        for (int i = node.size; i < node.keys.length; i++) {
+            if (node.keys[i] != null) throw new RuntimeException(String.format("index: %d必须为null, %s", i, node));
+        }
+        if (node instanceof LeafNode) return node.size;
+        IndexNode in = (IndexNode) node;
+        int count = 0;
+        for (int i = 0; i < in.size; i++) {
+            if (compare(in.children[i].keys[0], in.keys[i]) < 0)
+                throw new RuntimeException(String.format("%s大于其指向的子结点min key", in.keys[i]));
+            count += checkNode(in.children[i], in.keys[i], i + 1 < in.size ? in.keys[i + 1] : hi, false);
+        }
+        return count;
+    }
+
+    abstract static class Node {
+        int size;
+        final Object[] keys;
+
+        Node(int m) {
+            keys = new Object[m];
+        }
+
+        boolean isFull() {
+            return size == keys.length;
+        }
+
+        // 从src结点的srcIndex处拷贝一个entry插入到本结点index处
+        abstract void insertAt(int index, Node src, int srcIndex);
+
+        abstract void removeAt(int index);
+
+        // 将右边的结点全部追加到本结点
+        abstract void appendAll(Node right);
+
+        // 将后一半entry移到新建的右结点
+        abstract Node split();
+
+        @Override
+        public String toString() {
+            return Arrays.toString(Arrays.copyOf(keys, size));
+        }
+    }
+
+    static class LeafNode extends Node {
+        final Object[] values;
+        LeafNode prev, next;// 叶子结点双向链表
+
+        LeafNode(int m) {
+            super(m);
+            values = new Object[m];
+        }
+
+        void insertAt(int index, Object key, Object value) {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            keys[index] = key;
+            values[index] = value;
+            size++;
+        }
+
+        @Override
+        void insertAt(int index, Node src, int srcIndex) {
+            insertAt(index, src.keys[srcIndex], ((LeafNode) src).values[srcIndex]);
+        }
+
+        @Override
+        void removeAt(int index) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            keys[size] = null;// 置空避免内存泄漏
+            values[size] = null;
+        }
+
+        @Override
+        void appendAll(Node right) {
+            LeafNode r = (LeafNode) right;
+            System.arraycopy(r.keys, 0, keys, size, r.size);
+            System.arraycopy(r.values, 0, values, size, r.size);
+            size += r.size;
+            // right从链表中移除
+            next = r.next;
+            if (next != null) next.prev = this;
+        }
+
+        @Override
+        Node split() {
+            LeafNode right = new LeafNode(keys.length);
+            int partitionIndex = size >> 1;
+            right.size = size - partitionIndex;
+            System.arraycopy(keys, partitionIndex, right.keys, 0, right.size);
+            System.arraycopy(values, partitionIndex, right.values, 0, right.size);
+            Arrays.fill(keys, partitionIndex, size, null);// 必须置null避免内存泄漏
+            Arrays.fill(values, partitionIndex, size, null);
+            size = partitionIndex;
+            // right插入链表
+            right.next = next;
+            right.prev = this;
+            if (next != null) next.prev = right;
+            next = right;
+            return right;
+        }
+    }
+
+    static class IndexNode extends Node {
+        final Node[] children;
+
+        IndexNode(int m) {
+            super(m);
+            children = new Node[m];
+        }
+
+        void insertAt(int index, Object key, Node child) {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(children, index, children, index + 1, size - index);
+            keys[index] = key;
+            children[index] = child;
+            size++;
+        }
+
+        @Override
+        void insertAt(int index, Node src, int srcIndex) {
+            insertAt(index, src.keys[srcIndex], ((IndexNode) src).children[srcIndex]);
+        }
+
+        @Override
+        void removeAt(int index) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(children, index + 1, children, index, size - index - 1);
+            size--;
+            keys[size] = null;// 置空避免内存泄漏
+            children[size] = null;
+        }
+
+        @Override
+        void appendAll(Node right) {
+            System.arraycopy(right.keys, 0, keys, size, right.size);
+            System.arraycopy(((IndexNode) right).children, 0, children, size, right.size);
+            size += right.size;
+        }
+
+        @Override
+        Node split() {
+            IndexNode right = new IndexNode(keys.length);
+            int partitionIndex = size >> 1;
+            right.size = size - partitionIndex;
+            System.arraycopy(keys, partitionIndex, right.keys, 0, right.size);
+            System.arraycopy(children, partitionIndex, right.children, 0, right.size);
+            Arrays.fill(keys, partitionIndex, size, null);// 必须置null避免内存泄漏
+            Arrays.fill(children, partitionIndex, size, null);
+            size = partitionIndex;
+            return right;
+        }
+    }
+}
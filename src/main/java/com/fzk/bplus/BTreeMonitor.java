@@ -0,0 +1,175 @@
+package com.fzk.bplus;
+
+/**
+ * BTreeMXBean的实现
+ * 监控工具每次刷新会逐个读取所有属性，而结构信息需要遍历结点，因此快照缓存一段时间，同一次刷新只遍历一次
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+final class BTreeMonitor implements BTreeMXBean {
+    private static final long CacheNanos = 1_000_000_000L;
+    private final BTree tree;
+    private volatile BTreeStats cached;
+    private volatile long cachedAt;
+
+    BTreeMonitor(BTree tree) {
+        this.tree = tree;
+    }
+
+    private BTreeStats stats() {
+        BTreeStats stats = cached;
+        long now = System.nanoTime();
+        if (stats == null || now - cachedAt > CacheNanos) {
+            cached = stats = tree.stats();
+            cachedAt = now;
+        }
+        return stats;
+    }
+
+    @Override
+    public int getHeight() {
+        return stats().height();
+    }
+
+    @Override
+    public long getSize() {
+        return stats().size();
+    }
+
+    @Override
+    public long getLeafNodes() {
+        return stats().leafNodes();
+    }
+
+    @Override
+    public long getIndexNodes() {
+        return stats().indexNodes();
+    }
+
+    @Override
+    public double getFillFactor() {
+        return stats().fillFactor();
+    }
+
+    @Override
+    public long getSplits() {
+        return stats().splits();
+    }
+
+    @Override
+    public long getMerges() {
+        return stats().merges();
+    }
+
+    @Override
+    public long getMinKeyUpdates() {
+        return stats().minKeyUpdates();
+    }
+
+    @Override
+    public long getGetCount() {
+        return stats().get().count();
+    }
+
+    @Override
+    public double getGetMeanNanos() {
+        return stats().get().meanNanos();
+    }
+
+    @Override
+    public long getGetP50Nanos() {
+        return stats().get().p50Nanos();
+    }
+
+    @Override
+    public long getGetP99Nanos() {
+        return stats().get().p99Nanos();
+    }
+
+    @Override
+    public long getGetP999Nanos() {
+        return stats().get().p999Nanos();
+    }
+
+    @Override
+    public long getGetMaxNanos() {
+        return stats().get().maxNanos();
+    }
+
+    @Override
+    public long getPutCount() {
+        return stats().put().count();
+    }
+
+    @Override
+    public double getPutMeanNanos() {
+        return stats().put().meanNanos();
+    }
+
+    @Override
+    public long getPutP50Nanos() {
+        return stats().put().p50Nanos();
+    }
+
+    @Override
+    public long getPutP99Nanos() {
+        return stats().put().p99Nanos();
+    }
+
+    @Override
+    public long getPutP999Nanos() {
+        return stats().put().p999Nanos();
+    }
+
+    @Override
+    public long getPutMaxNanos() {
+        return stats().put().maxNanos();
+    }
+
+    @Override
+    public long getRemoveCount() {
+        return stats().remove().count();
+    }
+
+    @Override
+    public double getRemoveMeanNanos() {
+        return stats().remove().meanNanos();
+    }
+
+    @Override
+    public long getRemoveP50Nanos() {
+        return stats().remove().p50Nanos();
+    }
+
+    @Override
+    public long getRemoveP99Nanos() {
+        return stats().remove().p99Nanos();
+    }
+
+    @Override
+    public long getRemoveP999Nanos() {
+        return stats().remove().p999Nanos();
+    }
+
+    @Override
+    public long getRemoveMaxNanos() {
+        return stats().remove().maxNanos();
+    }
+
+    @Override
+    public boolean isLatencyStats() {
+        return tree.isLatencyStats();
+    }
+
+    @Override
+    public void setLatencyStats(boolean enabled) {
+        tree.setLatencyStats(enabled);
+    }
+
+    @Override
+    public void resetLatency() {
+        tree.resetLatency();
+        cached = null;
+    }
+}
@@ -0,0 +1,29 @@
+package com.fzk.bplus;
+
+/**
+ * BTree的统计快照，由BTree.stats()生成
+ * 结构信息在读锁下遍历各层结点链表得到，代价与结点数成正比；计数器和延迟直方图只是求和
+ *
+ * @param height        层高，空树为0，只有一个叶子结点时为1
+ * @param size          key总数
+ * @param leafNodes     叶子结点数
+ * @param indexNodes    索引结点数
+ * @param fillFactor    叶子结点平均填充率：key总数 / (叶子结点数 * M)
+ * @param splits        结点分裂次数，含root分裂
+ * @param merges        结点合并次数，含compact()中的合并
+ * @param minKeyUpdates 结点min key变化而需改写祖先结点key的次数
+ * @param get           get延迟，未开启延迟统计时计数为0
+ * @param put           put延迟，含等待写锁的时间
+ * @param remove        remove延迟，含等待写锁的时间
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+public record BTreeStats(int height, long size, long leafNodes, long indexNodes, double fillFactor,
+                         long splits, long merges, long minKeyUpdates,
+                         Latency get, Latency put, Latency remove) {
+    /**
+     * 一种操作的延迟分布，单位纳秒；百分位数是所在桶的上界，误差不超过12.5%
+     */
+    public record Latency(long count, double meanNanos, long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+    }
+}
@@ -0,0 +1,329 @@
+package com.fzk.bplus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * B+树预写日志(WAL)，put/remove先追加到日志再修改内存中的树
+ * 日志记录格式：| length(4) | crc32(4) | type(1) | key | value |，length和crc32都针对其后的记录体
+ * <p>
+ * 刷盘模式：
+ * PER_OP：每次追加都立刻force，最慢但每个操作返回时都已落盘
+ * GROUP_COMMIT：和Logger一样双队列轮转实现组提交，刷新线程一次写入整批日志后只force一次，
+ * 调用方等待自己那条日志所在批次落盘后返回，groupCommitWindow可让刷新线程多等一会以攒更大的批次
+ * ASYNC：调用方追加后立刻返回，刷新线程每隔groupCommitWindow刷一次盘，崩溃时可能丢失最后一个窗口内的操作
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+public class BTreeWal implements Closeable {
+    public enum SyncMode {
+        PER_OP, GROUP_COMMIT, ASYNC
+    }
+
+    static final byte PutType = 1, RemoveType = 2;
+    private static final int RecordHeaderSize = 8;
+
+    private final FileChannel file;
+    private final SyncMode mode;
+    private final long windowNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();// 刷新线程等待新日志
+    private final Condition durableCond = lock.newCondition();// 调用方等待日志落盘
+    private ArrayList<ByteBuffer> queueWrite = new ArrayList<>();// 调用方写入此队列
+    private ArrayList<ByteBuffer> queueRead = new ArrayList<>();// 刷新线程从此队列写文件
+    private long appendedSeq;// 已追加的日志序号
+    private long durableSeq;// 已落盘的日志序号
+    private long writtenBytes;// 日志文件当前大小
+    private IOException failure;// 刷新线程出错后所有调用方都会失败
+    private volatile boolean closed;
+    private final FlushThread flushThread;
+
+    /**
+     * @param groupCommitWindow 刷新线程每批之间的等待时间，GROUP_COMMIT可为0，ASYNC必须大于0
+     */
+    public BTreeWal(Path path, SyncMode mode, long groupCommitWindow, TimeUnit unit) throws IOException {
+        if (mode == SyncMode.ASYNC && groupCommitWindow <= 0)
+            throw new RuntimeException("ASYNC模式的刷盘间隔必须大于0");
+        this.mode = mode;
+        this.windowNanos = unit.toNanos(groupCommitWindow);
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.writtenBytes = file.size();
+        file.position(writtenBytes);
+        if (mode != SyncMode.PER_OP) {
+            flushThread = new FlushThread();
+            flushThread.setDaemon(true);
+            flushThread.start();
+        } else flushThread = null;
+    }
+
+    /**
+     * 日志回放的结果
+     *
+     * @param records        回放的记录数
+     * @param truncatedAt    不完整的尾部被截断的位置，没有截断时为-1
+     * @param truncatedBytes 截断丢弃的字节数
+     */
+    public record ReplayResult(long records, long truncatedAt, long truncatedBytes) {
+    }
+
+    /**
+     * 回放日志文件，遇到不完整或校验失败的记录即认为是崩溃时写了一半的尾部，将其截断
+     */
+    public static ReplayResult replay(Path path, BTree tree) throws IOException {
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = 0, end = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(RecordHeaderSize);
+            CRC32 crc32 = new CRC32();
+            while (position + RecordHeaderSize <= end) {
+                header.clear();
+                readFully(channel, header, position);
+                int length = header.getInt(0), crc = header.getInt(4);
+                if (length <= 0 || position + RecordHeaderSize + length > end) break;
+                ByteBuffer body = ByteBuffer.allocate(length);
+                readFully(channel, body, position + RecordHeaderSize);
+                crc32.reset();
+                crc32.update(body.array());
+                if ((int) crc32.getValue() != crc) break;
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+                byte type = in.readByte();
+                String key = BValueCodec.readString(in);
+                if (type == PutType) tree.put(key, BValueCodec.read(in));
+                else if (type == RemoveType) tree.remove(key);
+                else break;
+                position += RecordHeaderSize + length;
+                count++;
+            }
+            if (position < end) {
+                channel.truncate(position);
+                channel.force(true);
+                return new ReplayResult(count, position, end - position);
+            }
+        }
+        return new ReplayResult(count, -1, 0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) throw new IOException("日志文件提前结束");
+        }
+    }
+
+    // 编码一条日志，value不支持时在此抛出异常，此时还未修改B+树
+    static ByteBuffer encode(byte type, String key, Object value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            BValueCodec.writeString(out, key);
+            if (type == PutType) BValueCodec.write(out, value);
+            byte[] body = bytes.toByteArray();
+            CRC32 crc32 = new CRC32();
+            crc32.update(body);
+            ByteBuffer record = ByteBuffer.allocate(RecordHeaderSize + body.length);
+            record.putInt(body.length).putInt((int) crc32.getValue()).put(body);
+            return record.flip();
+        } catch (IOException e) {
+            throw new RuntimeException(e);// 写入内存流不会出现IO异常
+        }
+    }
+
+    /**
+     * 追加一条日志，PER_OP模式下返回时已落盘
+     *
+     * @return 日志序号，用于awaitDurable
+     */
+    public long append(ByteBuffer record) throws IOException {
+        lock.lock();
+        try {
+            checkState();
+            long seq = ++appendedSeq;
+            writtenBytes += record.remaining();
+            if (mode == SyncMode.PER_OP) {
+                while (record.hasRemaining()) file.write(record);
+                file.force(false);
+                durableSeq = seq;
+            } else {
+                queueWrite.add(record);
+                notEmpty.signal();// 唤醒刷新线程
+            }
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 等待指定序号的日志落盘，ASYNC模式直接返回
+    public void awaitDurable(long seq) throws IOException {
+        if (mode != SyncMode.GROUP_COMMIT) return;
+        lock.lock();
+        try {
+            while (durableSeq < seq) {
+                checkState();
+                durableCond.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 将已追加的日志全部落盘
+    public void sync() throws IOException {
+        if (mode == SyncMode.PER_OP) return;
+        long seq;
+        lock.lock();
+        try {
+            seq = appendedSeq;
+            notEmpty.signal();
+            while (durableSeq < seq) {
+                checkState();
+                durableCond.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 日志文件大小，包含尚未落盘的部分
+    public long size() {
+        lock.lock();
+        try {
+            return writtenBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 清空日志，调用方需保证此前的修改都已写入检查点，且期间没有新的追加
+    public void truncate() throws IOException {
+        sync();
+        lock.lock();
+        try {
+            file.truncate(0);
+            file.position(0);
+            file.force(true);
+            writtenBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (failure != null) throw new IOException("WAL刷盘失败", failure);
+        if (closed) throw new IOException("WAL已关闭");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            sync();
+        } finally {
+            lock.lock();
+            try {
+                closed = true;
+                notEmpty.signal();
+                durableCond.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (flushThread != null) {
+                try {
+                    flushThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            file.close();
+        }
+    }
+
+    /**
+     * 刷新线程：轮转队列后一次性写入整批日志，只force一次
+     */
+    private class FlushThread extends Thread {
+        FlushThread() {
+            super("btree-wal-flush");
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long batchSeq;
+                lock.lock();
+                try {
+                    while (queueWrite.isEmpty() && !closed) {
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    if (queueWrite.isEmpty()) return;// 已关闭且没有剩余日志
+                    // 轮转队列
+                    ArrayList<ByteBuffer> tmp = queueWrite;
+                    queueWrite = queueRead;
+                    queueRead = tmp;
+                    batchSeq = appendedSeq;
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    ByteBuffer[] batch = queueRead.toArray(new ByteBuffer[0]);
+                    long remaining = 0;
+                    for (ByteBuffer b : batch) remaining += b.remaining();
+                    while (remaining > 0) remaining -= file.write(batch);// 聚集写，一批日志一次系统调用
+                    file.force(false);
+                    queueRead.clear();
+                } catch (IOException e) {
+                    lock.lock();
+                    try {
+                        failure = e;
+                        durableCond.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                    System.err.println("WAL flush thread occurs error: " + e);
+                    return;
+                }
+
+                lock.lock();
+                try {
+                    durableSeq = batchSeq;
+                    durableCond.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                // 等待一个窗口以攒更大的批次，关闭时不再等待
+                if (windowNanos > 0 && !closed) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(windowNanos);
+                    } catch (InterruptedException e) {
+                        // 刷新线程退出后不会再有日志落盘，与写入出错一样让等待者失败，否则会一直等下去
+                        lock.lock();
+                        try {
+                            failure = new InterruptedIOException("WAL刷新线程被中断");
+                            durableCond.signalAll();
+                        } finally {
+                            lock.unlock();
+                        }
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
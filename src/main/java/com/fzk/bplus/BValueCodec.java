@@ -0,0 +1,130 @@
+package com.fzk.bplus;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * B+树value的二进制编解码，用于预写日志和持久化
+ * 格式：| type(1) | 数据 |，字符串和字节数组为 | 长度(4) | 字节 |
+ * 只支持常见的不可变类型，其它类型请先自行序列化为byte[]
+ * DataOutput和ByteBuffer两组方法的格式相同
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+final class BValueCodec {
+    private static final byte NullType = 0, StringType = 1, LongType = 2, IntegerType = 3,
+            DoubleType = 4, BooleanType = 5, BytesType = 6;
+
+    private BValueCodec() {
+    }
+
+    static void write(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NullType);
+        } else if (value instanceof String s) {
+            out.writeByte(StringType);
+            writeString(out, s);
+        } else if (value instanceof Long l) {
+            out.writeByte(LongType);
+            out.writeLong(l);
+        } else if (value instanceof Integer i) {
+            out.writeByte(IntegerType);
+            out.writeInt(i);
+        } else if (value instanceof Double d) {
+            out.writeByte(DoubleType);
+            out.writeDouble(d);
+        } else if (value instanceof Boolean b) {
+            out.writeByte(BooleanType);
+            out.writeBoolean(b);
+        } else if (value instanceof byte[] bytes) {
+            out.writeByte(BytesType);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            throw new RuntimeException("不支持持久化的value类型: " + value.getClass().getName());
+        }
+    }
+
+    static Object read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        return switch (type) {
+            case NullType -> null;
+            case StringType -> readString(in);
+            case LongType -> in.readLong();
+            case IntegerType -> in.readInt();
+            case DoubleType -> in.readDouble();
+            case BooleanType -> in.readBoolean();
+            case BytesType -> {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                yield bytes;
+            }
+            default -> throw new IOException("未知的value类型: " + type);
+        };
+    }
+
+    /**
+     * 写入缓冲区，空间不足时抛出BufferOverflowException，此时缓冲区内容不完整，由调用方回退position
+     */
+    static void write(ByteBuffer buf, Object value) {
+        if (value == null) {
+            buf.put(NullType);
+        } else if (value instanceof String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            buf.put(StringType).putInt(bytes.length).put(bytes);
+        } else if (value instanceof Long l) {
+            buf.put(LongType).putLong(l);
+        } else if (value instanceof Integer i) {
+            buf.put(IntegerType).putInt(i);
+        } else if (value instanceof Double d) {
+            buf.put(DoubleType).putDouble(d);
+        } else if (value instanceof Boolean b) {
+            buf.put(BooleanType).put((byte) (b ? 1 : 0));
+        } else if (value instanceof byte[] bytes) {
+            buf.put(BytesType).putInt(bytes.length).put(bytes);
+        } else {
+            throw new RuntimeException("不支持持久化的value类型: " + value.getClass().getName());
+        }
+    }
+
+    // 数据不足时抛出BufferUnderflowException
+    static Object read(ByteBuffer buf) throws IOException {
+        byte type = buf.get();
+        return switch (type) {
+            case NullType -> null;
+            case StringType -> new String(getBytes(buf), StandardCharsets.UTF_8);
+            case LongType -> buf.getLong();
+            case IntegerType -> buf.getInt();
+            case DoubleType -> buf.getDouble();
+            case BooleanType -> buf.get() != 0;
+            case BytesType -> getBytes(buf);
+            default -> throw new IOException("未知的value类型: " + type);
+        };
+    }
+
+    // 文件损坏时长度可能是任意值，先检查再分配
+    private static byte[] getBytes(ByteBuffer buf) throws IOException {
+        int len = buf.getInt();
+        if (len < 0 || len > buf.remaining()) throw new IOException("value长度超出数据范围: " + len);
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    // 字符串按 | 长度(4) | UTF-8字节 | 编码，不用writeUTF是因为其长度限制为65535
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
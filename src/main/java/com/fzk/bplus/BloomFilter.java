@@ -0,0 +1,108 @@
+package com.fzk.bplus;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分块布隆过滤器，用于BTree在下降之前过滤不存在的key
+ * 位数组按512位(8个long，一个缓存行)分块，key先哈希到一个块，k个位都在块内，
+ * 因此每次查询只访问一个缓存行，而不是k个随机位置；代价是同样内存下误判率略高
+ * <p>
+ * 哈希使用String缓存的hashCode再做64位混淆，同一个key重复查询不必再遍历字符，
+ * 32位哈希相同的key必然互相误判，key数量为n时由此引入约n/2^32的误判率，远小于通常配置的误判率
+ * <p>
+ * 写者只在BTree写锁内置位，读者不加锁；位只置不清，已删除的key会留下残余的位，由BTree统计后重建
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+final class BloomFilter {
+    private static final int BlockBits = 512, BlockLongs = BlockBits / 64;
+    private static final double Ln2 = Math.log(2);
+    private final AtomicLongArray bits;
+    private final int blockMask;// 块数-1，块数为2的幂
+    private final int hashes;// 每个key置位的数量
+    final long capacity;// 按目标误判率能容纳的key数量
+    final boolean atMaxSize;// 已达内存上限，key再多也不能扩容，只能容忍更高的误判率
+    long keys;// 插入过的key数量，只在写锁内访问
+    long removed;// 删除的key数量，它们的位无法清除
+
+    /**
+     * @param capacity          预计的key数量
+     * @param falsePositiveRate 目标误判率
+     * @param maxBytes          位数组的内存上限
+     */
+    BloomFilter(long capacity, double falsePositiveRate, long maxBytes) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new RuntimeException("布隆过滤器误判率需在(0, 1)之间: " + falsePositiveRate);
+        if (maxBytes < BlockBits / 8) throw new RuntimeException("布隆过滤器内存上限不能小于64字节: " + maxBytes);
+        // 最优位数 m = -n * ln(p) / ln2^2，向上取整到2的幂个块
+        double bitsPerKey = -Math.log(falsePositiveRate) / (Ln2 * Ln2);
+        long wantBlocks = Math.max(1, (long) Math.ceil(capacity * bitsPerKey / BlockBits));
+        long maxBlocks = Long.highestOneBit(Math.min(maxBytes * 8 / BlockBits, 1L << 24));
+        long blocks = Math.min(maxBlocks, wantBlocks <= 1 ? 1 : Long.highestOneBit(wantBlocks - 1) << 1);
+        this.atMaxSize = blocks == maxBlocks;
+        this.blockMask = (int) blocks - 1;
+        this.bits = new AtomicLongArray((int) blocks * BlockLongs);
+        this.capacity = (long) (blocks * BlockBits / bitsPerKey);
+        // 最优哈希个数 k = m / n * ln2
+        this.hashes = (int) Math.max(1, Math.min(16, Math.round(bitsPerKey * Ln2)));
+    }
+
+    // 写锁内调用，须在key插入树之前置位，否则读者可能在key已插入后仍被过滤
+    void add(String key) {
+        long h = mix(key.hashCode());
+        int base = block(h);
+        int a = (int) h & (BlockBits - 1), b = ((int) (h >>> 9) & (BlockBits - 1)) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int pos = (a + i * b) & (BlockBits - 1);
+            int index = base + (pos >>> 6);
+            long mask = 1L << pos;
+            long word = bits.getPlain(index);
+            if ((word & mask) == 0) bits.set(index, word | mask);// 只有持有写锁的写者修改，无需CAS
+        }
+    }
+
+    // false表示key一定不存在
+    boolean mightContain(String key) {
+        long h = mix(key.hashCode());
+        int base = block(h);
+        int a = (int) h & (BlockBits - 1), b = ((int) (h >>> 9) & (BlockBits - 1)) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int pos = (a + i * b) & (BlockBits - 1);
+            if ((bits.get(base + (pos >>> 6)) & (1L << pos)) == 0) return false;
+        }
+        return true;
+    }
+
+    // 块号取自哈希的高位，块内位置取自低位，二者互不相关
+    private int block(long h) {
+        return ((int) (h >>> 32) & blockMask) * BlockLongs;
+    }
+
+    // murmur3的fmix64，将32位hashCode扩散到64位
+    private static long mix(int hashCode) {
+        long h = hashCode * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * 需要重建：存活的key超过容量且还能扩容，或已删除的key太多，其残余的位使误判率明显升高
+     */
+    boolean needsRebuild() {
+        long live = keys - removed;
+        return (live > capacity && !atMaxSize) || removed > Math.max(capacity / 2, live);
+    }
+
+    long bitCount() {
+        return (long) bits.length() * 64;
+    }
+
+    int hashCount() {
+        return hashes;
+    }
+}
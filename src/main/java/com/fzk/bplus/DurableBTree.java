@@ -0,0 +1,158 @@
+package com.fzk.bplus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 持久化的B+树：内存中的BTree + 预写日志 + 检查点
+ * 目录下有两个文件：checkpoint为某一时刻整棵树的快照，wal为此后的修改日志
+ * 打开时先从检查点批量构建树，再回放日志；日志超过阈值后自动做检查点并清空日志
+ * 检查点由BTree.writeTo写入、readFrom加载，写检查点时在快照上遍历，不与读者争锁
+ * <p>
+ * 写入：在互斥锁内先追加日志再修改树，保证日志顺序与修改顺序一致，
+ * 等待日志落盘在锁外进行，这样组提交模式下多个写线程的日志能合并成一次force
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+public class DurableBTree implements Closeable {
+    private final Path checkpointPath, walPath;
+    private final BTree tree;
+    private final BTreeWal wal;
+    private final long checkpointWalBytes;// 日志超过此大小时做检查点
+    private final ReentrantLock appendLock = new ReentrantLock();// 保证日志顺序与树的修改顺序一致
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();// 检查点期间阻塞写入
+    private final BTreeWal.ReplayResult replayResult;// 打开时的日志回放结果
+
+    /**
+     * 打开或创建持久化B+树
+     *
+     * @param dir                数据目录
+     * @param m                  B+树的阶
+     * @param groupCommitWindow  组提交窗口，见BTreeWal
+     * @param checkpointWalBytes 日志超过此大小时自动做检查点，小于等于0表示不自动做
+     */
+    public DurableBTree(Path dir, int m, BTreeWal.SyncMode mode, long groupCommitWindow, TimeUnit unit,
+                        long checkpointWalBytes) throws IOException {
+        Files.createDirectories(dir);
+        this.checkpointPath = dir.resolve("checkpoint");
+        this.walPath = dir.resolve("wal");
+        this.checkpointWalBytes = checkpointWalBytes;
+        // 1.加载检查点
+        this.tree = Files.exists(checkpointPath) ? BTree.readFrom(checkpointPath, m, 1) : new BTree(m);
+        // 2.回放日志
+        this.replayResult = Files.exists(walPath) ? BTreeWal.replay(walPath, tree) : new BTreeWal.ReplayResult(0, -1, 0);
+        this.wal = new BTreeWal(walPath, mode, groupCommitWindow, unit);
+    }
+
+    public Object get(String key) {
+        return tree.get(key);
+    }
+
+    /**
+     * 打开时回放了多少条日志，以及崩溃时写了一半的日志尾部在哪里被截断
+     */
+    public BTreeWal.ReplayResult getReplayResult() {
+        return replayResult;
+    }
+
+    // 只读访问，如范围查询；不要直接通过它修改树，否则修改不会写入日志
+    public BTree getTree() {
+        return tree;
+    }
+
+    /**
+     * 插入或更新指定key的值，返回时日志已按刷盘模式落盘
+     *
+     * @param value 只支持BValueCodec中的类型
+     * @return 若key不存在则null，存在则返回旧值
+     */
+    public Object put(String key, Object value) throws IOException {
+        ByteBuffer record = BTreeWal.encode(BTreeWal.PutType, key, value);
+        Object old;
+        long seq;
+        checkpointLock.readLock().lock();
+        try {
+            appendLock.lock();
+            try {
+                seq = wal.append(record);
+                old = tree.put(key, value);
+            } finally {
+                appendLock.unlock();
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        wal.awaitDurable(seq);
+        maybeCheckpoint();
+        return old;
+    }
+
+    /**
+     * 删除指定key，返回时日志已按刷盘模式落盘
+     *
+     * @return key不存在返回null
+     */
+    public Object remove(String key) throws IOException {
+        ByteBuffer record = BTreeWal.encode(BTreeWal.RemoveType, key, null);
+        Object old;
+        long seq;
+        checkpointLock.readLock().lock();
+        try {
+            appendLock.lock();
+            try {
+                seq = wal.append(record);
+                old = tree.remove(key);
+            } finally {
+                appendLock.unlock();
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        wal.awaitDurable(seq);
+        maybeCheckpoint();
+        return old;
+    }
+
+    private void maybeCheckpoint() throws IOException {
+        if (checkpointWalBytes > 0 && wal.size() >= checkpointWalBytes
+                && !checkpointLock.isWriteLocked()) {
+            doCheckpoint(true);
+        }
+    }
+
+    /**
+     * 做检查点：阻塞写入，将整棵树写入临时文件并原子替换旧检查点，然后清空日志
+     * 在替换检查点与清空日志之间崩溃也没关系，日志中的put/remove按顺序重放是幂等的
+     */
+    public void checkpoint() throws IOException {
+        doCheckpoint(false);
+    }
+
+    private void doCheckpoint(boolean onlyIfWalFull) throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            // 多个写线程可能同时发现日志超过阈值，只需做一次
+            if (onlyIfWalFull && wal.size() < checkpointWalBytes) return;
+            wal.sync();
+            Path tmp = checkpointPath.resolveSibling("checkpoint.tmp");
+            tree.writeTo(tmp);
+            Files.move(tmp, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            wal.truncate();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        wal.close();
+    }
+}
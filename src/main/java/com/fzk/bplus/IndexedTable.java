@@ -0,0 +1,296 @@
+package com.fzk.bplus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * 带二级索引的表：一棵主键B+树存放记录，每个二级索引也是一棵B+树
+ * 二级索引非唯一，其key为复合key：索引列的值 + 主键，value为覆盖列的值(没有覆盖列时为主键)，
+ * 因此同一索引值的所有记录在索引树中相邻，按索引值查询和范围查询都是一次定位加顺序遍历，
+ * 只需要索引列和覆盖列时可以只扫描索引树(index-only scan)，不必回表
+ * <p>
+ * 复合key编码：索引值中的'\0'转义为"\0\1"，以"\0\0"结尾，再拼接主键，
+ * 这样复合key的字典序先按索引值再按主键排序，且一个索引值不会是另一个的前缀而混在一起
+ * <p>
+ * 并发：写者之间由表锁互斥，保证主键树与各索引树一致；读者不加锁，
+ * 写入时先插入新的索引项，再修改主键树，最后删除旧的索引项，回表查询时再校验一次记录的索引值，
+ * 因此回表查询不会返回不满足条件的记录；index-only scan与BTree的游标一样是弱一致的
+ * 索引列的值为null的记录不进入该索引
+ *
+ * @param <R> 记录类型，放入表后不要再修改，否则索引会与记录不一致
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+public class IndexedTable<R> {
+    private static final String Terminator = "\0\0";
+    public final int M;
+    private final BTree primary;
+    private volatile Map<String, Index> indexes = Map.of();// 添加索引时整体替换，读者不加锁
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final class Index {
+        final String name;
+        final Function<? super R, String> keyExtractor;
+        final Function<? super R, ?> covering;// 覆盖列，null表示只覆盖索引列和主键
+        BTree tree;
+
+        Index(String name, Function<? super R, String> keyExtractor, Function<? super R, ?> covering) {
+            this.name = name;
+            this.keyExtractor = keyExtractor;
+            this.covering = covering;
+        }
+
+        // 记录在此索引中的复合key，索引值为null时返回null
+        String compositeKey(String primaryKey, R record) {
+            String key = keyExtractor.apply(record);
+            return key == null ? null : encode(key) + primaryKey;
+        }
+
+        Object indexValue(String primaryKey, R record) {
+            return covering == null ? primaryKey : covering.apply(record);
+        }
+    }
+
+    /**
+     * index-only scan返回的索引项
+     *
+     * @param key        索引列的值
+     * @param primaryKey 记录的主键
+     * @param covered    覆盖列的值，没有覆盖列时为主键
+     */
+    public record IndexEntry(String key, String primaryKey, Object covered) {
+    }
+
+    public IndexedTable(int m) {
+        this.M = m;
+        this.primary = new BTree(m);
+    }
+
+    /**
+     * 添加二级索引，表中已有记录时按复合key排序后批量构建索引树
+     *
+     * @param keyExtractor 索引列，返回null的记录不进入索引
+     * @param covering     覆盖列，index-only scan直接返回它，不需要时传null
+     */
+    public void addIndex(String name, Function<? super R, String> keyExtractor, Function<? super R, ?> covering) {
+        writeLock.lock();
+        try {
+            if (indexes.containsKey(name)) throw new RuntimeException("索引已存在: " + name);
+            Index index = new Index(name, keyExtractor, covering);
+            ArrayList<BNode.BEntry> entries = new ArrayList<>();
+            for (BTree.Cursor it = primary.cursor(null); it.hasNext(); ) {
+                BNode.BEntry entry = it.next();
+                R record = cast(entry.value);
+                String key = index.compositeKey(entry.key, record);
+                if (key != null) entries.add(new BNode.BEntry(key, index.indexValue(entry.key, record)));
+            }
+            entries.sort((a, b) -> a.key.compareTo(b.key));
+            BTree.BulkLoader loader = new BTree.BulkLoader(M, 0.7);
+            for (BNode.BEntry entry : entries) loader.add(entry.key, entry.value);
+            index.tree = loader.build();
+            Map<String, Index> next = new LinkedHashMap<>(indexes);
+            next.put(name, index);
+            indexes = next;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void addIndex(String name, Function<? super R, String> keyExtractor) {
+        addIndex(name, keyExtractor, null);
+    }
+
+    public R get(String primaryKey) {
+        return cast(primary.get(primaryKey));
+    }
+
+    /**
+     * 插入或更新记录，同时维护所有二级索引
+     *
+     * @return 若主键不存在则null，存在则返回旧记录
+     */
+    public R put(String primaryKey, R record) {
+        Objects.requireNonNull(record, "记录不能为null");
+        writeLock.lock();
+        try {
+            R old = cast(primary.get(primaryKey));
+            List<Index> list = new ArrayList<>(indexes.values());
+            String[] oldKeys = new String[list.size()];
+            // 1.先插入新索引项，回表校验会过滤掉主键树尚未更新时的读者
+            for (int i = 0; i < oldKeys.length; i++) {
+                Index index = list.get(i);
+                String newKey = index.compositeKey(primaryKey, record);
+                oldKeys[i] = old == null ? null : index.compositeKey(primaryKey, old);
+                if (newKey != null) index.tree.put(newKey, index.indexValue(primaryKey, record));
+                if (Objects.equals(newKey, oldKeys[i])) oldKeys[i] = null;// 索引值未变，已原地更新
+            }
+            // 2.修改主键树
+            primary.put(primaryKey, record);
+            // 3.删除旧索引项
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) list.get(i).tree.remove(oldKeys[i]);
+            }
+            return old;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 删除记录及其索引项
+     *
+     * @return 主键不存在返回null，存在时返回删除的记录
+     */
+    public R remove(String primaryKey) {
+        writeLock.lock();
+        try {
+            R old = cast(primary.remove(primaryKey));
+            if (old == null) return null;
+            for (Index index : indexes.values()) {
+                String key = index.compositeKey(primaryKey, old);
+                if (key != null) index.tree.remove(key);
+            }
+            return old;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 按索引值等值查询，回表返回记录，按主键升序
+     */
+    public List<R> findBy(String indexName, String key) {
+        String prefix = encode(key);
+        return lookup(index(indexName), prefix, BTree.prefixUpperBound(prefix));
+    }
+
+    /**
+     * 按索引值范围[fromKey, toKey)查询，回表返回记录，按索引值、主键升序
+     *
+     * @param fromKey 下界(包含)，null表示无下界
+     * @param toKey   上界(不包含)，null表示无上界
+     */
+    public List<R> findRange(String indexName, String fromKey, String toKey) {
+        return lookup(index(indexName), fromKey == null ? null : encode(fromKey), toKey == null ? null : encode(toKey));
+    }
+
+    private List<R> lookup(Index index, String from, String to) {
+        ArrayList<R> result = new ArrayList<>();
+        for (BTree.Cursor it = index.tree.scan(from, to); it.hasNext(); ) {
+            String composite = it.next().key;
+            int end = terminatorIndex(composite);
+            String primaryKey = composite.substring(end + Terminator.length());
+            R record = cast(primary.get(primaryKey));
+            // 并发写入时索引项与记录可能暂时不一致，以记录为准
+            if (record != null && composite.equals(index.compositeKey(primaryKey, record))) result.add(record);
+        }
+        return result;
+    }
+
+    /**
+     * index-only scan：按索引值范围[fromKey, toKey)只遍历索引树，不回表
+     *
+     * @param fromKey 下界(包含)，null表示无下界
+     * @param toKey   上界(不包含)，null表示无上界
+     */
+    public Iterator<IndexEntry> scanIndex(String indexName, String fromKey, String toKey) {
+        BTree.Cursor cursor = index(indexName).tree.scan(
+                fromKey == null ? null : encode(fromKey), toKey == null ? null : encode(toKey));
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public IndexEntry next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                BNode.BEntry entry = cursor.next();
+                int end = terminatorIndex(entry.key);
+                return new IndexEntry(decode(entry.key, end), entry.key.substring(end + Terminator.length()), entry.value);
+            }
+        };
+    }
+
+    // 等值查询的index-only版本，只统计数量时不必回表
+    public long countBy(String indexName, String key) {
+        String prefix = encode(key);
+        long count = 0;
+        for (BTree.Cursor it = index(indexName).tree.scanPrefix(prefix); it.hasNext(); it.next()) count++;
+        return count;
+    }
+
+    // 主键树，只读访问，如按主键范围查询；不要直接通过它修改，否则索引不会同步更新
+    public BTree getPrimary() {
+        return primary;
+    }
+
+    private Index index(String name) {
+        Index index = indexes.get(name);
+        if (index == null) throw new RuntimeException("索引不存在: " + name);
+        return index;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <R> R cast(Object value) {
+        return (R) value;
+    }
+
+    // 转义索引值中的'\0'并加上结束符
+    static String encode(String key) {
+        if (key.indexOf('\0') < 0) return key + Terminator;
+        StringBuilder sb = new StringBuilder(key.length() + 4);
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            sb.append(c);
+            if (c == '\0') sb.append('\1');
+        }
+        return sb.append(Terminator).toString();
+    }
+
+    // 复合key中结束符的位置，跳过转义的"\0\1"
+    private static int terminatorIndex(String composite) {
+        int i = composite.indexOf('\0');
+        while (composite.charAt(i + 1) != '\0') i = composite.indexOf('\0', i + 2);
+        return i;
+    }
+
+    private static String decode(String composite, int end) {
+        String escaped = composite.substring(0, end);
+        return escaped.indexOf('\0') < 0 ? escaped : escaped.replace("\0\1", "\0");
+    }
+
+    // 检查主键树与各索引树一致：每条记录恰好对应每个索引中的一项
+    public void checkIndexes() {
+        writeLock.lock();
+        try {
+            primary.checkTree();
+            for (Index index : indexes.values()) {
+                index.tree.checkTree();
+                long expect = 0;
+                for (BTree.Cursor it = primary.cursor(null); it.hasNext(); ) {
+                    BNode.BEntry entry = it.next();
+                    R record = cast(entry.value);
+                    String key = index.compositeKey(entry.key, record);
+                    if (key == null) continue;
+                    expect++;
+                    if (!Objects.equals(index.tree.get(key), index.indexValue(entry.key, record)))
+                        throw new RuntimeException(String.format("索引%s缺少记录%s", index.name, entry.key));
+                }
+                long count = 0;
+                for (BTree.Cursor it = index.tree.cursor(null); it.hasNext(); it.next()) count++;
+                if (count != expect)
+                    throw new RuntimeException(String.format("索引%s有%d项，期望%d项", index.name, count, expect));
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.fzk.bplus;
+
+/**
+ * LongBTree、IntBTree结点内的有序数组查找
+ * 启动时加了--add-modules jdk.incubator.vector且CPU支持SIMD时使用VectorKeySearch，否则使用标量查找，
+ * 可用-Dbtree.simd=false强制使用标量查找以便对比
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+final class KeySearch {
+    private static final int BinarySearchThreshold = 8;// 二分查找阈值，数组较小时遍历平均情况下会比较次数更少
+    static final boolean VectorEnabled = vectorEnabled();
+
+    private KeySearch() {
+    }
+
+    // 只有向量模块存在时才加载VectorKeySearch，否则会因找不到jdk.incubator.vector中的类而初始化失败
+    private static boolean vectorEnabled() {
+        if (!Boolean.parseBoolean(System.getProperty("btree.simd", "true"))) return false;
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return false;
+        return VectorKeySearch.Supported;
+    }
+
+    /**
+     * 查找key的索引，不分配对象
+     *
+     * @return key存在时返回其索引，不存在时返回-(插入位置+1)
+     */
+    static int search(long[] keys, int size, long key) {
+        if (VectorEnabled && size >= VectorKeySearch.MinSize) return VectorKeySearch.search(keys, size, key);
+        return scalarSearch(keys, size, key);
+    }
+
+    static int search(int[] keys, int size, int key) {
+        if (VectorEnabled && size >= VectorKeySearch.MinSize) return VectorKeySearch.search(keys, size, key);
+        return scalarSearch(keys, size, key);
+    }
+
+    static int scalarSearch(long[] keys, int size, long key) {
+        if (size >= BinarySearchThreshold) {
+            int left = 0, right = size - 1;
+            while (left <= right) {
+                int mid = (left + right) >>> 1;
+                long midKey = keys[mid];
+                if (key < midKey) right = mid - 1;
+                else if (key > midKey) left = mid + 1;
+                else return mid;
+            }
+            return -(left + 1);
+        }
+        // 遍历
+        for (int i = 0; i < size; i++) {
+            if (key == keys[i]) return i;
+            if (key < keys[i]) return -(i + 1);
+        }
+        return -(size + 1);
+    }
+
+    static int scalarSearch(int[] keys, int size, int key) {
+        if (size >= BinarySearchThreshold) {
+            int left = 0, right = size - 1;
+            while (left <= right) {
+                int mid = (left + right) >>> 1;
+                int midKey = keys[mid];
+                if (key < midKey) right = mid - 1;
+                else if (key > midKey) left = mid + 1;
+                else return mid;
+            }
+            return -(left + 1);
+        }
+        // 遍历
+        for (int i = 0; i < size; i++) {
+            if (key == keys[i]) return i;
+            if (key < keys[i]) return -(i + 1);
+        }
+        return -(size + 1);
+    }
+}
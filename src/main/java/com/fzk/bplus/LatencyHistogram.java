@@ -0,0 +1,79 @@
+package com.fzk.bplus;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图，桶按对数划分：每个2的幂区间再等分为8个子桶，相对误差不超过12.5%
+ * 每个桶是一个LongAdder，并发记录时各线程累加到不同的cell，不会争抢同一个缓存行，
+ * 记录一次只需定位桶和一次累加，可以在高并发下一直开启
+ * 超过2^40纳秒(约18分钟)的值都记入最后一个桶
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+final class LatencyHistogram {
+    private static final int SubBits = 3, SubBuckets = 1 << SubBits;
+    private static final int MaxExponent = 40;
+    private static final int BucketCount = (MaxExponent - SubBits + 2) * SubBuckets;
+    private final LongAdder[] buckets = new LongAdder[BucketCount];
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BucketCount; i++) buckets[i] = new LongAdder();
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;// nanoTime在个别平台上可能回退
+        buckets[bucket(nanos)].increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    // 小于8的值各占一个桶，其余按最高位所在的2的幂分组，再取最高位之后的3位作为子桶
+    private static int bucket(long value) {
+        if (value < SubBuckets) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MaxExponent) return BucketCount - 1;
+        int sub = (int) (value >>> (exponent - SubBits)) & (SubBuckets - 1);
+        return (exponent - SubBits + 1) * SubBuckets + sub;
+    }
+
+    // 桶内的最大值，百分位数按它报告，宁可偏大
+    private static long bucketUpperBound(int index) {
+        if (index < SubBuckets) return index;
+        if (index == BucketCount - 1) return Long.MAX_VALUE;
+        int exponent = index / SubBuckets + SubBits - 1, sub = index % SubBuckets;
+        return ((long) (SubBuckets + sub + 1) << (exponent - SubBits)) - 1;
+    }
+
+    /**
+     * 各个桶分别求和，与并发的记录不是原子的，计数与百分位可能相差正在记录的几次
+     */
+    BTreeStats.Latency snapshot() {
+        long[] counts = new long[BucketCount];
+        long count = 0;
+        for (int i = 0; i < BucketCount; i++) count += counts[i] = buckets[i].sum();
+        long maxNanos = max.get();
+        return new BTreeStats.Latency(count, count == 0 ? 0 : (double) total.sum() / count,
+                percentile(counts, count, 0.5, maxNanos), percentile(counts, count, 0.99, maxNanos),
+                percentile(counts, count, 0.999, maxNanos), maxNanos);
+    }
+
+    private static long percentile(long[] counts, long count, double p, long maxNanos) {
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(count * p), seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(bucketUpperBound(i), maxNanos);
+        }
+        return maxNanos;
+    }
+
+    void reset() {
+        for (LongAdder bucket : buckets) bucket.reset();
+        total.reset();
+        max.reset();
+    }
+}
@@ -0,0 +1,416 @@
+package com.fzk.bplus;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * long键long值的B+树，用于大规模id索引
+ * 与BTree相比，结点内的key和value以并行的long[]数组保存，没有BEntry对象和装箱，
+ * 每个键值对只占16字节数组空间，查找过程也不分配任何对象
+ * <p>
+ * 结构：索引结点keys[i]为children[i]的下界(删除子结点min key后不必向上修改)，
+ * 不维护父结点指针，插入删除都是从root递归向下，分裂、借用、合并由父结点处理
+ * 并发：读写锁，get走读锁
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+public class LongBTree {
+    // B+树的阶
+    public final int M;
+    private final long noEntryValue;// key不存在时get/put/remove返回的值
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Node root;
+    private int size;// 键值对数量
+    // 以下字段仅在写锁内使用，用于不分配对象地从递归中带回结果
+    private boolean replaced;
+    private long oldValue;
+
+    public LongBTree(int m) {
+        this(m, 0);
+    }
+
+    public LongBTree(int m, long noEntryValue) {
+        if (m < 4) throw new RuntimeException("B+树的阶不能小于4");
+        M = m;
+        this.noEntryValue = noEntryValue;
+    }
+
+    public long getNoEntryValue() {
+        return noEntryValue;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 查找key的索引，不分配对象，支持时使用SIMD指令，见KeySearch
+     *
+     * @return key存在时返回其索引，不存在时返回-(插入位置+1)
+     */
+    static int search(long[] keys, int size, long key) {
+        return KeySearch.search(keys, size, key);
+    }
+
+    // 索引结点中key所在子结点的索引：k1 <= key < k2，则k1指向的子结点为正确路径的下一层级
+    private static int childIndex(Node node, long key) {
+        int r = search(node.keys, node.size, key);
+        if (r >= 0) return r;
+        int insertion = -r - 1;
+        return insertion == 0 ? 0 : insertion - 1;
+    }
+
+    /**
+     * 返回指定key的值
+     *
+     * @return key不存在时返回noEntryValue
+     */
+    public long get(long key) {
+        lock.readLock().lock();
+        try {
+            LeafNode leaf = findLeaf(key);
+            if (leaf == null) return noEntryValue;
+            int r = search(leaf.keys, leaf.size, key);
+            return r >= 0 ? leaf.values[r] : noEntryValue;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean containsKey(long key) {
+        lock.readLock().lock();
+        try {
+            LeafNode leaf = findLeaf(key);
+            return leaf != null && search(leaf.keys, leaf.size, key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private LeafNode findLeaf(long key) {
+        Node cur = root;
+        while (cur instanceof IndexNode in) {
+            cur = in.children[childIndex(in, key)];
+        }
+        return (LeafNode) cur;
+    }
+
+    /**
+     * 插入或更新指定key的值
+     *
+     * @return 若key不存在则noEntryValue，存在则返回旧值
+     */
+    public long put(long key, long value) {
+        lock.writeLock().lock();
+        try {
+            if (root == null) {
+                root = new LeafNode(M);
+            }
+            replaced = false;
+            Node right = insert(root, key, value);
+            if (right != null) {
+                // root分裂，新建root
+                IndexNode newRoot = new IndexNode(M);
+                newRoot.keys[0] = root.keys[0];
+                newRoot.children[0] = root;
+                newRoot.keys[1] = right.keys[0];
+                newRoot.children[1] = right;
+                newRoot.size = 2;
+                root = newRoot;
+            }
+            if (replaced) return oldValue;
+            size++;
+            return noEntryValue;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 递归插入
+     *
+     * @return node分裂出的右结点，未分裂则返回null
+     */
+    private Node insert(Node node, long key, long value) {
+        if (node instanceof LeafNode leaf) {
+            int r = search(leaf.keys, leaf.size, key);
+            if (r >= 0) {
+                // 已经存在，覆盖原值
+                replaced = true;
+                oldValue = leaf.values[r];
+                leaf.values[r] = value;
+                return null;
+            }
+            int index = -r - 1;
+            if (!leaf.isFull()) {
+                leaf.insertAt(index, key, value);
+                return null;
+            }
+            // 页分裂，向右分裂一半
+            LeafNode right = (LeafNode) leaf.split();
+            if (index <= leaf.size) leaf.insertAt(index, key, value);
+            else right.insertAt(index - leaf.size, key, value);
+            return right;
+        }
+
+        IndexNode in = (IndexNode) node;
+        int ci = childIndex(in, key);
+        if (ci == 0 && key < in.keys[0]) in.keys[0] = key;// 维护下界
+        Node childRight = insert(in.children[ci], key, value);
+        if (childRight == null) return null;
+        // 子结点分裂，将分裂出的右结点插入到ci+1
+        int index = ci + 1;
+        if (!in.isFull()) {
+            in.insertAt(index, childRight.keys[0], childRight);
+            return null;
+        }
+        IndexNode right = (IndexNode) in.split();
+        if (index <= in.size) in.insertAt(index, childRight.keys[0], childRight);
+        else right.insertAt(index - in.size, childRight.keys[0], childRight);
+        return right;
+    }
+
+    /**
+     * 删除指定key
+     *
+     * @return key不存在返回noEntryValue，存在时返回删除的旧值
+     */
+    public long remove(long key) {
+        lock.writeLock().lock();
+        try {
+            if (root == null || !delete(root, key)) return noEntryValue;
+            size--;
+            if (root.size == 0) {
+                root = null;
+            } else if (root instanceof IndexNode in && in.size == 1) {
+                // root只剩一个子结点，降低层高
+                root = in.children[0];
+            }
+            return oldValue;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 递归删除，返回key是否存在
+    private boolean delete(Node node, long key) {
+        if (node instanceof LeafNode leaf) {
+            int r = search(leaf.keys, leaf.size, key);
+            if (r < 0) return false;
+            oldValue = leaf.values[r];
+            leaf.removeAt(r);
+            return true;
+        }
+        IndexNode in = (IndexNode) node;
+        int ci = childIndex(in, key);
+        if (!delete(in.children[ci], key)) return false;
+        if (in.children[ci].size < M / 2) rebalance(in, ci);
+        return true;
+    }
+
+    /**
+     * 子结点元素过少：优先从左右兄弟借一个，兄弟也不富余时合并
+     * 借用时移动的entry自带的key即为其新下界，因此父结点只需更新被借方的key
+     */
+    private void rebalance(IndexNode parent, int ci) {
+        Node child = parent.children[ci];
+        Node left = ci > 0 ? parent.children[ci - 1] : null;
+        Node right = ci + 1 < parent.size ? parent.children[ci + 1] : null;
+        if (left != null && left.size > M / 2) {
+            // 从左兄弟借最后一个
+            child.insertAt(0, left, left.size - 1);
+            left.removeAt(left.size - 1);
+            parent.keys[ci] = child.keys[0];
+        } else if (right != null && right.size > M / 2) {
+            // 从右兄弟借第一个
+            child.insertAt(child.size, right, 0);
+            right.removeAt(0);
+            parent.keys[ci + 1] = right.keys[0];
+        } else if (left != null) {
+            // 合入左兄弟
+            left.appendAll(child);
+            parent.removeAt(ci);
+        } else if (right != null) {
+            // 右兄弟合入
+            child.appendAll(right);
+            parent.removeAt(ci + 1);
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            root = null;
+            size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 检查B+树结构是否正常，此操作会遍历整个树结构，操作代价高
+    public void checkTree() {
+        lock.readLock().lock();
+        try {
+            if (root == null) {
+                if (size != 0) throw new RuntimeException("root为null但size不为0");
+                return;
+            }
+            int count = checkNode(root, Long.MIN_VALUE, Long.MAX_VALUE, true);
+            if (count != size) throw new RuntimeException(String.format("键值对数量%d与size%d不一致", count, size));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 检查node的key都在[lo, hi)内且有序，返回子树的键值对数量
+    private int checkNode(Node node, long lo, long hi, boolean isRoot) {
+        if (!isRoot && node.size < M / 2)
+            throw new RuntimeException(String.format("结点元素数量%d小于M/2", node.size));
+        for (int i = 0; i < node.size; i++) {
+            if (node.keys[i] < lo || (node.keys[i] >= hi && hi != Long.MAX_VALUE))
+                throw new RuntimeException(String.format("key %d不在[%d, %d)内", node.keys[i], lo, hi));
+            if (i > 0 && node.keys[i - 1] >= node.keys[i])
+                throw new RuntimeException(String.format("index: %d的key>=其后的key, %s", i - 1, node));
+        }
+        if (node instanceof LeafNode) return node.size;
+        IndexNode in = (IndexNode) node;
+        int count = 0;
+        for (int i = 0; i < in.size; i++) {
+            if (in.children[i].keys[0] < in.keys[i])
+                throw new RuntimeException(String.format("%d大于其指向的子结点min key", in.keys[i]));
+            count += checkNode(in.children[i], in.keys[i], i + 1 < in.size ? in.keys[i + 1] : hi, false);
+        }
+        return count;
+    }
+
+    abstract static class Node {
+        int size;
+        final long[] keys;
+
+        Node(int m) {
+            keys = new long[m];
+        }
+
+        boolean isFull() {
+            return size == keys.length;
+        }
+
+        // 从src结点的srcIndex处拷贝一个entry插入到本结点index处
+        abstract void insertAt(int index, Node src, int srcIndex);
+
+        abstract void removeAt(int index);
+
+        // 将右边的结点全部追加到本结点
+        abstract void appendAll(Node right);
+
+        // 将后一半entry移到新建的右结点
+        abstract Node split();
+
+        @Override
+        public String toString() {
+            return Arrays.toString(Arrays.copyOf(keys, size));
+        }
+    }
+
+    static class LeafNode extends Node {
+        final long[] values;
+
+        LeafNode(int m) {
+            super(m);
+            values = new long[m];
+        }
+
+        void insertAt(int index, long key, long value) {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            keys[index] = key;
+            values[index] = value;
+            size++;
+        }
+
+        @Override
+        void insertAt(int index, Node src, int srcIndex) {
+            insertAt(index, src.keys[srcIndex], ((LeafNode) src).values[srcIndex]);
+        }
+
+        @Override
+        void removeAt(int index) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+        }
+
+        @Override
+        void appendAll(Node right) {
+            System.arraycopy(right.keys, 0, keys, size, right.size);
+            System.arraycopy(((LeafNode) right).values, 0, values, size, right.size);
+            size += right.size;
+        }
+
+        @Override
+        Node split() {
+            LeafNode right = new LeafNode(keys.length);
+            int partitionIndex = size >> 1;
+            right.size = size - partitionIndex;
+            System.arraycopy(keys, partitionIndex, right.keys, 0, right.size);
+            System.arraycopy(values, partitionIndex, right.values, 0, right.size);
+            size = partitionIndex;
+            return right;
+        }
+    }
+
+    static class IndexNode extends Node {
+        final Node[] children;
+
+        IndexNode(int m) {
+            super(m);
+            children = new Node[m];
+        }
+
+        void insertAt(int index, long key, Node child) {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(children, index, children, index + 1, size - index);
+            keys[index] = key;
+            children[index] = child;
+            size++;
+        }
+
+        @Override
+        void insertAt(int index, Node src, int srcIndex) {
+            insertAt(index, src.keys[srcIndex], ((IndexNode) src).children[srcIndex]);
+        }
+
+        @Override
+        void removeAt(int index) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(children, index + 1, children, index, size - index - 1);
+            children[--size] = null;// 置空避免内存泄漏
+        }
+
+        @Override
+        void appendAll(Node right) {
+            System.arraycopy(right.keys, 0, keys, size, right.size);
+            System.arraycopy(((IndexNode) right).children, 0, children, size, right.size);
+            size += right.size;
+        }
+
+        @Override
+        Node split() {
+            IndexNode right = new IndexNode(keys.length);
+            int partitionIndex = size >> 1;
+            right.size = size - partitionIndex;
+            System.arraycopy(keys, partitionIndex, right.keys, 0, right.size);
+            System.arraycopy(children, partitionIndex, right.children, 0, right.size);
+            Arrays.fill(children, partitionIndex, size, null);// 必须置null避免内存泄漏
+            size = partitionIndex;
+            return right;
+        }
+    }
+}
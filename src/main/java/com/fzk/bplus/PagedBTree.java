@@ -0,0 +1,681 @@
+package com.fzk.bplus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 基于文件分页的long键long值B+树，结点为定长页，子结点指针为页号而非对象引用
+ * 数据量可以超过堆大小，重启后打开文件即可使用无需重建，页缓存在堆外，不增加GC压力
+ * <p>
+ * 文件布局：第0页为元数据页，其余每页一个结点
+ * 结点页：| type(1) | pad(3) | size(4) | next(8) | keys(8 * Capacity) | values或子结点页号(8 * Capacity) |
+ * 叶子结点通过next串成单链表，被释放的页也通过next串成空闲链表以便复用
+ * 索引结构同LongBTree：keys[i]为第i个子结点的下界，从root递归向下插入删除
+ * <p>
+ * 缓冲池：LRU缓存固定数量的页帧(堆外直接内存)，脏页在淘汰或flush时写回，使用中的页会被pin住不会淘汰
+ * 没有用MappedByteBuffer是因为映射无法主动解除、内存占用不可控，且脏页何时写回完全由操作系统决定
+ * 注意：只有flush/close后文件才是一致的，崩溃恢复需要配合预写日志
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+public class PagedBTree implements Closeable {
+    public static final int PageSize = 4096;
+    private static final int HeaderSize = 16;
+    // 每页最多的键值对数量，即B+树的阶
+    public static final int Capacity = (PageSize - HeaderSize) / 16;
+    private static final int MinSize = Capacity / 2;
+    private static final int Magic = 0x42545245;// BTRE
+    private static final long NullPage = -1;
+    private static final byte LeafType = 1, IndexType = 2, FreeType = 3;
+    // 结点页头偏移
+    private static final int TypeOffset = 0, SizeOffset = 4, NextOffset = 8;
+    private static final int ValuesOffset = HeaderSize + Capacity * 8;
+    private static final int BinarySearchThreshold = 8;
+
+    private final FileChannel channel;
+    private final BufferPool pool;
+    private final long noEntryValue;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // 元数据，写锁内修改，flush时写入第0页
+    private long rootPageId = NullPage;
+    private long pageCount = 1;// 包含元数据页
+    private long freeListHead = NullPage;
+    private long size;
+    // 以下字段仅在写锁内使用，用于从递归中带回结果
+    private boolean replaced;
+    private long oldValue;
+    private long splitKey, splitPageId;
+
+    /**
+     * 打开或创建B+树文件
+     *
+     * @param poolPages 缓冲池缓存的页数，至少16
+     */
+    public PagedBTree(Path path, int poolPages) throws IOException {
+        this(path, poolPages, 0);
+    }
+
+    public PagedBTree(Path path, int poolPages, long noEntryValue) throws IOException {
+        if (poolPages < 16) throw new RuntimeException("缓冲池页数不能小于16");
+        this.noEntryValue = noEntryValue;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.pool = new BufferPool(channel, poolPages);
+        try {
+            if (channel.size() == 0) writeMeta();
+            else readMeta();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void readMeta() throws IOException {
+        ByteBuffer meta = ByteBuffer.allocate(40);
+        channel.read(meta, 0);
+        if (meta.getInt(0) != Magic) throw new RuntimeException("不是B+树文件");
+        if (meta.getInt(4) != PageSize) throw new RuntimeException("页大小不匹配: " + meta.getInt(4));
+        rootPageId = meta.getLong(8);
+        pageCount = meta.getLong(16);
+        freeListHead = meta.getLong(24);
+        size = meta.getLong(32);
+    }
+
+    private void writeMeta() throws IOException {
+        ByteBuffer meta = ByteBuffer.allocate(PageSize);
+        meta.putInt(0, Magic).putInt(4, PageSize).putLong(8, rootPageId)
+                .putLong(16, pageCount).putLong(24, freeListHead).putLong(32, size);
+        channel.write(meta, 0);
+    }
+
+    public long getNoEntryValue() {
+        return noEntryValue;
+    }
+
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 返回指定key的值
+     *
+     * @return key不存在时返回noEntryValue
+     */
+    public long get(long key) throws IOException {
+        lock.readLock().lock();
+        try {
+            long pageId = rootPageId;
+            while (pageId != NullPage) {
+                Page page = pool.pin(pageId);
+                try {
+                    ByteBuffer b = page.buf;
+                    int n = size(b);
+                    if (b.get(TypeOffset) == LeafType) {
+                        int r = search(b, n, key);
+                        return r >= 0 ? value(b, r) : noEntryValue;
+                    }
+                    pageId = value(b, childIndex(b, n, key));
+                } finally {
+                    pool.unpin(page);
+                }
+            }
+            return noEntryValue;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean containsKey(long key) throws IOException {
+        lock.readLock().lock();
+        try {
+            long pageId = rootPageId;
+            while (pageId != NullPage) {
+                Page page = pool.pin(pageId);
+                try {
+                    ByteBuffer b = page.buf;
+                    int n = size(b);
+                    if (b.get(TypeOffset) == LeafType) return search(b, n, key) >= 0;
+                    pageId = value(b, childIndex(b, n, key));
+                } finally {
+                    pool.unpin(page);
+                }
+            }
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 插入或更新指定key的值
+     *
+     * @return 若key不存在则noEntryValue，存在则返回旧值
+     */
+    public long put(long key, long value) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (rootPageId == NullPage) {
+                Page root = allocatePage(LeafType);
+                rootPageId = root.id;
+                pool.unpin(root);
+            }
+            replaced = false;
+            if (insert(rootPageId, key, value)) {
+                // root分裂，新建root
+                Page newRoot = allocatePage(IndexType);
+                try {
+                    ByteBuffer b = newRoot.buf;
+                    Page oldRoot = pool.pin(rootPageId);
+                    try {
+                        insertAt(b, 0, 0, key(oldRoot.buf, 0), rootPageId);
+                    } finally {
+                        pool.unpin(oldRoot);
+                    }
+                    insertAt(b, 1, 1, splitKey, splitPageId);
+                    setSize(b, 2);
+                    rootPageId = newRoot.id;
+                } finally {
+                    pool.unpin(newRoot);
+                }
+            }
+            if (replaced) return oldValue;
+            size++;
+            return noEntryValue;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 递归插入
+     *
+     * @return 是否发生页分裂，分裂出的右结点下界和页号保存在splitKey、splitPageId
+     */
+    private boolean insert(long pageId, long key, long value) throws IOException {
+        Page page = pool.pin(pageId);
+        try {
+            ByteBuffer b = page.buf;
+            int n = size(b);
+            int index;
+            long payload;
+            if (b.get(TypeOffset) == LeafType) {
+                int r = search(b, n, key);
+                if (r >= 0) {
+                    // 已经存在，覆盖原值
+                    replaced = true;
+                    oldValue = value(b, r);
+                    b.putLong(ValuesOffset + r * 8, value);
+                    page.dirty = true;
+                    return false;
+                }
+                index = -r - 1;
+                payload = value;
+            } else {
+                int ci = childIndex(b, n, key);
+                if (ci == 0 && key < key(b, 0)) {
+                    b.putLong(HeaderSize, key);// 维护下界
+                    page.dirty = true;
+                }
+                if (!insert(value(b, ci), key, value)) return false;
+                // 子结点分裂，将分裂出的右结点插入到ci+1
+                index = ci + 1;
+                key = splitKey;
+                payload = splitPageId;
+            }
+
+            page.dirty = true;
+            if (n < Capacity) {
+                insertAt(b, n, index, key, payload);
+                setSize(b, n + 1);
+                return false;
+            }
+            // 页分裂，向右分裂一半
+            Page right = allocatePage(b.get(TypeOffset));
+            try {
+                ByteBuffer rb = right.buf;
+                int partitionIndex = n >> 1, rightSize = n - partitionIndex;
+                copy(b, partitionIndex, rb, 0, rightSize);
+                setSize(b, partitionIndex);
+                setSize(rb, rightSize);
+                // 维护叶子链表，索引结点的next无意义
+                rb.putLong(NextOffset, b.getLong(NextOffset));
+                b.putLong(NextOffset, right.id);
+                if (index <= partitionIndex) {
+                    insertAt(b, partitionIndex, index, key, payload);
+                    setSize(b, partitionIndex + 1);
+                } else {
+                    insertAt(rb, rightSize, index - partitionIndex, key, payload);
+                    setSize(rb, rightSize + 1);
+                }
+                splitKey = key(rb, 0);
+                splitPageId = right.id;
+                return true;
+            } finally {
+                pool.unpin(right);
+            }
+        } finally {
+            pool.unpin(page);
+        }
+    }
+
+    /**
+     * 删除指定key
+     *
+     * @return key不存在返回noEntryValue，存在时返回删除的旧值
+     */
+    public long remove(long key) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (rootPageId == NullPage || !delete(rootPageId, key)) return noEntryValue;
+            size--;
+            Page root = pool.pin(rootPageId);
+            try {
+                ByteBuffer b = root.buf;
+                if (size(b) == 0) {
+                    freePage(root);
+                    rootPageId = NullPage;
+                } else if (b.get(TypeOffset) == IndexType && size(b) == 1) {
+                    // root只剩一个子结点，降低层高
+                    rootPageId = value(b, 0);
+                    freePage(root);
+                }
+            } finally {
+                pool.unpin(root);
+            }
+            return oldValue;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 递归删除，返回key是否存在
+    private boolean delete(long pageId, long key) throws IOException {
+        Page page = pool.pin(pageId);
+        try {
+            ByteBuffer b = page.buf;
+            int n = size(b);
+            if (b.get(TypeOffset) == LeafType) {
+                int r = search(b, n, key);
+                if (r < 0) return false;
+                oldValue = value(b, r);
+                removeAt(b, n, r);
+                setSize(b, n - 1);
+                page.dirty = true;
+                return true;
+            }
+            int ci = childIndex(b, n, key);
+            if (!delete(value(b, ci), key)) return false;
+            rebalance(page, ci);
+            return true;
+        } finally {
+            pool.unpin(page);
+        }
+    }
+
+    // 子结点元素过少：优先从左右兄弟借一个，兄弟也不富余时合并
+    private void rebalance(Page parent, int ci) throws IOException {
+        ByteBuffer pb = parent.buf;
+        int parentSize = size(pb);
+        Page child = pool.pin(value(pb, ci));
+        Page left = null, right = null;
+        try {
+            ByteBuffer cb = child.buf;
+            int childSize = size(cb);
+            if (childSize >= MinSize) return;
+            child.dirty = parent.dirty = true;
+            if (ci > 0) left = pool.pin(value(pb, ci - 1));
+            if (ci + 1 < parentSize) right = pool.pin(value(pb, ci + 1));
+
+            if (left != null && size(left.buf) > MinSize) {
+                // 从左兄弟借最后一个
+                ByteBuffer lb = left.buf;
+                int leftSize = size(lb);
+                insertAt(cb, childSize, 0, key(lb, leftSize - 1), value(lb, leftSize - 1));
+                setSize(cb, childSize + 1);
+                setSize(lb, leftSize - 1);
+                left.dirty = true;
+                pb.putLong(HeaderSize + ci * 8, key(cb, 0));
+            } else if (right != null && size(right.buf) > MinSize) {
+                // 从右兄弟借第一个
+                ByteBuffer rb = right.buf;
+                int rightSize = size(rb);
+                insertAt(cb, childSize, childSize, key(rb, 0), value(rb, 0));
+                setSize(cb, childSize + 1);
+                removeAt(rb, rightSize, 0);
+                setSize(rb, rightSize - 1);
+                right.dirty = true;
+                pb.putLong(HeaderSize + (ci + 1) * 8, key(rb, 0));
+            } else if (left != null) {
+                // 合入左兄弟
+                mergeInto(left, child);
+                removeAt(pb, parentSize, ci);
+                setSize(pb, parentSize - 1);
+            } else if (right != null) {
+                // 右兄弟合入
+                mergeInto(child, right);
+                removeAt(pb, parentSize, ci + 1);
+                setSize(pb, parentSize - 1);
+            }
+        } finally {
+            pool.unpin(child);
+            if (left != null) pool.unpin(left);
+            if (right != null) pool.unpin(right);
+        }
+    }
+
+    // 将right结点全部追加到left，并释放right页
+    private void mergeInto(Page left, Page right) {
+        ByteBuffer lb = left.buf, rb = right.buf;
+        int leftSize = size(lb), rightSize = size(rb);
+        copy(rb, 0, lb, leftSize, rightSize);
+        setSize(lb, leftSize + rightSize);
+        lb.putLong(NextOffset, rb.getLong(NextOffset));
+        left.dirty = true;
+        freePage(right);
+    }
+
+    // 分配一个新页，返回时已pin住，优先复用空闲链表
+    private Page allocatePage(byte type) throws IOException {
+        Page page;
+        if (freeListHead != NullPage) {
+            page = pool.pin(freeListHead);
+            freeListHead = page.buf.getLong(NextOffset);
+        } else {
+            page = pool.pinNew(pageCount++);
+        }
+        ByteBuffer b = page.buf;
+        b.put(TypeOffset, type);
+        setSize(b, 0);
+        b.putLong(NextOffset, NullPage);
+        page.dirty = true;
+        return page;
+    }
+
+    // 释放页：挂到空闲链表头部
+    private void freePage(Page page) {
+        ByteBuffer b = page.buf;
+        b.put(TypeOffset, FreeType);
+        setSize(b, 0);
+        b.putLong(NextOffset, freeListHead);
+        freeListHead = page.id;
+        page.dirty = true;
+    }
+
+    // 脏页和元数据写回文件并刷盘
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            pool.flush();
+            writeMeta();
+            channel.force(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!channel.isOpen()) return;
+            flush();
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 检查B+树结构是否正常，此操作会遍历整个树结构，操作代价高
+    public void checkTree() throws IOException {
+        lock.readLock().lock();
+        try {
+            if (rootPageId == NullPage) {
+                if (size != 0) throw new RuntimeException("root为空但size不为0");
+                return;
+            }
+            long count = checkPage(rootPageId, Long.MIN_VALUE, Long.MAX_VALUE, true);
+            if (count != size) throw new RuntimeException(String.format("键值对数量%d与size%d不一致", count, size));
+            // 检查叶子链表有序且包含全部键值对
+            long pageId = rootPageId, leafCount = 0, pre = Long.MIN_VALUE;
+            boolean first = true;
+            while (true) {
+                Page page = pool.pin(pageId);
+                try {
+                    if (page.buf.get(TypeOffset) == LeafType) break;
+                    pageId = value(page.buf, 0);
+                } finally {
+                    pool.unpin(page);
+                }
+            }
+            while (pageId != NullPage) {
+                Page page = pool.pin(pageId);
+                try {
+                    ByteBuffer b = page.buf;
+                    for (int i = 0; i < size(b); i++) {
+                        if (!first && key(b, i) <= pre) throw new RuntimeException("叶子链表key无序: " + key(b, i));
+                        pre = key(b, i);
+                        first = false;
+                        leafCount++;
+                    }
+                    pageId = b.getLong(NextOffset);
+                } finally {
+                    pool.unpin(page);
+                }
+            }
+            if (leafCount != size) throw new RuntimeException(String.format("叶子链表键值对数量%d与size%d不一致", leafCount, size));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 检查页内key都在[lo, hi)内且有序，返回子树的键值对数量
+    private long checkPage(long pageId, long lo, long hi, boolean isRoot) throws IOException {
+        Page page = pool.pin(pageId);
+        try {
+            ByteBuffer b = page.buf;
+            int n = size(b);
+            if (!isRoot && n < MinSize) throw new RuntimeException(String.format("页%d元素数量%d小于%d", pageId, n, MinSize));
+            for (int i = 0; i < n; i++) {
+                if (key(b, i) < lo || (key(b, i) >= hi && hi != Long.MAX_VALUE))
+                    throw new RuntimeException(String.format("key %d不在[%d, %d)内", key(b, i), lo, hi));
+                if (i > 0 && key(b, i - 1) >= key(b, i))
+                    throw new RuntimeException(String.format("页%d index: %d的key>=其后的key", pageId, i - 1));
+            }
+            if (b.get(TypeOffset) == LeafType) return n;
+            long count = 0;
+            for (int i = 0; i < n; i++) {
+                count += checkPage(value(b, i), key(b, i), i + 1 < n ? key(b, i + 1) : hi, false);
+            }
+            return count;
+        } finally {
+            pool.unpin(page);
+        }
+    }
+
+    // ------------------------- 页内操作 -------------------------
+
+    private static int size(ByteBuffer b) {
+        return b.getInt(SizeOffset);
+    }
+
+    private static void setSize(ByteBuffer b, int size) {
+        b.putInt(SizeOffset, size);
+    }
+
+    private static long key(ByteBuffer b, int i) {
+        return b.getLong(HeaderSize + i * 8);
+    }
+
+    // 叶子结点为value，索引结点为子结点页号
+    private static long value(ByteBuffer b, int i) {
+        return b.getLong(ValuesOffset + i * 8);
+    }
+
+    /**
+     * 查找key的索引
+     *
+     * @return key存在时返回其索引，不存在时返回-(插入位置+1)
+     */
+    private static int search(ByteBuffer b, int size, long key) {
+        if (size >= BinarySearchThreshold) {
+            int left = 0, right = size - 1;
+            while (left <= right) {
+                int mid = (left + right) >>> 1;
+                long midKey = key(b, mid);
+                if (key < midKey) right = mid - 1;
+                else if (key > midKey) left = mid + 1;
+                else return mid;
+            }
+            return -(left + 1);
+        }
+        for (int i = 0; i < size; i++) {
+            long k = key(b, i);
+            if (key == k) return i;
+            if (key < k) return -(i + 1);
+        }
+        return -(size + 1);
+    }
+
+    // 索引结点中key所在子结点的索引：k1 <= key < k2，则k1指向的子结点为正确路径的下一层级
+    private static int childIndex(ByteBuffer b, int size, long key) {
+        int r = search(b, size, key);
+        if (r >= 0) return r;
+        int insertion = -r - 1;
+        return insertion == 0 ? 0 : insertion - 1;
+    }
+
+    // 在index处插入一个entry，调用方负责更新size
+    private static void insertAt(ByteBuffer b, int size, int index, long key, long value) {
+        for (int i = size; i > index; i--) {
+            b.putLong(HeaderSize + i * 8, key(b, i - 1));
+            b.putLong(ValuesOffset + i * 8, value(b, i - 1));
+        }
+        b.putLong(HeaderSize + index * 8, key);
+        b.putLong(ValuesOffset + index * 8, value);
+    }
+
+    // 删除index处的entry，调用方负责更新size
+    private static void removeAt(ByteBuffer b, int size, int index) {
+        for (int i = index; i < size - 1; i++) {
+            b.putLong(HeaderSize + i * 8, key(b, i + 1));
+            b.putLong(ValuesOffset + i * 8, value(b, i + 1));
+        }
+    }
+
+    // 从src页拷贝n个entry到dst页，两者不是同一页
+    private static void copy(ByteBuffer src, int srcIndex, ByteBuffer dst, int dstIndex, int n) {
+        dst.put(HeaderSize + dstIndex * 8, src, HeaderSize + srcIndex * 8, n * 8);
+        dst.put(ValuesOffset + dstIndex * 8, src, ValuesOffset + srcIndex * 8, n * 8);
+    }
+
+    // 缓冲池中的页帧
+    static class Page {
+        final long id;
+        final ByteBuffer buf;
+        int pins;// 正在使用的次数，大于0时不会被淘汰
+        boolean dirty;
+
+        Page(long id, ByteBuffer buf) {
+            this.id = id;
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * LRU缓冲池，页帧为堆外直接内存并循环复用
+     * 读锁下多个读者会并发pin页，因此方法都加锁；页内容的读写由B+树的读写锁保护
+     */
+    static class BufferPool {
+        private final FileChannel channel;
+        private final int capacity;
+        private final LinkedHashMap<Long, Page> pages = new LinkedHashMap<>(16, 0.75f, true);// 访问顺序即LRU
+        private final ArrayDeque<ByteBuffer> freeFrames = new ArrayDeque<>();
+
+        BufferPool(FileChannel channel, int capacity) {
+            this.channel = channel;
+            this.capacity = capacity;
+        }
+
+        // 获取页并pin住，不在缓冲池中则从文件读取
+        synchronized Page pin(long id) throws IOException {
+            Page page = pages.get(id);
+            if (page == null) {
+                ByteBuffer frame = allocateFrame();
+                long offset = id * PageSize;
+                while (frame.hasRemaining()) {
+                    if (channel.read(frame, offset + frame.position()) < 0) break;// 文件末尾之后的部分为0
+                }
+                page = new Page(id, frame.clear());
+                page.pins++;// 先pin住，否则其他页都被pin时淘汰的正是这一页
+                pages.put(id, page);
+                evict();
+                return page;
+            }
+            page.pins++;
+            return page;
+        }
+
+        // 新分配的页不用读取文件
+        synchronized Page pinNew(long id) throws IOException {
+            Page page = new Page(id, allocateFrame());
+            page.pins++;
+            pages.put(id, page);
+            evict();
+            return page;
+        }
+
+        synchronized void unpin(Page page) {
+            page.pins--;
+        }
+
+        private ByteBuffer allocateFrame() {
+            ByteBuffer frame = freeFrames.poll();
+            if (frame == null) return ByteBuffer.allocateDirect(PageSize);
+            // 复用的页帧需清零，读取文件时文件末尾之后的部分依赖于此
+            frame.clear();
+            while (frame.hasRemaining()) frame.putLong(0);
+            return frame.clear();
+        }
+
+        // 淘汰最久未使用且未被pin的页，全部被pin时允许暂时超出容量
+        private void evict() throws IOException {
+            Iterator<Page> it = pages.values().iterator();
+            while (pages.size() > capacity && it.hasNext()) {
+                Page page = it.next();
+                if (page.pins > 0) continue;
+                if (page.dirty) write(page);
+                it.remove();
+                freeFrames.push(page.buf);
+            }
+        }
+
+        synchronized void flush() throws IOException {
+            for (Page page : pages.values()) {
+                if (page.dirty) write(page);
+            }
+        }
+
+        private void write(Page page) throws IOException {
+            ByteBuffer src = page.buf.duplicate().clear();
+            long offset = page.id * PageSize;
+            while (src.hasRemaining()) {
+                channel.write(src, offset + src.position());
+            }
+            page.dirty = false;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.fzk.bplus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 按key范围分片的B+树：将key空间划分为N个连续区间，每个区间是一棵独立的BTree，各有自己的写锁，
+ * 不同分片上的写入互不阻塞，写吞吐随分片数扩展；读者仍是各BTree的乐观读，不加锁
+ * <p>
+ * 路由：分片表是不可变数组，按下界有序，二分查找key所在分片；重新平衡时整体替换分片表
+ * 读者读完后校验分片表未被替换，否则重试；写者先获取分片的迁移锁(共享)，
+ * 再检查分片是否已被替换，迁移时独占这把锁，因此迁移期间只阻塞这两个分片上的写者
+ * <p>
+ * 重新平衡：写入时统计每个分片的key数量，某个分片的key数量超过平均值的RebalanceSkew倍时，
+ * 将相差最大的一对相邻分片合并后从中位数处重新切分，即移动二者之间的边界，分片数保持不变
+ * 迁移时用BulkLoader构建两棵新树，旧树从此不再修改，仍在读旧树的读者和游标不受影响
+ * <p>
+ * 有序遍历：分片按范围划分，彼此不相交且有序，依次遍历各分片即为全局有序，无需多路归并比较
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+public class ShardedBTree {
+    private static final double RebalanceSkew = 2;// 分片key数量超过平均值的倍数时重新平衡
+    private static final long MinRebalanceSize = 1024;// 分片key数量少于此值时不重新平衡
+    private static final int RebalanceCheckInterval = 1024;// 分片每新增这么多key检查一次是否需要重新平衡
+    public final int M;
+    private volatile Shard[] shards;
+    private final ReentrantLock rebalanceLock = new ReentrantLock();// 同一时刻只有一个重新平衡
+    private final AtomicLong rebalanceCount = new AtomicLong();
+
+    /**
+     * 分片：[lo, 下一个分片的lo)
+     */
+    private static final class Shard {
+        final String lo;// 下界(包含)，第一个分片为""
+        final BTree tree;
+        final AtomicLong size;// key数量
+        // 迁移锁：写者共享，迁移时独占；被替换后retired置true，此后不再修改tree
+        final ReentrantReadWriteLock migrateLock = new ReentrantReadWriteLock();
+        boolean retired;
+
+        Shard(String lo, BTree tree, long size) {
+            this.lo = lo;
+            this.tree = tree;
+            this.size = new AtomicLong(size);
+        }
+    }
+
+    /**
+     * @param m         每个分片B+树的阶
+     * @param splitKeys 分片边界，严格递增，n个边界划分出n+1个分片；边界不合适也没关系，写入时会自动重新平衡
+     */
+    public ShardedBTree(int m, String... splitKeys) {
+        this.M = m;
+        Shard[] table = new Shard[splitKeys.length + 1];
+        table[0] = new Shard("", new BTree(m), 0);
+        for (int i = 0; i < splitKeys.length; i++) {
+            if (splitKeys[i].isEmpty() || (i > 0 && splitKeys[i].compareTo(splitKeys[i - 1]) <= 0))
+                throw new RuntimeException("分片边界必须非空且严格递增: " + splitKeys[i]);
+            table[i + 1] = new Shard(splitKeys[i], new BTree(m), 0);
+        }
+        this.shards = table;
+    }
+
+    // key所在分片的下标：最后一个lo<=key的分片
+    private static int route(Shard[] table, String key) {
+        int low = 1, high = table.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (table[mid].lo.compareTo(key) <= 0) low = mid + 1;
+            else high = mid - 1;
+        }
+        return high;
+    }
+
+    public Object get(String key) {
+        while (true) {
+            Shard[] table = shards;
+            Object value = table[route(table, key)].tree.get(key);
+            // 分片表未被替换，说明读到的分片在读取时仍是key的归属分片
+            if (table == shards) return value;
+        }
+    }
+
+    /**
+     * 插入或更新指定key的值
+     *
+     * @return 若key不存在则null，存在则返回旧值
+     */
+    public Object put(String key, Object value) {
+        return write(key, value, false);
+    }
+
+    /**
+     * 删除指定key
+     *
+     * @return key不存在返回null，存在时返回删除的旧值
+     */
+    public Object remove(String key) {
+        return write(key, null, true);
+    }
+
+    private Object write(String key, Object value, boolean remove) {
+        Object old;
+        boolean check = false;
+        while (true) {
+            Shard[] table = shards;
+            Shard shard = table[route(table, key)];
+            shard.migrateLock.readLock().lock();
+            try {
+                if (shard.retired) continue;// 迁移已完成，按新的分片表重新路由
+                if (remove) {
+                    old = shard.tree.remove(key);
+                    if (old != null) shard.size.decrementAndGet();
+                } else {
+                    old = shard.tree.put(key, value);
+                    if (old == null) check = shard.size.incrementAndGet() % RebalanceCheckInterval == 0;
+                }
+            } finally {
+                shard.migrateLock.readLock().unlock();
+            }
+            break;
+        }
+        // 必须在迁移锁外进行，否则与迁移的独占锁死锁
+        if (check) rebalance(false);
+        return old;
+    }
+
+    // key总数
+    public long size() {
+        long size = 0;
+        for (Shard shard : shards) size += shard.size.get();
+        return size;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    // 各分片的key数量
+    public long[] shardSizes() {
+        Shard[] table = shards;
+        long[] sizes = new long[table.length];
+        for (int i = 0; i < table.length; i++) sizes[i] = table[i].size.get();
+        return sizes;
+    }
+
+    // 各分片的下界，第一个分片为""
+    public String[] shardBounds() {
+        Shard[] table = shards;
+        String[] bounds = new String[table.length];
+        for (int i = 0; i < table.length; i++) bounds[i] = table[i].lo;
+        return bounds;
+    }
+
+    // 已完成的边界迁移次数
+    public long rebalanceCount() {
+        return rebalanceCount.get();
+    }
+
+    /**
+     * 若最大的分片超过平均值的RebalanceSkew倍，选出key数量相差最大的一对相邻分片，从二者的中位数处重新切分
+     * 每次只移动一个边界，多次之后热点分片的key逐步扩散到更远的分片
+     *
+     * @param force true表示忽略阈值，只要存在相差超过1的相邻分片就迁移，并等待正在进行的重新平衡
+     * @return 是否移动了边界
+     */
+    public boolean rebalance(boolean force) {
+        if (force) rebalanceLock.lock();
+        else if (!rebalanceLock.tryLock()) return false;// 其它线程正在重新平衡，写者不必等待
+        try {
+            Shard[] table = shards;
+            if (table.length < 2) return false;
+            long[] sizes = shardSizes();
+            long total = 0, max = 0;
+            for (long size : sizes) {
+                total += size;
+                max = Math.max(max, size);
+            }
+            if (!force && (max < MinRebalanceSize || max < RebalanceSkew * total / table.length)) return false;
+            int left = 0;
+            long maxDiff = 0;
+            for (int i = 0; i + 1 < table.length; i++) {
+                long diff = Math.abs(sizes[i] - sizes[i + 1]);
+                if (diff > maxDiff) {
+                    maxDiff = diff;
+                    left = i;
+                }
+            }
+            if (maxDiff <= 1) return false;
+            return migrate(table, left);
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    // 将分片left与left+1的key合并后从中位数处重新切分，调用方持有rebalanceLock
+    private boolean migrate(Shard[] table, int left) {
+        Shard a = table[left], b = table[left + 1];
+        a.migrateLock.writeLock().lock();
+        b.migrateLock.writeLock().lock();
+        try {
+            // 两个分片上已没有写者，读出全部key
+            ArrayList<BNode.BEntry> entries = new ArrayList<>((int) (a.size.get() + b.size.get()));
+            for (BTree.Cursor it = a.tree.cursor(null); it.hasNext(); ) entries.add(it.next());
+            for (BTree.Cursor it = b.tree.cursor(null); it.hasNext(); ) entries.add(it.next());
+            int mid = entries.size() / 2;
+            if (mid == 0 || entries.get(mid).key.equals(b.lo)) return false;
+            String bound = entries.get(mid).key;
+
+            Shard na = new Shard(a.lo, build(entries, 0, mid), mid);
+            Shard nb = new Shard(bound, build(entries, mid, entries.size()), entries.size() - mid);
+            Shard[] next = table.clone();
+            next[left] = na;
+            next[left + 1] = nb;
+            a.retired = b.retired = true;
+            shards = next;// 发布新分片表后，读到旧表的读者校验失败重试，等待迁移锁的写者发现retired后重新路由
+            rebalanceCount.incrementAndGet();
+            return true;
+        } finally {
+            b.migrateLock.writeLock().unlock();
+            a.migrateLock.writeLock().unlock();
+        }
+    }
+
+    private BTree build(ArrayList<BNode.BEntry> entries, int from, int to) {
+        // 新分片还会继续写入，留出空间避免立刻分裂
+        BTree.BulkLoader loader = new BTree.BulkLoader(M, 0.7);
+        for (int i = from; i < to; i++) {
+            BNode.BEntry entry = entries.get(i);
+            loader.add(entry.key, entry.value);
+        }
+        return loader.build();
+    }
+
+    /**
+     * 范围查询[fromKey, toKey)，升序
+     * 弱一致性：按开始时的分片表依次遍历各分片，遍历期间若发生边界迁移，剩余部分遍历的是迁移前的旧树
+     *
+     * @param fromKey 下界(包含)，null表示无下界
+     * @param toKey   上界(不包含)，null表示无上界
+     */
+    public Iterator<BNode.BEntry> scan(String fromKey, String toKey) {
+        return new ShardIterator(shards, true, fromKey, toKey);
+    }
+
+    /**
+     * 范围查询[fromKey, toKey)，降序
+     *
+     * @param fromKey 下界(包含)，null表示无下界
+     * @param toKey   上界(不包含)，null表示无上界
+     */
+    public Iterator<BNode.BEntry> scanDescending(String fromKey, String toKey) {
+        return new ShardIterator(shards, false, fromKey, toKey);
+    }
+
+    /**
+     * 依次遍历与[lo, hi)相交的分片，每个分片的游标限制在分片自己的范围内
+     */
+    private static class ShardIterator implements Iterator<BNode.BEntry> {
+        private final Shard[] table;
+        private final boolean ascending;
+        private final String lo, hi;
+        private int index;// 下一个要打开的分片
+        private final int end;// 最后一个要打开的分片(包含)
+        private BTree.Cursor cursor;
+
+        ShardIterator(Shard[] table, boolean ascending, String lo, String hi) {
+            this.table = table;
+            this.ascending = ascending;
+            this.lo = lo;
+            this.hi = hi;
+            int first = lo == null ? 0 : route(table, lo);
+            int last = hi == null ? table.length - 1 : route(table, hi);
+            if (ascending) {
+                index = first;
+                end = last;
+            } else {
+                index = last;
+                end = first;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (cursor == null || !cursor.hasNext()) {
+                if (ascending ? index > end : index < end) return false;
+                Shard shard = table[index];
+                String shardHi = index + 1 < table.length ? table[index + 1].lo : null;
+                String from = lo == null || lo.compareTo(shard.lo) < 0 ? shard.lo : lo;
+                String to = hi == null || (shardHi != null && shardHi.compareTo(hi) < 0) ? shardHi : hi;
+                cursor = ascending ? shard.tree.scan(from, to) : shard.tree.scanDescending(from, to);
+                index += ascending ? 1 : -1;
+            }
+            return true;
+        }
+
+        @Override
+        public BNode.BEntry next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return cursor.next();
+        }
+    }
+
+    // 检查每个分片的B+树结构以及key都在分片范围内
+    public void checkTree() {
+        Shard[] table = shards;
+        for (int i = 0; i < table.length; i++) {
+            Shard shard = table[i];
+            shard.tree.checkTree();
+            String hi = i + 1 < table.length ? table[i + 1].lo : null;
+            long count = 0;
+            for (BTree.Cursor it = shard.tree.cursor(null); it.hasNext(); count++) {
+                String key = it.next().key;
+                if (key.compareTo(shard.lo) < 0 || (hi != null && key.compareTo(hi) >= 0))
+                    throw new RuntimeException(String.format("key %s 不在分片%d的范围[%s, %s)内", key, i, shard.lo, hi));
+            }
+            if (count != shard.size.get())
+                throw new RuntimeException(String.format("分片%d的key数量%d与计数%d不一致", i, count, shard.size.get()));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.fzk.bplus;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * 基于Vector API的结点内查找，只能经由KeySearch在向量模块存在时调用
+ * 先用二分查找把范围缩小到几个向量宽度，再一次比较一整个向量的key：
+ * 有序数组中小于key的元素都在前面，某个向量中小于key的数量不足一个向量宽时，插入位置就在这个向量内
+ * 二分查找每层都是一次难以预测的分支，结点越大越慢；向量比较没有数据相关的分支，
+ * AVX-512下一条指令比较8个long或16个int
+ *
+ * @author fzk
+ * @datetime 2023-01-14 23:25:41
+ */
+final class VectorKeySearch {
+    private static final VectorSpecies<Long> LongSpecies = LongVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> IntSpecies = IntVector.SPECIES_PREFERRED;
+    private static final int LongLanes = LongSpecies.length(), IntLanes = IntSpecies.length();
+    // 二分查找缩小到这么多个key后改为向量比较
+    private static final int LongWindow = LongLanes * 8, IntWindow = IntLanes * 8;
+    static final int MinSize = 16;// 更小的结点标量遍历已经足够快
+    static final boolean Supported = LongLanes >= 2;// 只有一个lane说明没有可用的SIMD指令
+
+    private VectorKeySearch() {
+    }
+
+    static int search(long[] keys, int size, long key) {
+        // 1.二分查找第一个>=key的位置，直到范围不超过LongWindow
+        int lo = 0, hi = size;
+        while (hi - lo > LongWindow) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        // 2.向量比较，统计小于key的数量
+        int i = lo;
+        for (int bound = lo + LongSpecies.loopBound(hi - lo); i < bound; i += LongLanes) {
+            int less = LongVector.fromArray(LongSpecies, keys, i).lt(key).trueCount();
+            if (less < LongLanes) {
+                i += less;
+                return i < size && keys[i] == key ? i : -(i + 1);
+            }
+        }
+        // 3.不足一个向量宽的尾部
+        while (i < hi && keys[i] < key) i++;
+        return i < size && keys[i] == key ? i : -(i + 1);
+    }
+
+    static int search(int[] keys, int size, int key) {
+        int lo = 0, hi = size;
+        while (hi - lo > IntWindow) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        int i = lo;
+        for (int bound = lo + IntSpecies.loopBound(hi - lo); i < bound; i += IntLanes) {
+            int less = IntVector.fromArray(IntSpecies, keys, i).lt(key).trueCount();
+            if (less < IntLanes) {
+                i += less;
+                return i < size && keys[i] == key ? i : -(i + 1);
+            }
+        }
+        while (i < hi && keys[i] < key) i++;
+        return i < size && keys[i] == key ? i : -(i + 1);
+    }
+}
@@ -14,10 +14,47 @@ import java.util.Properties;
  * @datetime 2023-02-09 21:35:30
  */
 public class LogConf {
+    /**
+     * 队列为空时刷新线程、队列满且溢出策略为BLOCK时写日志线程的等待方式
+     * BUSY_SPIN：自旋，延迟最低但一直占用一个CPU，CPU核数少于写日志的线程数时反而会很慢；
+     * YIELD：让出CPU后重试；PARK：挂起，空闲时不占CPU
+     */
+    public enum WaitStrategy {
+        BUSY_SPIN, YIELD, PARK
+    }
+
+    /**
+     * 队列满时的处理
+     * BLOCK：等待刷新线程腾出空间；DROP_OLDEST：丢弃最旧的未刷新日志；DROP_NEWEST：丢弃正要写入的日志
+     * 丢弃的数量见Logger.droppedCount
+     */
+    public enum OverflowPolicy {
+        BLOCK, DROP_OLDEST, DROP_NEWEST
+    }
+
+    /**
+     * 每批日志写入后的落盘方式，落盘是刷新线程最大的开销，决定了每秒能处理的批数
+     * ALWAYS：每批force(true)，连同文件元数据一起落盘；DATA：每批force(false)，只保证数据及读取数据所需的元数据；
+     * INTERVAL：距上次落盘超过logSyncInterval毫秒时force(false)；BYTES：未落盘数据超过logSyncBytes字节时force(false)；
+     * NONE：不主动落盘，交给操作系统的页缓存，进程崩溃不丢日志，但机器宕机会丢
+     * INTERVAL、BYTES下日志停止写入后，剩余未落盘的数据至多在logSyncInterval毫秒后落盘
+     */
+    public enum SyncPolicy {
+        ALWAYS, DATA, INTERVAL, BYTES, NONE
+    }
+
     private String logPath;
     private String logLevel;
-    private int logQueueSize;// 日志队列大小，建议1024
+    private int logQueueSize;// 日志队列大小，建议1024，向上取整为2的幂
     private long logFileSize;// 日志文件大小，建议16MB，即16*1024*1024
+    private WaitStrategy logWaitStrategy = WaitStrategy.PARK;
+    private OverflowPolicy logOverflowPolicy = OverflowPolicy.BLOCK;
+    // 记录调用位置的日志级别，逗号分隔，none表示都不记录；获取调用位置是写日志最大的开销，高频的级别可以关掉
+    private String logCallerLevels = "fatal,error,warning,info,debug,fine";
+    private SyncPolicy logSyncPolicy = SyncPolicy.DATA;
+    private long logSyncInterval = 1000;// 毫秒
+    private long logSyncBytes = 1 << 20;// 1MB
+    private boolean logSyncOnError = true;// 含error、fatal的批次不论落盘方式都立即落盘
 
 
     public String getLogPath() {
@@ -52,6 +89,75 @@ public class LogConf {
         this.logFileSize = logFileSize;
     }
 
+    public WaitStrategy getLogWaitStrategy() {
+        return logWaitStrategy;
+    }
+
+    public void setLogWaitStrategy(WaitStrategy logWaitStrategy) {
+        this.logWaitStrategy = logWaitStrategy;
+    }
+
+    public OverflowPolicy getLogOverflowPolicy() {
+        return logOverflowPolicy;
+    }
+
+    public void setLogOverflowPolicy(OverflowPolicy logOverflowPolicy) {
+        this.logOverflowPolicy = logOverflowPolicy;
+    }
+
+    public String getLogCallerLevels() {
+        return logCallerLevels;
+    }
+
+    public void setLogCallerLevels(String logCallerLevels) {
+        this.logCallerLevels = logCallerLevels;
+    }
+
+    public SyncPolicy getLogSyncPolicy() {
+        return logSyncPolicy;
+    }
+
+    public void setLogSyncPolicy(SyncPolicy logSyncPolicy) {
+        this.logSyncPolicy = logSyncPolicy;
+    }
+
+    public long getLogSyncInterval() {
+        return logSyncInterval;
+    }
+
+    public void setLogSyncInterval(long logSyncInterval) {
+        this.logSyncInterval = logSyncInterval;
+    }
+
+    public long getLogSyncBytes() {
+        return logSyncBytes;
+    }
+
+    public void setLogSyncBytes(long logSyncBytes) {
+        this.logSyncBytes = logSyncBytes;
+    }
+
+    public boolean isLogSyncOnError() {
+        return logSyncOnError;
+    }
+
+    public void setLogSyncOnError(boolean logSyncOnError) {
+        this.logSyncOnError = logSyncOnError;
+    }
+
+    /**
+     * 按LogLevel的值索引，true表示此级别的日志记录调用位置
+     */
+    boolean[] parseCallerLevels() {
+        boolean[] capture = new boolean[LogLevel.FATAL.getValue() + 1];
+        for (String name : logCallerLevels.split(",")) {
+            name = name.trim();
+            if (name.isEmpty() || name.equalsIgnoreCase("none")) continue;
+            capture[LogLevel.getLevel(name).getValue()] = true;
+        }
+        return capture;
+    }
+
     @Override
     public String toString() {
         return "LogConf{" +
@@ -59,6 +165,13 @@ public class LogConf {
                 ", logLevel='" + logLevel + '\'' +
                 ", logQueueSize=" + logQueueSize +
                 ", logFileSize=" + logFileSize +
+                ", logWaitStrategy=" + logWaitStrategy +
+                ", logOverflowPolicy=" + logOverflowPolicy +
+                ", logCallerLevels='" + logCallerLevels + '\'' +
+                ", logSyncPolicy=" + logSyncPolicy +
+                ", logSyncInterval=" + logSyncInterval +
+                ", logSyncBytes=" + logSyncBytes +
+                ", logSyncOnError=" + logSyncOnError +
                 '}';
     }
 
@@ -120,6 +233,27 @@ public class LogConf {
         logConf.logLevel = p.getProperty("logLevel");
         logConf.logQueueSize = Integer.parseInt(p.getProperty("logQueueSize", "0"));
         logConf.logFileSize = Integer.parseInt(p.getProperty("logFileSize", "0"));
+        // 以下为可选属性
+        try {
+            logConf.logWaitStrategy = WaitStrategy.valueOf(p.getProperty("logWaitStrategy", "park").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("logWaitStrategy只能为busy_spin、yield、park: " + p.getProperty("logWaitStrategy"));
+        }
+        try {
+            logConf.logOverflowPolicy = OverflowPolicy.valueOf(p.getProperty("logOverflowPolicy", "block").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("logOverflowPolicy只能为block、drop_oldest、drop_newest: " + p.getProperty("logOverflowPolicy"));
+        }
+        logConf.logCallerLevels = p.getProperty("logCallerLevels", logConf.logCallerLevels);
+        logConf.parseCallerLevels();// 检查级别名称
+        try {
+            logConf.logSyncPolicy = SyncPolicy.valueOf(p.getProperty("logSyncPolicy", "data").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("logSyncPolicy只能为always、data、interval、bytes、none: " + p.getProperty("logSyncPolicy"));
+        }
+        logConf.logSyncInterval = Long.parseLong(p.getProperty("logSyncInterval", "1000"));
+        logConf.logSyncBytes = Long.parseLong(p.getProperty("logSyncBytes", "1048576"));
+        logConf.logSyncOnError = Boolean.parseBoolean(p.getProperty("logSyncOnError", "true"));
         // 检查
         if (logConf.logPath == null || logConf.logPath.length() == 0) {
             throw new RuntimeException("缺少属性logPath");
@@ -133,6 +267,12 @@ public class LogConf {
         if (logConf.logFileSize < (1 << 20)) {
             throw new RuntimeException("缺少属性logFileSize或值小于1048576(1MB)");
         }
+        if (logConf.logSyncInterval <= 0) {
+            throw new RuntimeException("logSyncInterval必须大于0: " + logConf.logSyncInterval);
+        }
+        if (logConf.logSyncBytes <= 0) {
+            throw new RuntimeException("logSyncBytes必须大于0: " + logConf.logSyncBytes);
+        }
         return logConf;
     }
 }
@@ -0,0 +1,205 @@
+package com.fzk.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * 日志行编码器，只由刷盘线程使用
+ * 一批日志逐条编码到复用的直接内存块中，最后用一次聚集写(gathering write)整批写入文件：
+ * 不为每条日志生成String、byte[]和ByteBuffer，稳定后刷盘路径上没有对象分配
+ * <p>
+ * 行格式: "级别(左对齐7位) yyyy-MM-dd HH:mm:ss [调用位置 ]消息\n"
+ * 时间只精确到秒，时间前缀按秒缓存，秒数变化时才重新计算
+ *
+ * @author fzk
+ * @datetime 2023-02-09 12:02:06
+ */
+final class LogEncoder {
+    private static final int ChunkSize = 64 * 1024;
+    private static final int LevelWidth = 8;// 级别左对齐占7位再加一个空格，warning长度为7
+    private static final int TimeWidth = 20;// "yyyy-MM-dd HH:mm:ss "
+    private static final byte[][] LevelBytes = new byte[6][];
+
+    static {
+        for (LogLevel level : new LogLevel[]{LogLevel.FINE, LogLevel.DEBUG, LogLevel.INFO,
+                LogLevel.WARNING, LogLevel.ERROR, LogLevel.FATAL}) {
+            byte[] bytes = new byte[LevelWidth];
+            Arrays.fill(bytes, (byte) ' ');
+            byte[] name = level.toString().getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(name, 0, bytes, 0, name.length);
+            LevelBytes[level.getValue()] = bytes;
+        }
+    }
+
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final byte[] timePrefix = new byte[TimeWidth];
+    private long cachedSecond = Long.MIN_VALUE;
+    private final byte[] digitBuf = new byte[10];// 非负int最多10位
+    // 直接内存块，一批日志超过一块时追加新块，之后一直复用
+    private ByteBuffer[] chunks = {ByteBuffer.allocateDirect(ChunkSize)};
+    private int current;// 正在写入的块
+    // 最近一条记录的起始位置，供拷贝到控制台
+    private int recordChunk, recordPos;
+
+    /**
+     * 把一条日志编码到当前批次的末尾
+     */
+    void encode(LogRecord record) {
+        recordChunk = current;
+        recordPos = chunks[current].position();
+        put(LevelBytes[record.level.getValue()]);
+        put(timePrefix(record.time));
+        StackTraceElement caller = record.caller;
+        if (caller != null) {
+            putCaller(caller);
+            put((byte) ' ');
+        }
+        putUtf8(record.msg == null ? "null" : record.msg);
+        put((byte) '\n');
+    }
+
+    /**
+     * 把最近一条日志的字节拷贝到dst的off处，调用方保证空间足够
+     *
+     * @return 拷贝的字节数
+     */
+    int copyLastRecord(byte[] dst, int off) {
+        int start = off;
+        for (int i = recordChunk, pos = recordPos; i <= current; i++, pos = 0) {
+            ByteBuffer chunk = chunks[i];
+            int len = chunk.position() - pos;
+            chunk.get(pos, dst, off, len);
+            off += len;
+        }
+        return off - start;
+    }
+
+    /**
+     * 最近一条日志的字节数上界，用于预留拷贝空间
+     */
+    int lastRecordLength() {
+        int length = -recordPos;
+        for (int i = recordChunk; i <= current; i++) length += chunks[i].position();
+        return length;
+    }
+
+    /**
+     * 把当前批次一次聚集写入文件并清空，通常只有一次系统调用，写不完时继续写剩余部分
+     *
+     * @return 写入的字节数
+     */
+    long writeTo(FileChannel file) throws IOException {
+        int count = current + 1;
+        for (int i = 0; i < count; i++) chunks[i].flip();
+        long written = 0;
+        while (chunks[current].hasRemaining()) written += file.write(chunks, 0, count);
+        for (int i = 0; i < count; i++) chunks[i].clear();
+        current = 0;
+        return written;
+    }
+
+    // "yyyy-MM-dd HH:mm:ss "前缀，同一秒内的日志共用
+    private byte[] timePrefix(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != cachedSecond) {
+            // 每秒至多分配一次
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), zone);
+            byte[] b = timePrefix;
+            digits(b, 0, time.getYear(), 4);
+            b[4] = '-';
+            digits(b, 5, time.getMonthValue(), 2);
+            b[7] = '-';
+            digits(b, 8, time.getDayOfMonth(), 2);
+            b[10] = ' ';
+            digits(b, 11, time.getHour(), 2);
+            b[13] = ':';
+            digits(b, 14, time.getMinute(), 2);
+            b[16] = ':';
+            digits(b, 17, time.getSecond(), 2);
+            b[19] = ' ';
+            cachedSecond = second;
+        }
+        return timePrefix;
+    }
+
+    private static void digits(byte[] b, int off, int value, int width) {
+        for (int i = off + width - 1; i >= off; i--, value /= 10) b[i] = (byte) ('0' + value % 10);
+    }
+
+    // 与StackTraceElement.toString()相同的格式: 类名.方法名(文件名:行号)，但不拼接字符串
+    private void putCaller(StackTraceElement caller) {
+        putUtf8(caller.getClassName());
+        put((byte) '.');
+        putUtf8(caller.getMethodName());
+        put((byte) '(');
+        if (caller.isNativeMethod()) putUtf8("Native Method");
+        else if (caller.getFileName() == null) putUtf8("Unknown Source");
+        else {
+            putUtf8(caller.getFileName());
+            if (caller.getLineNumber() >= 0) {
+                put((byte) ':');
+                putInt(caller.getLineNumber());
+            }
+        }
+        put((byte) ')');
+    }
+
+    private void putInt(int value) {
+        int i = digitBuf.length;
+        do {
+            digitBuf[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (i < digitBuf.length) put(digitBuf[i++]);
+    }
+
+    // 逐字符编码为UTF-8，不经过String.getBytes；不成对的代理字符写为'?'，与getBytes一致
+    private void putUtf8(String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) put((byte) c);
+            else if (c < 0x800) {
+                put((byte) (0xC0 | c >> 6));
+                put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                put((byte) (0xF0 | cp >> 18));
+                put((byte) (0x80 | cp >> 12 & 0x3F));
+                put((byte) (0x80 | cp >> 6 & 0x3F));
+                put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) put((byte) '?');
+            else {
+                put((byte) (0xE0 | c >> 12));
+                put((byte) (0x80 | c >> 6 & 0x3F));
+                put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    private void put(byte[] bytes) {
+        ByteBuffer chunk = chunks[current];
+        if (chunk.remaining() >= bytes.length) chunk.put(bytes);
+        else for (byte b : bytes) put(b);
+    }
+
+    private void put(byte b) {
+        ByteBuffer chunk = chunks[current];
+        if (!chunk.hasRemaining()) chunk = nextChunk();
+        chunk.put(b);
+    }
+
+    // 当前块写满，换到下一块，没有则新分配
+    private ByteBuffer nextChunk() {
+        if (++current == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        }
+        if (chunks[current] == null) chunks[current] = ByteBuffer.allocateDirect(ChunkSize);
+        return chunks[current];
+    }
+}
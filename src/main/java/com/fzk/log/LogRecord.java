@@ -1,23 +1,48 @@
 package com.fzk.log;
 
-import java.time.LocalDateTime;
-
 /**
+ * 日志记录，作为环形缓冲区的槽位预先分配并循环使用，因此字段可变
+ * 生产者在槽位发布前填充，消费者拷贝到自己的实例后处理，见LogRingBuffer
+ *
  * @author fzk
  * @datetime 2023-02-09 11:28:31
  */
 public class LogRecord {
-    public final LogLevel level;
-    public final String msg;
-    public final LocalDateTime time;
-    public final StackTraceElement caller;
+    // 只需取出一个栈帧，不保留Class引用
+    private static final StackWalker Walker = StackWalker.getInstance();
+    public LogLevel level;
+    public String msg;
+    public long time;// 毫秒时间戳，不为每条日志创建LocalDateTime
+    public StackTraceElement caller;
+
+    LogRecord() {
+    }
+
+    public LogRecord(LogLevel level, String msg, long time, int callDepth) {
+        // 直接赋值而不调用可被子类覆盖的set
+        this.level = level;
+        this.msg = msg;
+        this.time = time;
+        this.caller = callerOf(callDepth);
+    }
 
-    public LogRecord(LogLevel level, String msg, LocalDateTime time, int callDepth) {
+    void set(LogLevel level, String msg, long time, StackTraceElement caller) {
         this.level = level;
         this.msg = msg;
         this.time = time;
-        StackTraceElement[] stackTraces = Thread.currentThread().getStackTrace();
-        // 应该是3
-        this.caller = stackTraces[callDepth];
+        this.caller = caller;
+    }
+
+    /**
+     * 调用栈中第callDepth层的栈帧，0为此方法本身，1为此方法的调用方，以此类推
+     * StackWalker按需逐帧展开，只为跳过的帧和取出的那一帧付出代价，
+     * 而Thread.getStackTrace会为整个调用栈生成StackTraceElement数组，栈越深越慢
+     *
+     * @return 调用栈没有这么深时返回null
+     */
+    static StackTraceElement callerOf(int callDepth) {
+        return Walker.walk(frames -> frames.skip(callDepth).findFirst())
+                .map(StackWalker.StackFrame::toStackTraceElement)
+                .orElse(null);
     }
 }
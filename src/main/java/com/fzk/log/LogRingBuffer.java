@@ -0,0 +1,179 @@
+package com.fzk.log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 多生产者单消费者的无锁环形缓冲区，槽位中的LogRecord预先分配并循环使用，写日志不加锁也不分配队列结点
+ * <p>
+ * 序号：tail为下一个要分配的序号，head为下一个要消费的序号，序号seq的记录放在槽位seq & mask，
+ * 每个槽位记录最近一次发布到此槽位的序号，消费者看到槽位的发布序号等于head时才读取
+ * <p>
+ * 写入：生产者CAS推进tail得到自己的序号，等槽位上一轮(seq - capacity)的记录发布后填充槽位，再发布序号；
+ * 多个生产者可以同时填充不同的槽位，慢的生产者只会让消费者在它的序号上等待，不会阻塞其他生产者
+ * <p>
+ * 消费：消费者先把槽位拷贝到自己的LogRecord，再CAS推进head，CAS成功后才处理拷贝；
+ * DROP_OLDEST策略下生产者也会CAS推进head以丢弃最旧的记录，并随即覆盖其槽位，
+ * 此时消费者拷贝到的可能是写了一半的槽位，但它的CAS必然失败，拷贝被丢弃，所以不会输出错误的记录
+ * <p>
+ * 消费后槽位不清空，仍引用着最近capacity条日志的内容，直到被下一轮覆盖
+ *
+ * @author fzk
+ * @datetime 2023-02-09 12:02:06
+ */
+final class LogRingBuffer {
+    /**
+     * 消费者处理一条记录，记录对象会被复用，不能保存其引用
+     */
+    interface RecordHandler {
+        void onRecord(LogRecord record) throws IOException;
+    }
+
+    // tail、head放在同一个数组中相隔128字节，避免生产者与消费者争抢同一缓存行
+    private static final int TailIndex = 15, HeadIndex = 31;
+    private static final long ProducerParkNanos = 50_000;// 队列满时生产者每次挂起的时间
+    private final AtomicLongArray sequences = new AtomicLongArray(48);
+    private final LogRecord[] slots;
+    private final AtomicLongArray published;// 每个槽位最近一次发布的序号
+    private final int capacity, mask;
+    private final LogConf.WaitStrategy waitStrategy;
+    private final LogConf.OverflowPolicy overflowPolicy;
+    private final LongAdder dropped = new LongAdder();
+    private final LogRecord copy = new LogRecord();// 消费者的拷贝，只有消费者线程访问
+    private volatile Thread consumer;
+    private volatile boolean consumerParked;// 消费者挂起时生产者发布后才需要unpark它
+
+    /**
+     * @param capacity 向上取整为2的幂
+     */
+    LogRingBuffer(int capacity, LogConf.WaitStrategy waitStrategy, LogConf.OverflowPolicy overflowPolicy) {
+        if (capacity <= 0 || capacity > 1 << 30) throw new RuntimeException("日志队列大小需在(0, 2^30]之间: " + capacity);
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+        this.slots = new LogRecord[this.capacity];
+        this.published = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            slots[i] = new LogRecord();
+            published.set(i, i - this.capacity);// 视为上一轮已发布，第一轮的生产者无需等待
+        }
+    }
+
+    /**
+     * 写入一条记录，任意线程可调用
+     *
+     * @return 队列满且策略为DROP_NEWEST时丢弃并返回false
+     */
+    boolean publish(LogLevel level, String msg, long time, StackTraceElement caller) {
+        long seq = claim();
+        if (seq < 0) {
+            dropped.increment();
+            return false;
+        }
+        int index = (int) seq & mask;
+        // DROP_OLDEST下槽位上一轮的记录可能还没发布完，等它发布后再覆盖，保证同一槽位按序号依次写入
+        // 那个生产者可能刚被调度出去，自旋一会后让出CPU
+        long previous = seq - capacity;
+        for (int spins = 0; published.get(index) != previous; spins++) {
+            if (spins < 100) Thread.onSpinWait();
+            else Thread.yield();
+        }
+        slots[index].set(level, msg, time, caller);
+        published.set(index, seq);// volatile写，之前对槽位的写入对读到此序号的消费者可见
+        if (consumerParked) LockSupport.unpark(consumer);
+        return true;
+    }
+
+    // 分配序号，DROP_NEWEST下队列满时返回-1
+    private long claim() {
+        if (overflowPolicy == LogConf.OverflowPolicy.DROP_OLDEST) {
+            long seq = sequences.getAndIncrement(TailIndex);
+            // 超出容量的部分从head丢弃，消费者正在读取的记录也可能被丢弃
+            long head;
+            while ((head = sequences.get(HeadIndex)) <= seq - capacity) {
+                long newHead = seq - capacity + 1;
+                if (sequences.compareAndSet(HeadIndex, head, newHead)) {
+                    dropped.add(newHead - head);
+                    break;
+                }
+            }
+            return seq;
+        }
+        for (int spins = 0; ; ) {
+            long seq = sequences.get(TailIndex);
+            if (seq - sequences.get(HeadIndex) >= capacity) {
+                if (overflowPolicy == LogConf.OverflowPolicy.DROP_NEWEST) return -1;
+                producerWait(spins++);
+            } else if (sequences.compareAndSet(TailIndex, seq, seq + 1)) return seq;
+        }
+    }
+
+    // 生产者等待消费者腾出空间；消费者不知道哪些生产者在等待，所以PARK只挂起一小段时间后重试
+    private void producerWait(int spins) {
+        switch (waitStrategy) {
+            case BUSY_SPIN -> Thread.onSpinWait();
+            case YIELD -> Thread.yield();
+            case PARK -> {
+                if (spins < 100) Thread.onSpinWait();
+                else LockSupport.parkNanos(this, ProducerParkNanos);
+            }
+        }
+    }
+
+    /**
+     * 按序处理至多max条已发布的记录，只能由唯一的消费者线程调用
+     *
+     * @return 处理的记录数，0表示队列为空或head处的记录还未发布完
+     */
+    int drain(RecordHandler handler, int max) throws IOException {
+        int count = 0;
+        while (count < max) {
+            long head = sequences.get(HeadIndex);
+            int index = (int) head & mask;
+            if (published.get(index) != head) {
+                if (sequences.get(HeadIndex) != head) continue;// head已被DROP_OLDEST推进，槽位已是下一轮的记录
+                break;
+            }
+            LogRecord slot = slots[index];
+            copy.set(slot.level, slot.msg, slot.time, slot.caller);
+            // CAS失败说明记录已被DROP_OLDEST的生产者丢弃，拷贝可能不完整，从新的head重新开始
+            if (!sequences.compareAndSet(HeadIndex, head, head + 1)) continue;
+            handler.onRecord(copy);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 队列为空时消费者按等待策略等待，PARK策略下至多等待timeoutNanos，有新记录发布时被唤醒
+     */
+    void awaitRecords(long timeoutNanos) {
+        switch (waitStrategy) {
+            case BUSY_SPIN -> Thread.onSpinWait();
+            case YIELD -> Thread.yield();
+            case PARK -> {
+                consumer = Thread.currentThread();
+                consumerParked = true;
+                // 置位后再检查一次：生产者在置位前发布的记录这里能看到，置位后发布的生产者会unpark
+                if (!available()) LockSupport.parkNanos(this, timeoutNanos);
+                consumerParked = false;
+            }
+        }
+    }
+
+    private boolean available() {
+        long head = sequences.get(HeadIndex);
+        return published.get((int) head & mask) == head;
+    }
+
+    long droppedCount() {
+        return dropped.sum();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,85 @@
+package com.fzk.log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author fzk
+ * @datetime 2023-02-09 12:02:06
+ */
+public class LogTest {
+    public static void main(String[] args) throws InterruptedException {
+        LogTest t = new LogTest();
+        for (LogConf.OverflowPolicy policy : LogConf.OverflowPolicy.values()) {
+            for (LogConf.WaitStrategy strategy : LogConf.WaitStrategy.values()) {
+                t.testRingBuffer(policy, strategy);
+            }
+        }
+    }
+
+    // 多个生产者写入一个很小的环形缓冲区，检查每个生产者的日志按序到达、没有读到写了一半的槽位，
+    // 且收到的加上丢弃的等于写入的，BLOCK下不能丢弃
+    void testRingBuffer(LogConf.OverflowPolicy policy, LogConf.WaitStrategy strategy) throws InterruptedException {
+        final int producers = 8;
+        // CPU少于生产者时BUSY_SPIN的生产者会和消费者抢CPU，非常慢，见LogConf.WaitStrategy，少写一些
+        int count = strategy == LogConf.WaitStrategy.BUSY_SPIN
+                && Runtime.getRuntime().availableProcessors() <= producers ? 1000 : 10000;
+        LogRingBuffer queue = new LogRingBuffer(64, strategy, policy);
+        long[] last = new long[producers];// 每个生产者最近收到的序号，只有消费者访问
+        Arrays.fill(last, -1);
+        long[] received = new long[1];
+        AtomicBoolean done = new AtomicBoolean();
+        Throwable[] error = new Throwable[1];
+
+        // 槽位的各个字段由同一次publish写入：time编码生产者和序号，msg、level必须与之对应
+        LogRingBuffer.RecordHandler check = record -> {
+            int producer = (int) (record.time >>> 32), i = (int) record.time;
+            if (!record.msg.equals(producer + ":" + i) || record.level != (i % 2 == 0 ? LogLevel.INFO : LogLevel.DEBUG))
+                throw new RuntimeException(String.format("读到写了一半的记录: time=%d msg=%s level=%s", record.time, record.msg, record.level));
+            if (i <= last[producer])
+                throw new RuntimeException(String.format("生产者%d的日志乱序: %d在%d之后", producer, i, last[producer]));
+            last[producer] = i;
+            received[0]++;
+        };
+        Thread consumer = new Thread(() -> {
+            try {
+                while (true) {
+                    if (queue.drain(check, 1024) > 0) continue;
+                    // 生产者都已返回时所有记录都已发布，drain不到就是取完了
+                    if (done.get()) {
+                        if (queue.drain(check, Integer.MAX_VALUE) == 0) break;
+                    } else queue.awaitRecords(1_000_000);
+                }
+            } catch (IOException | RuntimeException e) {
+                error[0] = e;
+            }
+        });
+        consumer.start();
+
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < count; i++) {
+                    queue.publish(i % 2 == 0 ? LogLevel.INFO : LogLevel.DEBUG, producer + ":" + i,
+                            (long) producer << 32 | i, null);
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads) thread.join();
+        done.set(true);
+        consumer.join();
+
+        if (error[0] != null) throw new RuntimeException(policy + " " + strategy, error[0]);
+        long total = (long) producers * count, dropped = queue.droppedCount();
+        if (received[0] + dropped != total)
+            throw new RuntimeException(String.format("%s %s 收到%d + 丢弃%d != 写入%d", policy, strategy, received[0], dropped, total));
+        if (policy == LogConf.OverflowPolicy.BLOCK && dropped != 0)
+            throw new RuntimeException("BLOCK策略下丢弃了日志: " + dropped);
+        System.out.printf("环形缓冲区测试通过 %s %s: 收到%d 丢弃%d 耗时%dms\n",
+                policy, strategy, received[0], dropped, (System.nanoTime() - start) / 1_000_000);
+    }
+}
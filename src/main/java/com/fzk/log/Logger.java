@@ -13,15 +13,11 @@ import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
 import java.util.Set;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.LockSupport;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 实现组提交的日志打印
+ * 写日志的线程把日志放入无锁环形队列后立即返回，由刷新线程批量写入文件，见LogRingBuffer
  *
  * @author fzk
  * @datetime 2023-02-09 12:02:06
@@ -55,30 +51,22 @@ public class Logger {
     private static void addMsg(LogLevel level, String msg) {
         // 低于全局日志级别的日志忽略
         if (level.lower(globalLevel)) return;
-        LogRecord logRecord = new LogRecord(level, msg, LocalDateTime.now(), 4);
-        try {
-            lock.lockInterruptibly();
-            try {
-                // 写满了，等待, 必须用while，会有很多情况下会唤醒
-                while (queueWrite.size() >= defaultLogConf.getLogQueueSize()) {
-                    emptyCond.await();
-                }
-                queueWrite.add(logRecord);
-                flushTread.wakeUp();// 唤醒刷新线程
-            } finally {
-                lock.unlock();
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
+        // 0为callerOf，1为addMsg，2为info等，3为调用方
+        StackTraceElement caller = captureCaller[level.getValue()] ? LogRecord.callerOf(3) : null;
+        queue.publish(level, msg, System.currentTimeMillis(), caller);
+    }
+
+    /**
+     * 队列满而被丢弃的日志数量，溢出策略为BLOCK时始终为0
+     */
+    public static long droppedCount() {
+        return queue.droppedCount();
     }
 
     private static final LogConf defaultLogConf;
     private static final LogLevel globalLevel;// 当前设置的日志级别，低于此级别的不会打印
-    private static volatile ArrayList<LogRecord> queueWrite;// 各个日志写入此队列
-    private static volatile ArrayList<LogRecord> queueRead;// flush线程从此队列处理日志
-    private static final ReentrantLock lock = new ReentrantLock();
-    private static final Condition emptyCond = lock.newCondition();
+    private static final boolean[] captureCaller;// 按级别的值索引，是否记录调用位置
+    private static final LogRingBuffer queue;// 各个线程无锁写入，flush线程批量取出
     private static final FlushThread flushTread = new FlushThread();
     private static FileChannel file;
 
@@ -91,10 +79,11 @@ public class Logger {
             createLogFile(logPath);
 
             // 3.队列初始化
-            queueWrite = new ArrayList<>(defaultLogConf.getLogQueueSize());
-            queueRead = new ArrayList<>(defaultLogConf.getLogQueueSize());
+            queue = new LogRingBuffer(defaultLogConf.getLogQueueSize(),
+                    defaultLogConf.getLogWaitStrategy(), defaultLogConf.getLogOverflowPolicy());
             // 4.日志level设置
             globalLevel = LogLevel.getLevel(defaultLogConf.getLogLevel());
+            captureCaller = defaultLogConf.parseCallerLevels();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -104,51 +93,36 @@ public class Logger {
     }
 
     /**
-     * 刷新线程：已实现组提交
+     * 刷新线程：已实现组提交，每次取出队列中已有的一批日志，编码后一次写入，按落盘策略决定是否force
+     * 编码缓冲和控制台缓冲都是复用的，稳定后每条日志不分配对象
      */
     private static class FlushThread extends Thread {
-        public volatile boolean isAwake = false;// 刷新线程活跃状态：避免冗余唤醒
-        private static final DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-
-        // 轮转队列: 组提交
-        private void turnQueue() {
-            if (queueWrite.size() > 0) {
-                // 轮转队列
-                ArrayList<LogRecord> tmp = queueWrite;
-                queueWrite = queueRead;
-                queueRead = tmp;
-                emptyCond.signalAll();// 唤醒所有等待线程
-            }
-        }
-
-        public void wakeUp() {
-            if (!isAwake) {// 避免冗余唤醒
-                LockSupport.unpark(flushTread);
-                //System.out.println("唤醒");
-            }
-        }
+        private static final byte[] Red = ConsoleColors.RED.getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] Reset = ConsoleColors.RESET.getBytes(StandardCharsets.US_ASCII);
+        private static final long MaxIdleNanos = 10_000_000_000L;
+        private final LogEncoder encoder = new LogEncoder();
+        private final LogRingBuffer.RecordHandler handler = this::handleRecord;// 避免每批创建新的方法引用
+        // 一批日志的控制台输出，攒满或一批结束时才写到System.out
+        private byte[] console = new byte[64 * 1024];
+        private int consoleSize;
+        // 落盘策略，线程对象在读取配置之前就已创建，所以在run中初始化
+        private LogConf.SyncPolicy syncPolicy;
+        private long syncIntervalNanos;
+        private long unsyncedBytes;// 已写入但还未落盘的字节数
+        private long lastSyncNanos;
+        private boolean syncNow;// 本批含error、fatal且配置了logSyncOnError
 
         @Override
         public void run() {
+            syncPolicy = defaultLogConf.getLogSyncPolicy();
+            syncIntervalNanos = defaultLogConf.getLogSyncInterval() * 1_000_000;
+            lastSyncNanos = System.nanoTime();
             try {
                 while (!Thread.currentThread().isInterrupted()) {
-                    isAwake = true;
-                    // 轮转队列
-                    lock.lockInterruptibly();
-                    try {
-                        turnQueue();
-                    } finally {
-                        lock.unlock();
-                    }
-
-                    if (queueRead.size() > 0) {
-                        handleRead();
-                    } else {
-                        isAwake = false;
-                        LockSupport.parkNanos(10_000_000_000L);// 等待10s
-                    }
+                    // 队列为空时按等待策略等待，PARK时有新日志会被唤醒，最多等待10s
+                    if (!handleRead()) queue.awaitRecords(idleWait());
                 }
-            } catch (InterruptedException | IOException e) {
+            } catch (IOException e) {
                 System.err.println("flush log thread occurs error: " + e);
             } finally {
                 try {
@@ -159,25 +133,76 @@ public class Logger {
             }
         }
 
-        public void handleRead() throws IOException {
-            // 1.处理日志队列
-            for (LogRecord record : queueRead) {
-                // level time caller msg
-                // warning长度为7
-                String content = String.format("%-7s %s %s %s\n", record.level, format.format(record.time), record.caller, record.msg);
-                file.write(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
-                // 控制台染色
-                if (record.level.higher(LogLevel.INFO))
-                    System.out.printf("%s%s%s", ConsoleColors.RED, content, ConsoleColors.RESET);
-                else System.out.print(content);
-            }
-            queueRead.clear();// 清空队列
-            // 2.落盘
-            file.force(true);
-            // 3.切割日志
+        // 处理一批日志，队列为空时返回false
+        public boolean handleRead() throws IOException {
+            // 1.处理日志队列，一批最多一个队列大小
+            if (queue.drain(handler, queue.capacity()) == 0) return false;
+            // 2.整批一次写入，按策略落盘
+            unsyncedBytes += encoder.writeTo(file);
+            if (syncNow || syncDue()) sync();
+            syncNow = false;
+            flushConsole();
+            // 3.切割日志，关闭文件前先把未落盘的部分落盘
             if (file.size() >= defaultLogConf.getLogFileSize()) {
+                if (unsyncedBytes > 0 && syncPolicy != LogConf.SyncPolicy.NONE) sync();
                 splitLogFile();
             }
+            return true;
+        }
+
+        private boolean syncDue() {
+            return switch (syncPolicy) {
+                case ALWAYS, DATA -> true;
+                case INTERVAL -> System.nanoTime() - lastSyncNanos >= syncIntervalNanos;
+                case BYTES -> unsyncedBytes >= defaultLogConf.getLogSyncBytes();
+                case NONE -> false;
+            };
+        }
+
+        // 只有ALWAYS连同元数据落盘；force(false)仍会落盘文件长度等读取数据所需的元数据
+        private void sync() throws IOException {
+            file.force(syncPolicy == LogConf.SyncPolicy.ALWAYS);
+            unsyncedBytes = 0;
+            lastSyncNanos = System.nanoTime();
+        }
+
+        // 队列为空时的等待时间：INTERVAL、BYTES下还有未落盘的数据时，最多等到距上次落盘logSyncInterval，
+        // 超时后仍没有新日志就在这里落盘，避免日志停止写入后尾部一直留在页缓存中
+        private long idleWait() throws IOException {
+            if (unsyncedBytes == 0 || (syncPolicy != LogConf.SyncPolicy.INTERVAL && syncPolicy != LogConf.SyncPolicy.BYTES))
+                return MaxIdleNanos;
+            long remaining = syncIntervalNanos - (System.nanoTime() - lastSyncNanos);
+            if (remaining > 0) return Math.min(remaining, MaxIdleNanos);
+            sync();
+            return MaxIdleNanos;
+        }
+
+        private void handleRecord(LogRecord record) {
+            // level time caller msg，不记录调用位置的级别没有caller
+            encoder.encode(record);
+            if (record.level.higher(LogLevel.WARNING) && defaultLogConf.isLogSyncOnError()) syncNow = true;
+            // 控制台染色
+            boolean red = record.level.higher(LogLevel.INFO);
+            int length = encoder.lastRecordLength() + (red ? Red.length + Reset.length : 0);
+            if (consoleSize + length > console.length) {
+                flushConsole();
+                if (length > console.length) console = new byte[Integer.highestOneBit(length) << 1];
+            }
+            if (red) consoleSize = append(Red, consoleSize);
+            consoleSize += encoder.copyLastRecord(console, consoleSize);
+            if (red) consoleSize = append(Reset, consoleSize);
+        }
+
+        private int append(byte[] bytes, int off) {
+            System.arraycopy(bytes, 0, console, off, bytes.length);
+            return off + bytes.length;
+        }
+
+        private void flushConsole() {
+            if (consoleSize == 0) return;
+            System.out.write(console, 0, consoleSize);
+            System.out.flush();
+            consoleSize = 0;
         }
     }
 